@@ -24,6 +24,8 @@ import org.w3c.dom.Node;
 
 public class Atom extends Operator
 {
+	private static final long serialVersionUID = 1L;
+	
 	protected String m_symbol;
 	
 	public Atom()
@@ -44,6 +46,7 @@ public class Atom extends Operator
 	
 	public void setSymbol(String s)
 	{
+		checkMutable();
 		m_symbol = s;
 	}
 	
@@ -58,6 +61,8 @@ public class Atom extends Operator
 	@Override
 	public boolean equals(Object o)
 	{
+		if (o == null)
+			return false;
 		if (o.getClass() != this.getClass())
 			return false;
 		return equals((Atom) o);
@@ -67,6 +72,8 @@ public class Atom extends Operator
 	{
 		if (a == null)
 			return false;
+		if (a == this)
+			return true;
 		return m_symbol.compareTo(a.m_symbol) == 0;
 	}
 	
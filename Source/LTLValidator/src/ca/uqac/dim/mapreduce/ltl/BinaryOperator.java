@@ -22,6 +22,8 @@ import java.util.Set;
 
 public abstract class BinaryOperator extends Operator
 {
+	private static final long serialVersionUID = 1L;
+	
 	protected Operator m_left;
 	protected Operator m_right;
 	protected String m_symbol;
@@ -54,11 +56,13 @@ public abstract class BinaryOperator extends Operator
 	
 	public void setLeft(Operator o)
 	{
+		checkMutable();
 		m_left = o;
 	}
 	
 	public void setRight(Operator o)
 	{
+		checkMutable();
 		m_right = o;
 	}
 	
@@ -85,11 +89,17 @@ public abstract class BinaryOperator extends Operator
 	
 	public int hashCode()
 	{
+		if (m_id >= 0)
+			return m_hash;
 		return m_left.hashCode() + m_right.hashCode();
 	}
 	
 	public boolean equals(BinaryOperator o)
 	{
+		if (o == this)
+			return true;
+		if (m_id >= 0 && o.m_id >= 0)
+			return false;
 		if (m_left.equals(o.m_left) && m_right.equals(o.m_right))
 			return true;
 		if (m_commutes && m_left.equals(o.m_right) && m_right.equals(o.m_left))
@@ -118,6 +128,8 @@ public abstract class BinaryOperator extends Operator
 	
 	public int getDepth()
 	{
+		if (m_id >= 0)
+			return m_depth;
 		return 1 + Math.max(m_left.getDepth(), m_right.getDepth());
 	}
 }
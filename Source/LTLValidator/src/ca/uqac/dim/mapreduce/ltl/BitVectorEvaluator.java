@@ -0,0 +1,334 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Evaluates an LTL formula on a trace without MapReduce. The truth
+ * value of each subformula in every state of the trace is a vector of
+ * bits, packed 64 states per <code>long</code>; bit <i>i</i> of the
+ * vector is bit <i>i</i>&nbsp;mod&nbsp;64 of word <i>i</i>/64. The
+ * vectors are computed bottom-up with the same semantics as
+ * {@link LTLReducer}:
+ * <ul>
+ * <li>&and;, &or;, &not; and &rarr; are computed word by word</li>
+ * <li><b>X</b> shifts the vector by one state</li>
+ * <li><b>F</b> is the "or" of every suffix of the trace: it holds up
+ *   to the last state where &phi; holds</li>
+ * <li><b>G</b> is the "and" of every suffix, that is,
+ *   &not;<b>F</b>&not;</li>
+ * </ul>
+ * Each subformula is computed once, even if it appears several times
+ * in the formula. The vectors of the atoms are either read from the
+ * tuples of a trace, or filled as a {@link TraceSink} while the trace
+ * is parsed, in which case {@link #finish} must be called before the
+ * formula is evaluated.
+ */
+public class BitVectorEvaluator implements TraceSink
+{
+	/**
+	 * The length of the trace
+	 */
+	protected int m_traceLength;
+	
+	/**
+	 * The number of words of a vector
+	 */
+	protected int m_words;
+	
+	/**
+	 * The vectors of the subformul&aelig; computed so far, starting
+	 * with those of the atoms
+	 */
+	protected final Map<Operator,long[]> m_vectors = new HashMap<Operator,long[]>();
+	
+	/**
+	 * Creates an evaluator whose atoms are given by {@link #holds}
+	 */
+	public BitVectorEvaluator()
+	{
+		super();
+	}
+	
+	/**
+	 * Creates an evaluator for a trace
+	 * @param trace The tuples of the trace (see {@link TraceCollector})
+	 * @param trace_len The length of the trace
+	 */
+	public BitVectorEvaluator(InCollector<Operator,LTLTupleValue> trace, int trace_len)
+	{
+		this();
+		trace.rewind();
+		while (trace.hasNext())
+		{
+			Tuple<Operator,LTLTupleValue> t = trace.next();
+			set(t.getKey(), t.getValue().getStateNumber());
+		}
+		finish(trace_len);
+	}
+	
+	@Override
+	public void holds(Atom a, long state)
+	{
+		if (state > Integer.MAX_VALUE)
+			throw new IllegalStateException("State " + state + " cannot be stored in a bit vector");
+		set(a, (int) state);
+	}
+	
+	/**
+	 * Ends the reading of the trace. The vectors of the atoms are cut
+	 * to the length of the trace.
+	 * @param trace_len The length of the trace
+	 */
+	public void finish(int trace_len)
+	{
+		m_traceLength = trace_len;
+		m_words = (trace_len + 63) >>> 6;
+		for (Map.Entry<Operator,long[]> e : m_vectors.entrySet())
+		{
+			if (e.getValue().length != m_words)
+				e.setValue(Arrays.copyOf(e.getValue(), m_words));
+		}
+	}
+	
+	/**
+	 * Sets the bit of a state in the vector of an atom, growing the
+	 * vector if needed
+	 * @param o The atom
+	 * @param n The state
+	 */
+	protected void set(Operator o, int n)
+	{
+		long[] v = m_vectors.get(o);
+		int word = n >>> 6;
+		if (v == null)
+		{
+			v = new long[Math.max(word + 1, 16)];
+			m_vectors.put(o, v);
+		}
+		else if (word >= v.length)
+		{
+			v = Arrays.copyOf(v, Math.max(word + 1, v.length * 2));
+			m_vectors.put(o, v);
+		}
+		v[word] |= 1L << n;
+	}
+	
+	/**
+	 * Finds the first state where a formula holds in the output of the
+	 * MapReduce rounds but not on the bit vectors, or the reverse.
+	 * @param o The formula
+	 * @param c The output of the last round: the tuples
+	 *   &lang;<i>o</i>,(&empty;,<i>n</i>,<i>x</i>)&rang; give the
+	 *   states <i>n</i> where <i>o</i> holds
+	 * @return The first state that differs, or -1 if the two agree
+	 */
+	public long firstDifference(Operator o, InCollector<Operator,LTLTupleValue> c)
+	{
+		long[] states = new long[m_words];
+		c.rewind();
+		while (c.hasNext())
+		{
+			Tuple<Operator,LTLTupleValue> t = c.next();
+			LTLTupleValue v = t.getValue();
+			int n = v.getStateNumber();
+			if (v.getOperator() == null && n >= 0 && t.getKey().equals(o))
+			{
+				if (n >= m_traceLength)
+					return n;
+				states[n >>> 6] |= 1L << n;
+			}
+		}
+		return firstDifference(evaluate(o), states);
+	}
+	
+	/**
+	 * Finds the first state where a formula holds in a set of
+	 * intervals but not on the bit vectors, or the reverse.
+	 * @param o The formula
+	 * @param s The states where the formula holds
+	 * @return The first state that differs, or -1 if the two agree
+	 */
+	public long firstDifference(Operator o, IntervalSet s)
+	{
+		long[] states = new long[m_words];
+		for (int i = 0; i < s.getIntervalCount(); i++)
+		{
+			if (s.getEnd(i) > m_traceLength)
+				return Math.max(s.getStart(i), m_traceLength);
+			for (long n = s.getStart(i); n < s.getEnd(i); n++)
+				states[(int) (n >>> 6)] |= 1L << n;
+		}
+		return firstDifference(evaluate(o), states);
+	}
+	
+	/**
+	 * Finds the first bit where two vectors differ
+	 * @param v1 The first vector
+	 * @param v2 The second vector
+	 * @return The first bit that differs, or -1
+	 */
+	protected static long firstDifference(long[] v1, long[] v2)
+	{
+		for (int i = 0; i < v1.length; i++)
+		{
+			long diff = v1[i] ^ v2[i];
+			if (diff != 0)
+				return ((long) i << 6) + Long.numberOfTrailingZeros(diff);
+		}
+		return -1;
+	}
+	
+	/**
+	 * Tells whether a formula holds on the first state of the trace
+	 * @param o The formula
+	 * @return true if the formula holds
+	 */
+	public boolean getVerdict(Operator o)
+	{
+		if (m_traceLength == 0)
+			return false;
+		return (evaluate(o)[0] & 1L) != 0;
+	}
+	
+	/**
+	 * Computes the states of the trace where a formula holds
+	 * @param o The formula
+	 * @return The vector of the states. It must not be modified.
+	 */
+	public long[] evaluate(Operator o)
+	{
+		long[] out = m_vectors.get(o);
+		if (out != null)
+			return out;
+		Class<?> c = o.getClass();
+		if (o.isAtom())
+		{
+			// The atom never holds in the trace
+			out = new long[m_words];
+		}
+		else if (c == OperatorAnd.class)
+		{
+			long[] left = evaluate(((BinaryOperator) o).getLeft());
+			long[] right = evaluate(((BinaryOperator) o).getRight());
+			out = new long[m_words];
+			for (int i = 0; i < m_words; i++)
+				out[i] = left[i] & right[i];
+		}
+		else if (c == OperatorOr.class)
+		{
+			long[] left = evaluate(((BinaryOperator) o).getLeft());
+			long[] right = evaluate(((BinaryOperator) o).getRight());
+			out = new long[m_words];
+			for (int i = 0; i < m_words; i++)
+				out[i] = left[i] | right[i];
+		}
+		else if (c == OperatorImplies.class)
+		{
+			long[] left = evaluate(((BinaryOperator) o).getLeft());
+			long[] right = evaluate(((BinaryOperator) o).getRight());
+			out = new long[m_words];
+			for (int i = 0; i < m_words; i++)
+				out[i] = ~left[i] | right[i];
+			trim(out);
+		}
+		else if (c == OperatorNot.class)
+		{
+			out = not(evaluate(((UnaryOperator) o).getOperand()));
+		}
+		else if (c == OperatorX.class)
+		{
+			long[] in = evaluate(((UnaryOperator) o).getOperand());
+			out = new long[m_words];
+			for (int i = 0; i < m_words; i++)
+			{
+				// State n of the result is state n + 1 of the operand
+				out[i] = in[i] >>> 1;
+				if (i + 1 < m_words)
+					out[i] |= in[i + 1] << 63;
+			}
+		}
+		else if (c == OperatorF.class)
+		{
+			out = suffixOr(evaluate(((UnaryOperator) o).getOperand()));
+		}
+		else if (c == OperatorG.class)
+		{
+			out = not(suffixOr(not(evaluate(((UnaryOperator) o).getOperand()))));
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown operator " + o);
+		}
+		m_vectors.put(o, out);
+		return out;
+	}
+	
+	/**
+	 * Computes the complement of a vector, within the trace
+	 * @param in The vector
+	 * @return The complement
+	 */
+	protected long[] not(long[] in)
+	{
+		long[] out = new long[m_words];
+		for (int i = 0; i < m_words; i++)
+			out[i] = ~in[i];
+		trim(out);
+		return out;
+	}
+	
+	/**
+	 * Sets each state of a vector that is followed by some state of
+	 * the input, or is itself in the input. The words are scanned from
+	 * the end of the trace: every word before the one holding the last
+	 * state of the input is full.
+	 * @param in The vector
+	 * @return The states up to the last state of <code>in</code>
+	 */
+	protected long[] suffixOr(long[] in)
+	{
+		long[] out = new long[m_words];
+		int i = m_words - 1;
+		while (i >= 0 && in[i] == 0)
+			i--;
+		if (i < 0)
+			return out;
+		// Keep the bits up to the highest bit of the last nonempty word
+		out[i] = -1L >>> Long.numberOfLeadingZeros(in[i]);
+		for (i--; i >= 0; i--)
+			out[i] = -1L;
+		return out;
+	}
+	
+	/**
+	 * Clears the bits of the last word that lie past the end of the trace
+	 * @param v The vector
+	 */
+	protected void trim(long[] v)
+	{
+		int extra = (m_words << 6) - m_traceLength;
+		if (extra > 0)
+			v[m_words - 1] &= -1L >>> extra;
+	}
+}
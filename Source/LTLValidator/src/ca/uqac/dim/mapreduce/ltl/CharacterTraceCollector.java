@@ -37,63 +37,75 @@ public class CharacterTraceCollector extends TraceCollector
 	 * @param f The file to read the trace from
 	 */
 	public CharacterTraceCollector(File f, Set<Operator> subformulas)
+	{
+		this(f, subformulas, null);
+	}
+	
+	/**
+	 * Creates an instance of a CharacterTraceCollector that hands the
+	 * atoms of the trace to a sink
+	 * @param f The file to read the trace from
+	 * @param subformulas The subformul&aelig; of the formula to verify
+	 * @param sink The sink, or null to store the trace as tuples
+	 */
+	public CharacterTraceCollector(File f, Set<Operator> subformulas, TraceSink sink)
 	{
 		this();
+		m_sink = sink;
 		// Computes the set of atoms
 		Set<Atom> atoms = getAtoms(subformulas);
-		// Get file contents
-		String contents = getFileContents(f);
-		contents = contents.trim();
 		// Parse file contents
-		parse(contents, atoms);
+		parse(f, atoms);
 	}
-		
-	protected void parse(String contents, Set<Atom> atoms)
+	
+	/**
+	 * Reads the trace one line at a time, so that the file never has to
+	 * fit in a string. Blank characters at the beginning and the end of
+	 * the file are not events, as if the contents had been trimmed.
+	 * @param aFile The file to read the trace from
+	 * @param atoms The atoms to look for
+	 */
+	protected void parse(File aFile, Set<Atom> atoms)
 	{
+		assert aFile.canRead();
 		m_traceLength = 0;
-		HashSet<String> symbols = new HashSet<String>();
+		HashMap<Character,Atom> symbols = new HashMap<Character,Atom>();
 		for (Atom a : atoms)
-			symbols.add(a.getSymbol());
-		int str_length = contents.length();
-		for (int i = 0; i < str_length; i++)
 		{
-			m_traceLength++;
-			String c = "" + contents.charAt(i);
-			if (symbols.contains(c))
-			{
-				Atom a = new Atom(c);
-				LTLTupleValue v = new LTLTupleValue(a, i, 0);
-				LTLTuple t = new LTLTuple(a, v);
-				collect(t);
-			}
+			String symbol = a.getSymbol();
+			if (symbol.length() == 1)
+				symbols.put(symbol.charAt(0), a);
 		}
-	}
-	
-	private static String getFileContents(File aFile)
-	{
-		assert aFile.canRead();
-		
-		//...checks on aFile are elided
-		StringBuilder contents = new StringBuilder();
-
+		String separator = System.getProperty("line.separator");
 		try
 		{
-			//use buffering, reading one line at a time
-			//FileReader always assumes default encoding is OK!
 			BufferedReader input =  new BufferedReader(new FileReader(aFile));
 			try
 			{
-				String line = null; //not declared within while loop
-				/*
-				 * readLine is a bit quirky :
-				 * it returns the content of a line MINUS the newline.
-				 * it returns null only for the END of the stream.
-				 * it returns an empty String if two newlines appear in a row.
-				 */
+				// Blank characters seen since the last non-blank one; they
+				// are events only if a non-blank character follows them
+				StringBuilder blanks = new StringBuilder();
+				boolean started = false;
+				String line = null;
 				while ((line = input.readLine()) != null)
 				{
-					contents.append(line);
-					contents.append(System.getProperty("line.separator"));
+					line = line + separator;
+					int line_length = line.length();
+					for (int i = 0; i < line_length; i++)
+					{
+						char c = line.charAt(i);
+						if (c <= ' ')
+						{
+							if (started)
+								blanks.append(c);
+							continue;
+						}
+						started = true;
+						for (int j = 0; j < blanks.length(); j++)
+							event(symbols.get(blanks.charAt(j)));
+						blanks.setLength(0);
+						event(symbols.get(c));
+					}
 				}
 			}
 			finally
@@ -105,7 +117,12 @@ public class CharacterTraceCollector extends TraceCollector
 		{
 			ex.printStackTrace();
 		}
-
-		return contents.toString();
+	}
+	
+	private void event(Atom a)
+	{
+		if (a != null)
+			holds(a, m_traceLength);
+		m_traceLength++;
 	}
 }
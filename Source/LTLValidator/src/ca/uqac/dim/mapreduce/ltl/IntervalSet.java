@@ -0,0 +1,402 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Compressed set of states of a trace, stored as a sorted list of
+ * disjoint intervals. A subformula that holds on a long stretch of the
+ * trace, as <b>G</b>&nbsp;&phi; or <b>F</b>&nbsp;&phi; typically do,
+ * takes two numbers instead of one tuple per state. State numbers are
+ * <code>long</code>s, so that traces of more than 2<sup>31</sup> events
+ * can be represented.
+ * <p>
+ * The intervals are half-open: the interval [<i>s</i>,<i>e</i>)
+ * contains the states <i>s</i> to <i>e</i>&nbsp;&minus;&nbsp;1. Two
+ * intervals never overlap nor touch. Sets are immutable; they are
+ * built with a {@link Builder}, or from other sets.
+ */
+public final class IntervalSet implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The empty set
+	 */
+	public static final IntervalSet EMPTY = new IntervalSet(new long[0], new long[0], 0);
+	
+	/**
+	 * The first state of each interval
+	 */
+	private final long[] m_starts;
+	
+	/**
+	 * The state following the last state of each interval
+	 */
+	private final long[] m_ends;
+	
+	/**
+	 * The number of intervals
+	 */
+	private final int m_size;
+	
+	private IntervalSet(long[] starts, long[] ends, int size)
+	{
+		super();
+		m_starts = starts;
+		m_ends = ends;
+		m_size = size;
+	}
+	
+	/**
+	 * Returns the set of the states from <code>start</code> to
+	 * <code>end</code>&nbsp;&minus;&nbsp;1.
+	 * @param start The first state
+	 * @param end The state following the last state
+	 * @return The set
+	 */
+	public static IntervalSet range(long start, long end)
+	{
+		if (end <= start)
+			return EMPTY;
+		return new IntervalSet(new long[] {start}, new long[] {end}, 1);
+	}
+	
+	/**
+	 * Returns the number of intervals of the set
+	 * @return The number of intervals
+	 */
+	public int getIntervalCount()
+	{
+		return m_size;
+	}
+	
+	/**
+	 * Returns the first state of an interval
+	 * @param i The index of the interval
+	 * @return The state
+	 */
+	public long getStart(int i)
+	{
+		return m_starts[i];
+	}
+	
+	/**
+	 * Returns the state following the last state of an interval
+	 * @param i The index of the interval
+	 * @return The state
+	 */
+	public long getEnd(int i)
+	{
+		return m_ends[i];
+	}
+	
+	public boolean isEmpty()
+	{
+		return m_size == 0;
+	}
+	
+	/**
+	 * Returns the number of states in the set
+	 * @return The number of states
+	 */
+	public long cardinality()
+	{
+		long out = 0;
+		for (int i = 0; i < m_size; i++)
+			out += m_ends[i] - m_starts[i];
+		return out;
+	}
+	
+	/**
+	 * Returns the last state of the set
+	 * @return The state, or -1 if the set is empty
+	 */
+	public long last()
+	{
+		if (m_size == 0)
+			return -1;
+		return m_ends[m_size - 1] - 1;
+	}
+	
+	/**
+	 * Tells whether a state belongs to the set
+	 * @param state The state
+	 * @return true if the state is in the set
+	 */
+	public boolean contains(long state)
+	{
+		// Find the last interval that starts at or before the state
+		int i = Arrays.binarySearch(m_starts, 0, m_size, state);
+		if (i >= 0)
+			return true;
+		i = -i - 2;
+		return i >= 0 && state < m_ends[i];
+	}
+	
+	/**
+	 * Returns the states that are in this set or in another one
+	 * @param s The other set
+	 * @return The union
+	 */
+	public IntervalSet union(IntervalSet s)
+	{
+		if (s.m_size == 0)
+			return this;
+		if (m_size == 0)
+			return s;
+		Builder b = new Builder(m_size + s.m_size);
+		int i = 0, j = 0;
+		while (i < m_size || j < s.m_size)
+		{
+			// Take the interval that starts first; the builder merges them
+			if (j == s.m_size || (i < m_size && m_starts[i] <= s.m_starts[j]))
+			{
+				b.add(m_starts[i], m_ends[i]);
+				i++;
+			}
+			else
+			{
+				b.add(s.m_starts[j], s.m_ends[j]);
+				j++;
+			}
+		}
+		return b.build();
+	}
+	
+	/**
+	 * Returns the states that are both in this set and in another one
+	 * @param s The other set
+	 * @return The intersection
+	 */
+	public IntervalSet intersection(IntervalSet s)
+	{
+		if (m_size == 0 || s.m_size == 0)
+			return EMPTY;
+		Builder b = new Builder(Math.max(m_size, s.m_size));
+		int i = 0, j = 0;
+		while (i < m_size && j < s.m_size)
+		{
+			long start = Math.max(m_starts[i], s.m_starts[j]);
+			long end = Math.min(m_ends[i], s.m_ends[j]);
+			if (start < end)
+				b.add(start, end);
+			// Move past the interval that ends first
+			if (m_ends[i] < s.m_ends[j])
+				i++;
+			else
+				j++;
+		}
+		return b.build();
+	}
+	
+	/**
+	 * Returns the states of a trace that are not in this set
+	 * @param length The length of the trace
+	 * @return The states from 0 to <code>length</code>&nbsp;&minus;&nbsp;1
+	 *   that are not in the set
+	 */
+	public IntervalSet complement(long length)
+	{
+		Builder b = new Builder(m_size + 1);
+		long from = 0;
+		for (int i = 0; i < m_size && from < length; i++)
+		{
+			if (m_starts[i] > from)
+				b.add(from, Math.min(m_starts[i], length));
+			from = m_ends[i];
+		}
+		if (from < length)
+			b.add(from, length);
+		return b.build();
+	}
+	
+	/**
+	 * Adds a constant to every state of the set. The states that become
+	 * negative are dropped.
+	 * @param offset The constant
+	 * @return The shifted set
+	 */
+	public IntervalSet shift(long offset)
+	{
+		Builder b = new Builder(m_size);
+		for (int i = 0; i < m_size; i++)
+		{
+			long start = Math.max(m_starts[i] + offset, 0);
+			long end = m_ends[i] + offset;
+			if (start < end)
+				b.add(start, end);
+		}
+		return b.build();
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		long h = 0;
+		for (int i = 0; i < m_size; i++)
+			h = 31 * h + m_starts[i] * 17 + m_ends[i];
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof IntervalSet))
+			return false;
+		IntervalSet s = (IntervalSet) o;
+		if (m_size != s.m_size)
+			return false;
+		for (int i = 0; i < m_size; i++)
+		{
+			if (m_starts[i] != s.m_starts[i] || m_ends[i] != s.m_ends[i])
+				return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuffer out = new StringBuffer();
+		out.append("{");
+		for (int i = 0; i < m_size; i++)
+		{
+			if (i > 0)
+				out.append(",");
+			if (m_ends[i] - m_starts[i] == 1)
+				out.append(m_starts[i]);
+			else
+				out.append(m_starts[i]).append("-").append(m_ends[i] - 1);
+		}
+		out.append("}");
+		return out.toString();
+	}
+	
+	/**
+	 * Builds an {@link IntervalSet} from states or intervals given in
+	 * any order. States given in increasing order, as when a trace is
+	 * read, are merged into intervals as they come.
+	 */
+	public static final class Builder
+	{
+		private long[] m_starts;
+		private long[] m_ends;
+		private int m_size = 0;
+		
+		/**
+		 * Whether some interval was added before another one starting
+		 * earlier
+		 */
+		private boolean m_unsorted = false;
+		
+		public Builder()
+		{
+			this(4);
+		}
+		
+		/**
+		 * Creates a builder
+		 * @param capacity The expected number of intervals
+		 */
+		public Builder(int capacity)
+		{
+			super();
+			capacity = Math.max(capacity, 1);
+			m_starts = new long[capacity];
+			m_ends = new long[capacity];
+		}
+		
+		/**
+		 * Adds a state to the set
+		 * @param state The state
+		 * @return This builder
+		 */
+		public Builder add(long state)
+		{
+			return add(state, state + 1);
+		}
+		
+		/**
+		 * Adds the states from <code>start</code> to
+		 * <code>end</code>&nbsp;&minus;&nbsp;1 to the set
+		 * @param start The first state
+		 * @param end The state following the last state
+		 * @return This builder
+		 */
+		public Builder add(long start, long end)
+		{
+			if (end <= start)
+				return this;
+			if (m_size > 0 && !m_unsorted)
+			{
+				int last = m_size - 1;
+				if (start < m_starts[last])
+					m_unsorted = true;
+				else if (start <= m_ends[last])
+				{
+					// Overlaps or touches the last interval
+					if (end > m_ends[last])
+						m_ends[last] = end;
+					return this;
+				}
+			}
+			if (m_size == m_starts.length)
+			{
+				m_starts = Arrays.copyOf(m_starts, m_size * 2);
+				m_ends = Arrays.copyOf(m_ends, m_size * 2);
+			}
+			m_starts[m_size] = start;
+			m_ends[m_size] = end;
+			m_size++;
+			return this;
+		}
+		
+		/**
+		 * Returns the set of the states added so far
+		 * @return The set
+		 */
+		public IntervalSet build()
+		{
+			if (m_size == 0)
+				return EMPTY;
+			if (!m_unsorted)
+				return new IntervalSet(Arrays.copyOf(m_starts, m_size), Arrays.copyOf(m_ends, m_size), m_size);
+			// Sort the intervals by their start, and merge them again
+			Integer[] order = new Integer[m_size];
+			for (int i = 0; i < m_size; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>()
+			{
+				@Override
+				public int compare(Integer i1, Integer i2)
+				{
+					long s1 = m_starts[i1], s2 = m_starts[i2];
+					return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+				}
+			});
+			Builder b = new Builder(m_size);
+			for (int i = 0; i < m_size; i++)
+				b.add(m_starts[order[i]], m_ends[order[i]]);
+			return b.build();
+		}
+	}
+}
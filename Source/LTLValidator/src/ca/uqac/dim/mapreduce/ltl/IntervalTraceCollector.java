@@ -0,0 +1,91 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Input of {@link LTLSetMapper}: the states of a trace where each atom
+ * holds, as one tuple per atom. It is a {@link TraceSink} given to the
+ * {@link TraceCollector} that parses the trace, so that the states go
+ * straight into interval sets and the trace never exists as one tuple
+ * per event. Every atom of the formula gets a tuple, even if it never
+ * holds, so that the reducers of its parents know its truth set is
+ * complete.
+ */
+public class IntervalTraceCollector extends Collector<Operator,LTLSetValue> implements TraceSink
+{
+	/**
+	 * The length of the trace
+	 */
+	protected long m_traceLength;
+	
+	/**
+	 * The truth sets of the atoms being read, until
+	 * {@link #finish} is called
+	 */
+	protected Map<Operator,IntervalSet.Builder> m_builders;
+	
+	/**
+	 * Creates an empty collector for the truth sets of the atoms of a
+	 * trace
+	 * @param subformulas The subformul&aelig; of the formula to verify
+	 */
+	public IntervalTraceCollector(Set<Operator> subformulas)
+	{
+		super();
+		m_builders = new HashMap<Operator,IntervalSet.Builder>();
+		for (Operator o : subformulas)
+		{
+			if (o.isAtom())
+				m_builders.put(o, new IntervalSet.Builder());
+		}
+	}
+	
+	@Override
+	public void holds(Atom a, long state)
+	{
+		IntervalSet.Builder b = m_builders.get(a);
+		if (b != null)
+			b.add(state);
+	}
+	
+	/**
+	 * Ends the reading of the trace and adds the tuples of the atoms
+	 * to the collector
+	 * @param trace_len The length of the trace
+	 */
+	public void finish(long trace_len)
+	{
+		m_traceLength = trace_len;
+		for (Map.Entry<Operator,IntervalSet.Builder> e : m_builders.entrySet())
+		{
+			collect(new Tuple<Operator,LTLSetValue>(e.getKey(), new LTLSetValue(null, e.getValue().build(), 0)));
+		}
+		m_builders = null;
+	}
+	
+	public long getTraceLength()
+	{
+		return m_traceLength;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Implementation of the (optional) Combine phase of the MapReduce
+ * algorithm for LTL trace validation. None of the reducers in
+ * {@link LTLReducer} depends on how many times a given tuple value
+ * appears in its input: the combiner hence removes duplicate values
+ * from the output of a mapper. For a key of the form
+ * &phi;&nbsp;&or;&nbsp;&psi;, the reducer only looks at the state and
+ * iteration numbers, so that tuples stating that &phi; and &psi; are
+ * both true in the same state are merged into one.
+ */
+public class LTLCombiner implements Combiner<Operator,LTLTupleValue>, Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	@Override
+	public void combine(OutCollector<Operator, LTLTupleValue> out, Operator key,
+			InCollector<Operator, LTLTupleValue> in)
+	{
+		boolean ignore_operator = (key.getClass() == OperatorOr.class);
+		Set<LTLTupleValue> seen = new HashSet<LTLTupleValue>();
+		in.rewind();
+		while (in.hasNext())
+		{
+			Tuple<Operator,LTLTupleValue> t = in.next();
+			LTLTupleValue v = t.getValue();
+			if (ignore_operator && v.getOperator() != null)
+				v = new LTLTupleValue(null, v.getStateNumber(), v.getIteration());
+			if (seen.add(v))
+				out.collect(t);
+		}
+	}
+}
@@ -16,7 +16,12 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 package ca.uqac.dim.mapreduce.ltl;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ca.uqac.dim.mapreduce.*;
@@ -28,17 +33,26 @@ import ca.uqac.dim.mapreduce.*;
  * @author sylvain
  *
  */
-public class LTLMapper implements Mapper<Operator,LTLTupleValue>
+public class LTLMapper implements Mapper<Operator,LTLTupleValue>, Serializable
 {
+	private static final long serialVersionUID = 1L;
+	
 	/**
 	 * The set of subformul&aelig; of the original LTL formula to verify
 	 */
 	protected Set<Operator> m_subformulas;
 	
+	/**
+	 * For each subformula, the subformul&aelig; that have it as an
+	 * operand
+	 */
+	protected Map<Operator,Operator[]> m_parents;
+	
 	public LTLMapper(Set<Operator> subformulas)
 	{
 		super();
 		m_subformulas = subformulas;
+		m_parents = getParents(subformulas);
 	}
 	
 	public LTLMapper()
@@ -53,20 +67,58 @@ public class LTLMapper implements Mapper<Operator,LTLTupleValue>
 		//System.out.println("Mapper");
 		LTLTupleValue v = t.getValue();
 		Operator k = t.getKey();
-		if (v.getIteration() < k.getDepth())
+		int depth = k.getDepth();
+		if (v.getIteration() < depth)
 		{
 			LTLTuple out_t = new LTLTuple(k, new LTLTupleValue(v.getOperator(), v.getStateNumber(), v.getIteration() + 1));
 			c.collect(out_t);
 		}
-		if (v.getIteration() <= k.getDepth() && v.getOperator() == null)
+		if (v.getIteration() <= depth && v.getOperator() == null)
 		{
-			for (Operator f : m_subformulas)
+			Operator[] parents = m_parents.get(k);
+			if (parents == null)
+				return;
+			for (Operator f : parents)
 			{
-				if (f.hasOperand(k))
+				c.collect(new LTLTuple(f, new LTLTupleValue(k, v.getStateNumber(), v.getIteration() + 1)));
+			}
+		}
+	}
+	
+	/**
+	 * Indexes a set of subformul&aelig; by their operands, so that the
+	 * mapper finds the parents of a tuple's key with a single lookup
+	 * instead of asking every subformula. A parent whose operands are
+	 * the same subformula (as in <i>a</i>&nbsp;&and;&nbsp;<i>a</i>) is
+	 * listed once.
+	 * @param subformulas The subformul&aelig;
+	 * @return The parents of each subformula that has some
+	 */
+	protected static Map<Operator,Operator[]> getParents(Set<Operator> subformulas)
+	{
+		Map<Operator,List<Operator>> lists = new HashMap<Operator,List<Operator>>();
+		for (Operator f : subformulas)
+		{
+			for (Operator o : subformulas)
+			{
+				if (f.hasOperand(o))
 				{
-					c.collect(new LTLTuple(f, new LTLTupleValue(k, v.getStateNumber(), v.getIteration() + 1)));
+					List<Operator> l = lists.get(o);
+					if (l == null)
+					{
+						l = new ArrayList<Operator>();
+						lists.put(o, l);
+					}
+					l.add(f);
 				}
 			}
 		}
+		Map<Operator,Operator[]> out = new HashMap<Operator,Operator[]>();
+		for (Map.Entry<Operator,List<Operator>> e : lists.entrySet())
+		{
+			List<Operator> l = e.getValue();
+			out.put(e.getKey(), l.toArray(new Operator[l.size()]));
+		}
+		return out;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Partitioner for the inputs of the {@link LTLReducer}. The tuples of
+ * a conjunction are dealt among the parts according to their state
+ * number, so that the tuples of both sides of a state end up in the
+ * same part; the inputs of the other keys are split into contiguous
+ * ranges, like the {@link SkewPartitioner} does.
+ */
+public class LTLPartitioner extends SkewPartitioner<Operator,LTLTupleValue> implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	public LTLPartitioner()
+	{
+		super();
+	}
+	
+	public LTLPartitioner(int min_size)
+	{
+		super(min_size);
+	}
+	
+	@Override
+	public List<InCollector<Operator,LTLTupleValue>> split(Operator key, InCollector<Operator,LTLTupleValue> in, int parts)
+	{
+		if (key.getClass() != OperatorAnd.class)
+			return super.split(key, in, parts);
+		List<InCollector<Operator,LTLTupleValue>> out = new ArrayList<InCollector<Operator,LTLTupleValue>>(parts);
+		for (int i = 0; i < parts; i++)
+			out.add(new Collector<Operator,LTLTupleValue>());
+		in.rewind();
+		while (in.hasNext())
+		{
+			Tuple<Operator,LTLTupleValue> t = in.next();
+			int part = t.getValue().getStateNumber() % parts;
+			((Collector<Operator,LTLTupleValue>) out.get(part)).collect(t);
+		}
+		return out;
+	}
+}
@@ -17,15 +17,29 @@
  */
 package ca.uqac.dim.mapreduce.ltl;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
 import ca.uqac.dim.mapreduce.*;
 
-public class LTLReducer implements Reducer<Operator,LTLTupleValue>
+public class LTLReducer implements SplittableReducer<Operator,LTLTupleValue>, Serializable
 {
+	private static final long serialVersionUID = 1L;
+	
 	protected Set<Operator> m_subformulas;
 	protected int m_traceLength;
 	
+	/**
+	 * The bit sets given back by the reduce jobs. A job borrows a pair
+	 * of bit sets for one key and gives it back when it is over, so that
+	 * the sets are reused from one key to the next, whatever the thread
+	 * that runs the job. They are dropped by {@link #release}.
+	 */
+	private transient List<BitSet[]> m_scratch;
+	
 	public LTLReducer(Set<Operator> subformulas, int trace_len)
 	{
 		super();
@@ -37,6 +51,89 @@ public class LTLReducer implements Reducer<Operator,LTLTupleValue>
 	{
 		this(new HashSet<Operator>(), 0);
 	}
+	
+	/**
+	 * Sets the length of the trace. When the trace is streamed to the
+	 * first round (see {@link TraceStream}), its length is only known
+	 * once that round is over. The reducers of the first round only
+	 * pass their input on, and do not use it.
+	 * @param trace_len The length of the trace
+	 */
+	public void setTraceLength(int trace_len)
+	{
+		m_traceLength = trace_len;
+	}
+	
+	/**
+	 * Borrows two bit sets of the size of the trace, cleared. They must
+	 * be given back with {@link #giveBack} once the job is over.
+	 * @return The bit sets
+	 */
+	protected synchronized BitSet[] borrowScratch()
+	{
+		if (m_scratch == null || m_scratch.isEmpty())
+			return new BitSet[] {new BitSet(m_traceLength), new BitSet(m_traceLength)};
+		BitSet[] sets = m_scratch.remove(m_scratch.size() - 1);
+		sets[0].clear();
+		sets[1].clear();
+		return sets;
+	}
+	
+	/**
+	 * Gives back bit sets borrowed with {@link #borrowScratch}
+	 * @param sets The bit sets
+	 */
+	protected synchronized void giveBack(BitSet[] sets)
+	{
+		// Not serialized: the reducer may have been sent to a worker
+		if (m_scratch == null)
+			m_scratch = new ArrayList<BitSet[]>();
+		m_scratch.add(sets);
+	}
+	
+	/**
+	 * Drops the bit sets kept for the next reduce jobs. This is called
+	 * once a round is over, so that the sets do not outlive it; the
+	 * next round borrows new ones.
+	 */
+	public synchronized void release()
+	{
+		m_scratch = null;
+	}
+	
+	/**
+	 * Adds to the input of the first round a marker tuple for each
+	 * subformula of the form &not;&nbsp;&phi; or
+	 * &phi;&nbsp;&rarr;&nbsp;&psi;. The reducers of these keys compute
+	 * their output from the states they do <em>not</em> receive; when
+	 * the operands hold nowhere in the trace, no tuple reaches the key,
+	 * its reducer never runs, and the subformula wrongly holds nowhere.
+	 * The marker has the key itself as its operator and no state (see
+	 * {@link #isMarker}); it survives the rounds like the other early
+	 * tuples, so that the reducer of its key runs in the round of its
+	 * depth, even on an otherwise empty input. It is dropped there.
+	 * @param c The input of the first round
+	 * @param subformulas The subformul&aelig; of the property
+	 */
+	public static void addMarkers(OutCollector<Operator,LTLTupleValue> c, Set<Operator> subformulas)
+	{
+		for (Operator o : subformulas)
+		{
+			Class<?> k = o.getClass();
+			if (k == OperatorNot.class || k == OperatorImplies.class)
+				c.collect(new LTLTuple(o, new LTLTupleValue(o, -1, 0)));
+		}
+	}
+	
+	/**
+	 * Tells whether a tuple is a marker added by {@link #addMarkers}
+	 * @param v The value of the tuple
+	 * @return true if the tuple is a marker
+	 */
+	protected static boolean isMarker(LTLTupleValue v)
+	{
+		return v.getStateNumber() < 0;
+	}
 
 
 	@Override
@@ -68,6 +165,59 @@ public class LTLReducer implements Reducer<Operator,LTLTupleValue>
 			reduce(out, (Atom) key, in);
 	}
 	
+	/**
+	 * The input of the keys whose reduce processes each state on its
+	 * own can be split. <b>G</b>, &not; and &rarr; need to see all the
+	 * states of the trace at once, and are never split. The input of
+	 * a conjunction must be split so that both sides of a state end up
+	 * in the same part (see {@link LTLPartitioner}).
+	 */
+	@Override
+	public boolean isSplittable(Operator key)
+	{
+		Class<?> c = key.getClass();
+		return c == OperatorAnd.class || c == OperatorOr.class
+			|| c == OperatorX.class || c == OperatorF.class
+			|| key instanceof Atom;
+	}
+	
+	@Override
+	public void reducePart(OutCollector<Operator, LTLTupleValue> out, Operator key,
+			InCollector<Operator, LTLTupleValue> in)
+	{
+		if (key.getClass() != OperatorF.class)
+		{
+			reduce(out, key, in);
+			return;
+		}
+		// Only the last state seen in the part matters to F
+		in.rewind();
+		LTLTupleValue max = null;
+		while (in.hasNext())
+		{
+			LTLTupleValue v = in.next().getValue();
+			if (max == null || v.getStateNumber() > max.getStateNumber())
+				max = v;
+		}
+		if (max != null)
+			out.collect(new Tuple<Operator,LTLTupleValue>(key, new LTLTupleValue(null, max.getStateNumber(), max.getIteration())));
+	}
+	
+	@Override
+	public void merge(OutCollector<Operator, LTLTupleValue> out, Operator key,
+			InCollector<Operator, LTLTupleValue> parts)
+	{
+		parts.rewind();
+		if (key.getClass() == OperatorF.class)
+		{
+			reduce(out, (OperatorF) key, parts);
+			return;
+		}
+		// The results of the parts are already final
+		while (parts.hasNext())
+			out.collect(parts.next());
+	}
+	
 	/**
 	 * Implementation of Reduce, when the tuple's key is of the form
 	 * &phi;&nbsp;&and;&nbsp;&psi;.
@@ -78,50 +228,63 @@ public class LTLReducer implements Reducer<Operator,LTLTupleValue>
 	private void reduce(OutCollector<Operator, LTLTupleValue> out, OperatorAnd key,
 			InCollector<Operator, LTLTupleValue> in)
 	{
-		Set<Integer> contain_left = new HashSet<Integer>();
-		Set<Integer> contain_right = new HashSet<Integer>();
+		BitSet[] sets = borrowScratch();
+		BitSet contain_left = sets[0];
+		BitSet contain_right = sets[1];
 		Operator left_op = key.getLeft();
 		Operator right_op = key.getRight(); 
-		while (in.hasNext())
+		try
 		{
-			Tuple<Operator,LTLTupleValue> t = in.next();
-			LTLTupleValue v = t.getValue();
-			// We must survive tuples whose subformula will be used at a later iteration
-			if (key.getDepth() > v.getIteration())
-			{
-				out.collect(t);
-				while (in.hasNext())
-					out.collect(in.next());
-				return;
-			}
-			Operator op = v.getOperator();
-			assert op != null;
-			int n = v.getStateNumber();
-			LTLTuple out_t = null;
-			if (op.equals(left_op))
+			while (in.hasNext())
 			{
-				if (contain_right.contains(new Integer(n)))
+				Tuple<Operator,LTLTupleValue> t = in.next();
+				LTLTupleValue v = t.getValue();
+				// We must survive tuples whose subformula will be used at a later iteration
+				if (key.getDepth() > v.getIteration())
 				{
-					out_t = new LTLTuple(key, new LTLTupleValue(null, n, v.getIteration()));
+					out.collect(t);
+					while (in.hasNext())
+						out.collect(in.next());
+					return;
 				}
-				else
+				Operator op = v.getOperator();
+				assert op != null;
+				int n = v.getStateNumber();
+				LTLTuple out_t = null;
+				if (left_op == right_op)
 				{
-					contain_left.add(new Integer(n));
+					// Both sides are the same shared subformula (e.g. a & a)
+					out_t = new LTLTuple(key, new LTLTupleValue(null, n, v.getIteration()));
 				}
-			}
-			else if (op.equals(right_op))
-			{
-				if (contain_left.contains(new Integer(n)))
+				else if (op.equals(left_op))
 				{
-					out_t = new LTLTuple(key, new LTLTupleValue(null, n, v.getIteration()));
+					if (contain_right.get(n))
+					{
+						out_t = new LTLTuple(key, new LTLTupleValue(null, n, v.getIteration()));
+					}
+					else
+					{
+						contain_left.set(n);
+					}
 				}
-				else
+				else if (op.equals(right_op))
 				{
-					contain_right.add(new Integer(n));
+					if (contain_left.get(n))
+					{
+						out_t = new LTLTuple(key, new LTLTupleValue(null, n, v.getIteration()));
+					}
+					else
+					{
+						contain_right.set(n);
+					}
 				}
+				if (out_t != null)
+					out.collect(out_t);
 			}
-			if (out_t != null)
-				out.collect(out_t);
+		}
+		finally
+		{
+			giveBack(sets);
 		}
 	}
 	
@@ -154,43 +317,48 @@ public class LTLReducer implements Reducer<Operator,LTLTupleValue>
 	private void reduce(OutCollector<Operator, LTLTupleValue> out, OperatorImplies key,
 			InCollector<Operator, LTLTupleValue> in)
 	{
-		boolean[] sats = new boolean[m_traceLength];
-		for (int i = 0; i < m_traceLength; i++)
-			sats[i] = false;
+		BitSet[] sets = borrowScratch();
+		BitSet sats = sets[0];
 		Operator right_op = key.getRight();
-		int iteration = 0;
-		// We emit one output tuple for each state where &psi; is true 
-		while (in.hasNext())
+		int iteration = key.getDepth();
+		try
 		{
-			Tuple<Operator,LTLTupleValue> t = in.next();
-			// We must survive tuples whose subformula will be used at a later iteration
-			LTLTupleValue v = t.getValue();
-			if (key.getDepth() > v.getIteration())
+			// We emit one output tuple for each state where &psi; is true
+			while (in.hasNext())
 			{
-				out.collect(t);
-				while (in.hasNext())
-					out.collect(in.next());
-				return;
+				Tuple<Operator,LTLTupleValue> t = in.next();
+				// We must survive tuples whose subformula will be used at a later iteration
+				LTLTupleValue v = t.getValue();
+				if (key.getDepth() > v.getIteration())
+				{
+					out.collect(t);
+					while (in.hasNext())
+						out.collect(in.next());
+					return;
+				}
+				if (isMarker(v))
+					continue;
+				int state_no =  v.getStateNumber();
+				sats.set(state_no);
+				iteration = v.getIteration();
+				Operator op = v.getOperator();
+				if (right_op.equals(op))
+				{
+					Tuple<Operator,LTLTupleValue> out_t = new Tuple<Operator,LTLTupleValue>(key, new LTLTupleValue(null, state_no, v.getIteration()));
+					out.collect(out_t);
+				}
 			}
-			int state_no =  v.getStateNumber();
-			sats[state_no] = true;
-			iteration = v.getIteration();
-			Operator op = v.getOperator();
-			if (right_op.equals(op))
+			// We emit one output tuple for each state where we haven't seen neither
+			// &psi; nor &phi;: this leaves all states for which &phi; is false
+			for (int i = sats.nextClearBit(0); i < m_traceLength; i = sats.nextClearBit(i + 1))
 			{
-				Tuple<Operator,LTLTupleValue> out_t = new Tuple<Operator,LTLTupleValue>(key, new LTLTupleValue(null, state_no, v.getIteration()));
+				Tuple<Operator,LTLTupleValue> out_t = new Tuple<Operator,LTLTupleValue>(key, new LTLTupleValue(null, i, iteration));
 				out.collect(out_t);
 			}
 		}
-		// We emit one output tuple for each state where we haven't seen neither
-		// &psi; nor &phi;: this leaves all states for which &phi; is false
-		for (int i = 0; i < m_traceLength; i++)
+		finally
 		{
-			if (!sats[i])
-			{
-				Tuple<Operator,LTLTupleValue> out_t = new Tuple<Operator,LTLTupleValue>(key, new LTLTupleValue(null, i, iteration));
-				out.collect(out_t);
-			}
+			giveBack(sets);
 		}
 	}
 	
@@ -273,24 +441,30 @@ public class LTLReducer implements Reducer<Operator,LTLTupleValue>
 	private void reduce(OutCollector<Operator, LTLTupleValue> out, OperatorG key,
 			InCollector<Operator, LTLTupleValue> in)
 	{
-		boolean[] sats = new boolean[m_traceLength];
-		for (int i = 0; i < m_traceLength; i++)
-			sats[i] = false;
+		BitSet[] sets = borrowScratch();
+		BitSet sats = sets[0];
 		int iteration = 0;
-		while (in.hasNext())
+		try
 		{
-			Tuple<Operator,LTLTupleValue> t = in.next();
-			LTLTupleValue v = t.getValue();
-			iteration = v.getIteration();
-			int state_num = v.getStateNumber();
-			sats[state_num] = true;
+			while (in.hasNext())
+			{
+				Tuple<Operator,LTLTupleValue> t = in.next();
+				LTLTupleValue v = t.getValue();
+				iteration = v.getIteration();
+				int state_num = v.getStateNumber();
+				sats.set(state_num);
+			}
+			// G holds from the state following the last state where &phi; is false
+			int last_false = m_traceLength > 0 ? sats.previousClearBit(m_traceLength - 1) : -1;
+			for (int i = m_traceLength - 1; i > last_false; i--)
+			{
+				Tuple<Operator,LTLTupleValue> out_t = new Tuple<Operator,LTLTupleValue>(key, new LTLTupleValue(null, i, iteration));
+				out.collect(out_t);				
+			}
 		}
-		for (int i = m_traceLength - 1; i >= 0; i--)
+		finally
 		{
-			if (!sats[i])
-				break;
-			Tuple<Operator,LTLTupleValue> out_t = new Tuple<Operator,LTLTupleValue>(key, new LTLTupleValue(null, i, iteration));
-			out.collect(out_t);				
+			giveBack(sets);
 		}
 	}
 	
@@ -304,25 +478,38 @@ public class LTLReducer implements Reducer<Operator,LTLTupleValue>
 	private void reduce(OutCollector<Operator, LTLTupleValue> out, OperatorNot key,
 			InCollector<Operator, LTLTupleValue> in)
 	{
-		boolean[] sats = new boolean[m_traceLength];
-		for (int i = 0; i < m_traceLength; i++)
-			sats[i] = false;
-		int iteration = 0;
-		while (in.hasNext())
-		{
-			Tuple<Operator,LTLTupleValue> t = in.next();
-			LTLTupleValue v = t.getValue();
-			iteration = v.getIteration();
-			int state_num = v.getStateNumber();
-			sats[state_num] = true;
-		}
-		for (int i = 0; i < m_traceLength; i++)
+		BitSet[] sets = borrowScratch();
+		BitSet sats = sets[0];
+		int iteration = key.getDepth();
+		try
 		{
-			if (!sats[i])
+			while (in.hasNext())
+			{
+				Tuple<Operator,LTLTupleValue> t = in.next();
+				LTLTupleValue v = t.getValue();
+				// Only the marker of the key can arrive before its operand
+				if (key.getDepth() > v.getIteration())
+				{
+					out.collect(t);
+					while (in.hasNext())
+						out.collect(in.next());
+					return;
+				}
+				if (isMarker(v))
+					continue;
+				iteration = v.getIteration();
+				int state_num = v.getStateNumber();
+				sats.set(state_num);
+			}
+			for (int i = sats.nextClearBit(0); i < m_traceLength; i = sats.nextClearBit(i + 1))
 			{
 				Tuple<Operator,LTLTupleValue> out_t = new Tuple<Operator,LTLTupleValue>(key, new LTLTupleValue(null, i, iteration));
 				out.collect(out_t);
 			}
 		}
+		finally
+		{
+			giveBack(sets);
+		}
 	}
 }
@@ -0,0 +1,87 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Map phase of LTL trace validation when each tuple carries the whole
+ * truth set of a subformula (see {@link LTLSetValue}). The truth set of
+ * a subformula is sent to each of its parents, that keep it until all
+ * their operands are known (see {@link LTLSetReducer}). The truth set
+ * of the top-level formula has no parent, and is kept from one round
+ * to the next.
+ */
+public class LTLSetMapper implements Mapper<Operator,LTLSetValue>, Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The set of subformul&aelig; of the original LTL formula to verify
+	 */
+	protected Set<Operator> m_subformulas;
+	
+	/**
+	 * For each subformula, the subformul&aelig; that have it as an
+	 * operand
+	 */
+	protected Map<Operator,Operator[]> m_parents;
+	
+	public LTLSetMapper(Set<Operator> subformulas)
+	{
+		super();
+		m_subformulas = subformulas;
+		m_parents = LTLMapper.getParents(subformulas);
+	}
+	
+	public LTLSetMapper()
+	{
+		this(new HashSet<Operator>());
+	}
+	
+	@Override
+	public void map(OutCollector<Operator, LTLSetValue> c,
+			Tuple<Operator, LTLSetValue> t)
+	{
+		LTLSetValue v = t.getValue();
+		Operator k = t.getKey();
+		if (v.getOperator() != null)
+		{
+			// An operand of k waiting for the other one
+			c.collect(new Tuple<Operator,LTLSetValue>(k, new LTLSetValue(v.getOperator(), v.getStates(), v.getIteration() + 1)));
+			return;
+		}
+		Operator[] parents = m_parents.get(k);
+		if (parents == null)
+		{
+			// The top-level formula: keep its truth set
+			if (m_subformulas.contains(k))
+				c.collect(new Tuple<Operator,LTLSetValue>(k, new LTLSetValue(null, v.getStates(), v.getIteration() + 1)));
+			return;
+		}
+		for (Operator f : parents)
+		{
+			c.collect(new Tuple<Operator,LTLSetValue>(f, new LTLSetValue(k, v.getStates(), v.getIteration() + 1)));
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.io.Serializable;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Reduce phase of LTL trace validation when each tuple carries the
+ * whole truth set of a subformula (see {@link LTLSetValue}). Once the
+ * truth sets of all the operands of its key are in its input, the
+ * reducer computes the truth set of the key directly on the intervals:
+ * <ul>
+ * <li>&and; and &or; are the intersection and the union of the sets</li>
+ * <li>&not; is the complement, and &phi;&nbsp;&rarr;&nbsp;&psi; the
+ *   union of the complement of &phi; with &psi;</li>
+ * <li><b>X</b> shifts every state by one</li>
+ * <li><b>F</b> holds from the first state up to the last state where
+ *   &phi; holds</li>
+ * <li><b>G</b> holds on the last interval of &phi;, if it reaches the
+ *   end of the trace</li>
+ * </ul>
+ * Until then, the operands that are known are sent back unchanged.
+ * Each subformula is hence evaluated once, in a single job whose cost
+ * depends on the number of intervals rather than of states.
+ */
+public class LTLSetReducer implements Reducer<Operator,LTLSetValue>, Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	protected long m_traceLength;
+	
+	public LTLSetReducer(long trace_len)
+	{
+		super();
+		m_traceLength = trace_len;
+	}
+	
+	public LTLSetReducer()
+	{
+		this(0);
+	}
+	
+	@Override
+	public void reduce(OutCollector<Operator, LTLSetValue> out, Operator key,
+			InCollector<Operator, LTLSetValue> in)
+	{
+		in.rewind();
+		Operator left_op = null, right_op = null;
+		if (key instanceof BinaryOperator)
+		{
+			left_op = ((BinaryOperator) key).getLeft();
+			right_op = ((BinaryOperator) key).getRight();
+		}
+		else if (key instanceof UnaryOperator)
+		{
+			left_op = ((UnaryOperator) key).getOperand();
+		}
+		Tuple<Operator,LTLSetValue> left = null, right = null;
+		int iteration = 0;
+		while (in.hasNext())
+		{
+			Tuple<Operator,LTLSetValue> t = in.next();
+			LTLSetValue v = t.getValue();
+			Operator op = v.getOperator();
+			iteration = Math.max(iteration, v.getIteration());
+			if (op == null)
+			{
+				// The truth set of the key itself, already computed
+				out.collect(t);
+				continue;
+			}
+			if (op.equals(left_op))
+				left = t;
+			if (op.equals(right_op))
+				right = t;
+		}
+		if (left == null || (right_op != null && right == null))
+		{
+			// Some operand is not known yet: keep the others
+			if (left != null)
+				out.collect(left);
+			if (right != null)
+				out.collect(right);
+			return;
+		}
+		IntervalSet states = evaluate(key, left.getValue().getStates(), right == null ? null : right.getValue().getStates());
+		if (states != null)
+			out.collect(new Tuple<Operator,LTLSetValue>(key, new LTLSetValue(null, states, iteration)));
+	}
+	
+	/**
+	 * Computes the truth set of a formula from those of its operands
+	 * @param key The formula
+	 * @param left The truth set of its first (or only) operand
+	 * @param right The truth set of its second operand, if any
+	 * @return The truth set of the formula, or null if the operator is
+	 *   unknown
+	 */
+	protected IntervalSet evaluate(Operator key, IntervalSet left, IntervalSet right)
+	{
+		Class<?> c = key.getClass();
+		if (c == OperatorAnd.class)
+			return left.intersection(right);
+		if (c == OperatorOr.class)
+			return left.union(right);
+		if (c == OperatorImplies.class)
+			return left.complement(m_traceLength).union(right);
+		if (c == OperatorNot.class)
+			return left.complement(m_traceLength);
+		if (c == OperatorX.class)
+			return left.shift(-1);
+		if (c == OperatorF.class)
+			return IntervalSet.range(0, left.last() + 1);
+		if (c == OperatorG.class)
+		{
+			int n = left.getIntervalCount();
+			if (n == 0 || left.getEnd(n - 1) < m_traceLength)
+				return IntervalSet.EMPTY;
+			return IntervalSet.range(left.getStart(n - 1), m_traceLength);
+		}
+		return null;
+	}
+}
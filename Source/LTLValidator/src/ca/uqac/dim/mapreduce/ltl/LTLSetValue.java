@@ -0,0 +1,131 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.io.Serializable;
+
+/**
+ * Value of a tuple carrying the whole truth set of a subformula, used
+ * by {@link LTLSetMapper} and {@link LTLSetReducer}. Where an
+ * {@link LTLTupleValue} states that a formula holds in one state, this
+ * value gives all the states where it holds, as an {@link IntervalSet}.
+ * It contains:
+ * <ol>
+ * <li>An {@link Operator}, which may be null</li>
+ * <li>The set of states where the formula holds</li>
+ * <li>An integer containing the iteration number (in the
+ * cycle of map-reduce jobs)</li>
+ * </ol>
+ */
+public class LTLSetValue implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The LTL (sub)formula the states are about; null when they are
+	 * about the key of the tuple
+	 */
+	protected Operator m_operator;
+	
+	/**
+	 * The states where the formula holds
+	 */
+	protected IntervalSet m_states;
+	
+	/**
+	 * The iteration number this tuple value belongs to
+	 */
+	protected int m_iteration;
+	
+	/**
+	 * Builds and populates a new tuple value
+	 * @param o The LTL formula
+	 * @param states The states where it holds
+	 * @param i The iteration number
+	 */
+	public LTLSetValue(Operator o, IntervalSet states, int i)
+	{
+		super();
+		m_operator = o;
+		m_states = states;
+		m_iteration = i;
+	}
+	
+	/**
+	 * Returns the LTL formula associated to that tuple value
+	 * @return The LTL formula
+	 */
+	public Operator getOperator()
+	{
+		return m_operator;
+	}
+	
+	/**
+	 * Returns the states where the formula holds
+	 * @return The states
+	 */
+	public IntervalSet getStates()
+	{
+		return m_states;
+	}
+	
+	/**
+	 * Returns the iteration number associated to that tuple value
+	 * @return The iteration number
+	 */
+	public int getIteration()
+	{
+		return m_iteration;
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuffer out = new StringBuffer();
+		out.append("\u2329");
+		if (m_operator == null)
+			out.append("\u2205");
+		else
+			out.append(m_operator);
+		out.append(",").append(m_states);
+		out.append(",").append(m_iteration);
+		out.append("\u232A");
+		return out.toString();
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		if (m_operator == null)
+			return m_states.hashCode() + m_iteration;
+		return m_states.hashCode() + m_iteration + m_operator.hashCode();
+	}
+	
+	@Override
+	public boolean equals(Object o)
+	{
+		if (o == null || o.getClass() != this.getClass())
+			return false;
+		LTLSetValue v = (LTLSetValue) o;
+		if (m_iteration != v.m_iteration || !m_states.equals(v.m_states))
+			return false;
+		if (m_operator == null)
+			return v.m_operator == null;
+		return m_operator.equals(v.m_operator);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Set;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Writes LTL tuples to a binary stream and reads them back, in a compact
+ * form. The operators are not written themselves: each subformula of
+ * the property is given a number, in the order of their numbers in the
+ * {@link OperatorFactory}. The serializer carries its subformul&aelig;
+ * when it is itself serialized, so that the copy sent to another
+ * process agrees on these numbers. A tuple is then written as four
+ * variable-length integers (see {@link VarInts}): the number of its key,
+ * the number of the operator of its value plus one (zero standing for
+ * no operator), and the differences between its state and iteration
+ * numbers and those of the previous tuple of the stream. Since the
+ * tuples of a stream usually come from neighbouring states of the same
+ * iteration, a tuple most often takes four bytes.
+ */
+public class LTLTupleSerializer implements TupleSerializer<Operator,LTLTupleValue>, Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The subformul&aelig;, indexed by their number
+	 */
+	protected Operator[] m_operators;
+	
+	/**
+	 * The number of each subformula, indexed by the number of its
+	 * canonical copy (see {@link OperatorFactory#index}). The canonical
+	 * numbers differ from one process to the other, so the index is
+	 * rebuilt when the serializer is deserialized.
+	 */
+	protected transient int[] m_index;
+	
+	/**
+	 * The state number of the previous tuple of the stream
+	 */
+	private int m_lastState = 0;
+	
+	/**
+	 * The iteration number of the previous tuple of the stream
+	 */
+	private int m_lastIteration = 0;
+	
+	public LTLTupleSerializer(Set<Operator> subformulas)
+	{
+		super();
+		m_operators = OperatorFactory.sort(subformulas);
+		m_index = OperatorFactory.index(m_operators);
+	}
+	
+	/**
+	 * Creates a serializer that shares the subformula numbers of
+	 * another one
+	 * @param s The other serializer
+	 */
+	protected LTLTupleSerializer(LTLTupleSerializer s)
+	{
+		super();
+		m_operators = s.m_operators;
+		m_index = s.m_index;
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		// The subformulas were interned again when read
+		m_index = OperatorFactory.index(m_operators);
+	}
+	
+	@Override
+	public void write(DataOutput out, Tuple<Operator,LTLTupleValue> t) throws IOException
+	{
+		LTLTupleValue v = t.getValue();
+		VarInts.writeUnsigned(out, getId(t.getKey()));
+		if (v.getOperator() == null)
+			VarInts.writeUnsigned(out, 0);
+		else
+			VarInts.writeUnsigned(out, getId(v.getOperator()) + 1);
+		VarInts.writeSigned(out, (long) v.getStateNumber() - m_lastState);
+		VarInts.writeSigned(out, (long) v.getIteration() - m_lastIteration);
+		m_lastState = v.getStateNumber();
+		m_lastIteration = v.getIteration();
+	}
+	
+	@Override
+	public Tuple<Operator,LTLTupleValue> read(DataInput in) throws IOException
+	{
+		Operator key = getOperator(readId(in));
+		int op_id = readId(in);
+		Operator op = null;
+		if (op_id > 0)
+			op = getOperator(op_id - 1);
+		m_lastState += (int) VarInts.readSigned(in);
+		m_lastIteration += (int) VarInts.readSigned(in);
+		return new LTLTuple(key, new LTLTupleValue(op, m_lastState, m_lastIteration));
+	}
+	
+	@Override
+	public LTLTupleSerializer newInstance()
+	{
+		return new LTLTupleSerializer(this);
+	}
+	
+	/**
+	 * Reads a subformula number
+	 * @param in The stream to read from
+	 * @return The number
+	 * @throws IOException If the number cannot be read
+	 */
+	private static int readId(DataInput in) throws IOException
+	{
+		long id = VarInts.readUnsigned(in);
+		if (id > Integer.MAX_VALUE)
+			throw new IOException("Unknown subformula number " + id);
+		return (int) id;
+	}
+	
+	/**
+	 * Returns the number of a subformula
+	 * @param o The subformula
+	 * @return Its number
+	 * @throws IOException If the operator is not a subformula of the
+	 * property
+	 */
+	protected int getId(Operator o) throws IOException
+	{
+		int id = OperatorFactory.indexOf(m_index, o);
+		if (id < 0)
+			throw new IOException("Unknown subformula " + o);
+		return id;
+	}
+	
+	/**
+	 * Returns the subformula with a given number
+	 * @param id The number
+	 * @return The subformula
+	 * @throws IOException If no subformula has this number
+	 */
+	protected Operator getOperator(int id) throws IOException
+	{
+		if (id < 0 || id >= m_operators.length)
+			throw new IOException("Unknown subformula number " + id);
+		return m_operators[id];
+	}
+}
@@ -75,7 +75,7 @@ public class LTLTupleValue
 	/**
 	 * Determines whether the operator in the current tuple
 	 * is the same as the one passed as parameter. This is computed
-	 * using {@link Operator.equals} method. 
+	 * using {@link Operator#equals} method. 
 	 * @param o The Operator to compare
 	 * @return true if they are identical, false otherwise
 	 */
@@ -91,7 +91,7 @@ public class LTLTupleValue
 	 * Determines whether the operator in the current tuple
 	 * is the same as the one in the tuple value
 	 * passed as parameter. This is computed
-	 * using {@link Operator.equals} method. 
+	 * using {@link Operator#equals} method. 
 	 * @param o The Operator to compare
 	 * @return true if they are identical, false otherwise
 	 */
@@ -147,6 +147,8 @@ public class LTLTupleValue
 	@Override
 	public int hashCode()
 	{
+		if (m_operator == null)
+			return m_stateNumber + m_iteration;
 		return m_stateNumber + m_iteration + m_operator.hashCode();
 	}
 	
@@ -168,7 +170,7 @@ public class LTLTupleValue
 			return false;
 		if (m_iteration != v.m_iteration)
 			return false;
-		if (!m_operator.equals(v.m_operator))
+		if (!sameOperator(v))
 			return false;
 		return true;
 	}
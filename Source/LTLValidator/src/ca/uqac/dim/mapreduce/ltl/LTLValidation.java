@@ -18,6 +18,7 @@
 
 package ca.uqac.dim.mapreduce.ltl;
 import java.util.Set;
+import java.util.function.Predicate;
 
 import ca.uqac.dim.mapreduce.*;
 
@@ -38,6 +39,7 @@ public class LTLValidation
 	private static final String app_name = "ltlmapreduce [options]";
 	private static final String app_version = "1.0";
 	public static final int ERR_ARGUMENTS = 4;
+	public static final int ERR_PARITY = 5;
 	
 	private static int m_verbosity = 0;
 
@@ -63,6 +65,15 @@ public class LTLValidation
 		options.addOption(opt);
 		opt = OptionBuilder.withLongOpt("redirection").withArgName("x").hasArg().withDescription("Set the redirection file for the System.out").create("r");
 	    options.addOption(opt);
+	    options.addOption("c", "combiner", false, "Combine the output of each mapper before the shuffle");
+	    opt = OptionBuilder.withLongOpt("budget").withArgName("x").hasArg().withDescription("Keep at most x tuples of the shuffle in memory, and spill the others to disk").create("b");
+	    options.addOption(opt);
+	    opt = OptionBuilder.withLongOpt("storage").withArgName("x").hasArg().withDescription("Store the tuples of collectors in x: chunked (default) or linked lists, or packed longs").create("s");
+	    options.addOption(opt);
+	    options.addOption("o", "ordered", false, "Deliver the input of each reducer sorted by state number");
+	    options.addOption("x", "intervals", false, "Carry the truth set of each subformula as a single set of intervals of states");
+	    options.addOption("a", "bitvector", false, "Evaluate the formula on bit vectors of the trace instead of MapReduce rounds");
+	    options.addOption("y", "parity", false, "Check the truth set of the formula in every state against the bit-vector engine");
 		CommandLine c_line = parseCommandLine(options, args);
 		
 		String redirectionFile = "";
@@ -108,6 +119,33 @@ public class LTLValidation
 		
 		if (c_line.hasOption("v"))
 			m_verbosity = Integer.parseInt(c_line.getOptionValue("v"));
+		int spill_budget = 0;
+		if (c_line.hasOption("b"))
+			spill_budget = Integer.parseInt(c_line.getOptionValue("b"));
+		if (c_line.hasOption("a") && c_line.hasOption("x"))
+		{
+			System.err.println("Bit vectors (-a) and intervals (-x) cannot be combined");
+			System.exit(ERR_ARGUMENTS);
+		}
+		if (c_line.hasOption("x") && (c_line.hasOption("c") || c_line.hasOption("b") || c_line.hasOption("o")
+				|| "packed".equalsIgnoreCase(c_line.getOptionValue("s"))))
+		{
+			System.err.println("Intervals cannot be combined with -c, -b, -o or packed storage");
+			System.exit(ERR_ARGUMENTS);
+		}
+		if (c_line.hasOption("s"))
+		{
+			String storage = c_line.getOptionValue("s");
+			if (storage.equalsIgnoreCase("linked"))
+				Collector.setDefaultFactory(new LinkedCollectorFactory());
+			else if (storage.equalsIgnoreCase("chunked"))
+				Collector.setDefaultFactory(new ChunkedCollectorFactory());
+			else if (!storage.equalsIgnoreCase("packed"))
+			{
+				System.err.println("Unknown storage " + storage);
+				System.exit(ERR_ARGUMENTS);
+			}
+		}
 
 		// Obtain the property to verify and break into subformulas
 		Operator property = null;
@@ -128,32 +166,56 @@ public class LTLValidation
 				System.exit(1);
 			}
 		}
+		// Share the common subformulas and number them
+		property = OperatorFactory.intern(property);
 		Set<Operator> subformulas = property.getSubformulas();
+		PackedCollectorFactory packed = null;
+		if (c_line.hasOption("s") && c_line.getOptionValue("s").equalsIgnoreCase("packed"))
+		{
+			// The tuples are packed using the numbers of the subformulas
+			packed = new PackedCollectorFactory(subformulas);
+			Collector.setDefaultFactory(packed);
+		}
 		
 		// Initialize first collector depending on input file format
 		int max_loops = property.getDepth();
 		int max_tuples_total = 0, total_tuples_total = 0;
 		long time_begin = System.nanoTime();
+		// With -x or -a, the parser fills the truth sets of the atoms
+		// directly; with -x and -y, it fills the bit vectors alongside
+		IntervalTraceCollector intervals = null;
+		BitVectorEvaluator evaluator = null;
+		TraceSink sink = null;
+		if (c_line.hasOption("x"))
+		{
+			intervals = new IntervalTraceCollector(subformulas);
+			sink = intervals;
+		}
+		if (c_line.hasOption("a") || (c_line.hasOption("x") && c_line.hasOption("y")))
+		{
+			evaluator = new BitVectorEvaluator();
+			sink = (sink == null) ? evaluator : new TraceSink.Tee(sink, evaluator);
+		}
 		TraceCollector initial_collector = null;
 		{
 			File in_file = new File(trace_filename);
 			if (trace_format.compareToIgnoreCase(".txt") == 0)
 			{
-				initial_collector = new CharacterTraceCollector(in_file, subformulas);
+				initial_collector = new CharacterTraceCollector(in_file, subformulas, sink);
 			}
 			else if (trace_format.compareToIgnoreCase(".xml") == 0)
 			{
 				if(ParserType.equals("Dom"))
 				{
-					initial_collector = new XmlDomTraceCollector(in_file, subformulas);
+					initial_collector = new XmlDomTraceCollector(in_file, subformulas, sink);
 				}
 				else if(ParserType.equals("Sax"))
 				{
-					initial_collector = new XmlSaxTraceCollector(in_file, subformulas);
+					initial_collector = new XmlSaxTraceCollector(in_file, subformulas, sink);
 				}
 				else
 				{
-					initial_collector = new XmlSaxTraceCollector(in_file, subformulas);
+					initial_collector = new XmlSaxTraceCollector(in_file, subformulas, sink);
 				}
 			}
 		}
@@ -164,15 +226,76 @@ public class LTLValidation
 		}
 		
 		// Start workflow
-		int trace_len = initial_collector.getTraceLength();
+		long trace_len = initial_collector.getTraceLength();
+		if ((intervals == null || c_line.hasOption("y")) && trace_len > Integer.MAX_VALUE)
+		{
+			System.err.println("ERROR: traces longer than " + Integer.MAX_VALUE + " events can only be checked with -x, without -y");
+			System.exit(ERR_ARGUMENTS);
+		}
 		InCollector<Operator,LTLTupleValue> loop_collector = initial_collector;
 		print(System.out, property.toString(), 2);
 		print(System.out, loop_collector.toString(), 3);
-		for (int i = 0; i < max_loops; i++)
+		if (c_line.hasOption("a"))
+		{
+			// Evaluate the whole formula at once, 64 states at a time
+			evaluator.finish((int) trace_len);
+			printResult(evaluator.getVerdict(property), trace_len, 0, 0, time_begin);
+			return;
+		}
+		if (intervals != null)
+		{
+			// Each subformula travels as a single set of intervals
+			intervals.finish(trace_len);
+			if (evaluator != null)
+				evaluator.finish((int) trace_len);
+			InCollector<Operator,LTLSetValue> set_collector = intervals;
+			SequentialWorkflow<Operator,LTLSetValue> sw = new SequentialWorkflow<Operator,LTLSetValue>(new LTLSetMapper(subformulas), new LTLSetReducer(trace_len), set_collector);
+			IterativeWorkflow<Operator,LTLSetValue> set_loops = new IterativeWorkflow<Operator,LTLSetValue>(sw, set_collector, max_loops);
+			while (!set_loops.isOver())
+			{
+				print(System.out, "Loop " + set_loops.getRound(), 2);
+				set_collector = set_loops.nextRound();
+				max_tuples_total += sw.getMaxTuples();
+				total_tuples_total += sw.getTotalTuples();
+				if (m_verbosity >= 3)
+					print(System.out, set_collector.toString(), 3);
+			}
+			if (evaluator != null)
+				checkParity(evaluator.firstDifference(property, getTruthSet(set_collector, property)));
+			printResult(getSetVerdict(set_collector, property), trace_len, max_tuples_total, total_tuples_total, time_begin);
+			return;
+		}
+		// The bit vectors are read from the trace before the rounds use it
+		if (c_line.hasOption("y"))
+			evaluator = new BitVectorEvaluator(initial_collector, (int) trace_len);
+		// The reducers of the negations and implications must run even
+		// when their operands hold nowhere
+		LTLReducer.addMarkers(initial_collector, subformulas);
+		// The same workflow runs every loop, each on the output of the previous one
+		LTLReducer reducer = new LTLReducer(subformulas, (int) trace_len);
+		ReusableWorkflow<Operator,LTLTupleValue> w = null;
+		if (packed != null && !c_line.hasOption("c") && spill_budget <= 0 && !c_line.hasOption("o"))
+		{
+			// The packed tuples are mapped and reduced without being decoded
+			w = new PackedWorkflow(packed, (int) trace_len, loop_collector);
+		}
+		else
 		{
-			print(System.out, "Loop " + i, 2);
-			LTLSequentialWorkflow w = new LTLSequentialWorkflow(new LTLMapper(subformulas), new LTLReducer(subformulas, trace_len), loop_collector);
-			loop_collector = w.run();
+			LTLSequentialWorkflow sw = new LTLSequentialWorkflow(new LTLMapper(subformulas), reducer, loop_collector);
+			if (c_line.hasOption("c"))
+				sw.setCombiner(new LTLCombiner());
+			if (spill_budget > 0)
+				sw.setSpill(spill_budget, new LTLTupleSerializer(subformulas));
+			if (c_line.hasOption("o"))
+				sw.setValueComparator(new StateComparator());
+			w = sw;
+		}
+		IterativeWorkflow<Operator,LTLTupleValue> loops = new IterativeWorkflow<Operator,LTLTupleValue>(w, loop_collector, max_loops);
+		while (!loops.isOver())
+		{
+			print(System.out, "Loop " + loops.getRound(), 2);
+			loop_collector = loops.nextRound();
+			reducer.release();
 			max_tuples_total += w.getMaxTuples();
 			total_tuples_total += w.getTotalTuples();
 			
@@ -182,12 +305,27 @@ public class LTLValidation
 			}
 			
 		}
-		boolean result = getVerdict(loop_collector, property);
+		if (evaluator != null)
+			checkParity(evaluator.firstDifference(property, loop_collector));
+		printResult(getVerdict(loop_collector, property), trace_len, max_tuples_total, total_tuples_total, time_begin);
+	}
+	
+	/**
+	 * Prints the verdict and the statistics of a run
+	 * @param result The verdict
+	 * @param trace_len The length of the trace
+	 * @param max_tuples_total The sum of the maximum number of tuples of each loop
+	 * @param total_tuples_total The total number of tuples of all the loops
+	 * @param time_begin The time the run started, in nanoseconds
+	 */
+	private static void printResult(boolean result, long trace_len, int max_tuples_total, int total_tuples_total, long time_begin)
+	{
 		long time_end = System.nanoTime();
 		if (result)
 			print(System.out, "Formula is true", 1);
 		else
 			print(System.out, "Formula is false", 1);
+		print(System.out, Metrics.getGlobal().toString(), 2);
 		
 		long time_total = (time_end - time_begin) / 1000000;
 		System.out.println(trace_len + "," + max_tuples_total + "," + total_tuples_total + "," + time_total);
@@ -202,25 +340,74 @@ public class LTLValidation
 	 * @param formula
 	 * @return
 	 */
-	private static boolean getVerdict(InCollector<Operator,LTLTupleValue> c, Operator formula)
+	private static boolean getVerdict(InCollector<Operator,LTLTupleValue> c, final Operator formula)
 	{
-		c.rewind();
-		while (c.hasNext())
+		return c.stream().anyMatch(new Predicate<Tuple<Operator,LTLTupleValue>>()
 		{
-			Tuple<Operator,LTLTupleValue> t = c.next();
-			Operator k = t.getKey();
-			if (k.equals(formula))
+			@Override
+			public boolean test(Tuple<Operator,LTLTupleValue> t)
 			{
-				LTLTupleValue v = t.getValue();
-				if (v.getOperator() == null && v.getStateNumber() == 0)
+				Operator k = t.getKey();
+				if (k.equals(formula))
 				{
-					return true;
+					LTLTupleValue v = t.getValue();
+					if (v.getOperator() == null && v.getStateNumber() == 0)
+					{
+						return true;
+					}
 				}
+				return false;
 			}
+		});
+	}
+	
+	
+	/**
+	 * Checks whether the output collector contains a tuple giving the
+	 * truth set of the top-level formula, and whether that set contains
+	 * the first message of the trace.
+	 * @param c The output of the last loop
+	 * @param formula The formula to verify
+	 * @return true if the formula is true on the first message
+	 */
+	private static boolean getSetVerdict(InCollector<Operator,LTLSetValue> c, Operator formula)
+	{
+		return getTruthSet(c, formula).contains(0);
+	}
+	
+	/**
+	 * Finds the truth set of the top-level formula in the output
+	 * collector
+	 * @param c The output of the last loop
+	 * @param formula The formula to verify
+	 * @return The states where the formula holds, or an empty set if
+	 *   the collector has no truth set for it
+	 */
+	private static IntervalSet getTruthSet(InCollector<Operator,LTLSetValue> c, Operator formula)
+	{
+		c.rewind();
+		while (c.hasNext())
+		{
+			Tuple<Operator,LTLSetValue> t = c.next();
+			LTLSetValue v = t.getValue();
+			if (t.getKey().equals(formula) && v.getOperator() == null)
+				return v.getStates();
 		}
-		return false;
+		return IntervalSet.EMPTY;
 	}
 	
+	/**
+	 * Stops with an error if the MapReduce rounds and the bit-vector
+	 * engine disagree on the truth value of the formula in some state
+	 * @param state The first state where they differ, or -1
+	 */
+	private static void checkParity(long state)
+	{
+		if (state < 0)
+			return;
+		System.err.println("ERROR: the bit-vector engine disagrees on the formula in state " + state);
+		System.exit(ERR_PARITY);
+	}
 	
 	/**
 	 * Computes the extension of a filename
@@ -17,6 +17,8 @@
  */
 package ca.uqac.dim.mapreduce.ltl;
 
+import java.io.ObjectStreamException;
+import java.io.Serializable;
 import java.util.Set;
 
 /**
@@ -27,8 +29,26 @@ import java.util.Set;
  * @author sylvain
  *
  */
-public abstract class Operator
+public abstract class Operator implements Serializable
 {
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The number given to the operator by the {@link OperatorFactory},
+	 * or -1 if the operator has not been interned
+	 */
+	protected int m_id = -1;
+	
+	/**
+	 * The hash code of the operator, computed once when it is interned
+	 */
+	protected int m_hash;
+	
+	/**
+	 * The depth of the operator, computed once when it is interned
+	 */
+	protected int m_depth;
+	
 	public abstract boolean hasOperand(Operator o);
 	
 	public abstract Set<Operator> getSubformulas();
@@ -37,6 +57,52 @@ public abstract class Operator
 	
 	public abstract int getDepth();
 	
+	/**
+	 * Returns the number given to this operator by the
+	 * {@link OperatorFactory}. The numbers of the interned operators
+	 * are dense, starting at 0.
+	 * @return The number, or -1 if the operator is not interned
+	 */
+	public final int getId()
+	{
+		return m_id;
+	}
+	
+	/**
+	 * Tells whether this operator is the canonical copy kept by the
+	 * {@link OperatorFactory}. Two interned operators are equal only
+	 * if they are the same object.
+	 * @return true if the operator is interned
+	 */
+	public final boolean isInterned()
+	{
+		return m_id >= 0;
+	}
+	
+	/**
+	 * Called by the setters: an interned operator is shared by every
+	 * formula that contains it, and cannot be modified.
+	 */
+	protected final void checkMutable()
+	{
+		if (m_id >= 0)
+			throw new IllegalStateException("Cannot modify an interned operator");
+	}
+	
+	/**
+	 * An interned operator read from a stream is replaced by the
+	 * canonical copy of the receiving virtual machine, so that
+	 * equality stays a matter of identity there too. Its operands
+	 * have already been resolved when this is called.
+	 */
+	protected Object readResolve() throws ObjectStreamException
+	{
+		if (m_id < 0)
+			return this;
+		m_id = -1;
+		return OperatorFactory.intern(this);
+	}
+	
 	public static Operator parseFromString(String s) throws ParseException
 	{
 		s = s.trim();
@@ -19,6 +19,8 @@ package ca.uqac.dim.mapreduce.ltl;
 
 public class OperatorAnd extends BinaryOperator
 {
+	private static final long serialVersionUID = 1L;
+	
 	private static final String SYMBOL = "\u2227"; //"∧";
 	
 	public OperatorAnd()
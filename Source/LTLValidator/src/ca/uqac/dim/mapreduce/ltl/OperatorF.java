@@ -19,6 +19,8 @@ package ca.uqac.dim.mapreduce.ltl;
 
 public class OperatorF extends UnaryOperator
 {
+	private static final long serialVersionUID = 1L;
+	
 	private static final String SYMBOL = "F";
 
 	public OperatorF()
@@ -0,0 +1,300 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash-consing of LTL formul&aelig;. The factory keeps a single
+ * canonical copy of every operator it has seen: interning a formula
+ * replaces each of its subformul&aelig; by the copy already known, if
+ * any, so that the formul&aelig; of a run share their common parts in
+ * a DAG. The canonical operators receive a dense number, and their hash
+ * code and depth are computed once; two interned operators are equal
+ * only if they are the same object.
+ * <p>
+ * Operators are identified by their class and the numbers of their
+ * operands (or their symbol, for atoms); the operands of the commutative
+ * connectives are taken in any order, so that <i>a</i>&nbsp;&and;&nbsp;<i>b</i>
+ * and <i>b</i>&nbsp;&and;&nbsp;<i>a</i> are the same operator. Interned
+ * operators can no longer be modified.
+ */
+public final class OperatorFactory
+{
+	/**
+	 * The canonical operators, indexed by their description. It is only
+	 * written to by {@link #intern}, but read without a lock by
+	 * {@link #find}.
+	 */
+	private static final Map<Key,Operator> s_table = new ConcurrentHashMap<Key,Operator>();
+	
+	/**
+	 * The canonical operators, indexed by their number
+	 */
+	private static final List<Operator> s_operators = new ArrayList<Operator>();
+	
+	private OperatorFactory()
+	{
+		super();
+	}
+	
+	/**
+	 * Returns the canonical copy of a formula. The operands of the
+	 * formula are interned first; the nodes of <code>o</code> that have
+	 * no canonical copy yet become the canonical copy.
+	 * @param o The formula
+	 * @return The canonical formula
+	 */
+	public static synchronized Operator intern(Operator o)
+	{
+		if (o.m_id >= 0)
+			return o;
+		Key k;
+		if (o instanceof BinaryOperator)
+		{
+			BinaryOperator bo = (BinaryOperator) o;
+			bo.m_left = intern(bo.m_left);
+			bo.m_right = intern(bo.m_right);
+			k = newKey(o, bo.m_left, bo.m_right);
+		}
+		else if (o instanceof UnaryOperator)
+		{
+			UnaryOperator uo = (UnaryOperator) o;
+			uo.m_operand = intern(uo.m_operand);
+			k = newKey(o, uo.m_operand, null);
+		}
+		else
+		{
+			k = newKey(o, null, null);
+		}
+		Operator canonical = s_table.get(k);
+		if (canonical != null)
+			return canonical;
+		// The operands are interned, so this takes constant time
+		o.m_hash = o.hashCode();
+		o.m_depth = o.getDepth();
+		o.m_id = s_operators.size();
+		s_operators.add(o);
+		s_table.put(k, o);
+		return o;
+	}
+	
+	/**
+	 * Returns the canonical copy of a formula, if it has one. Unlike
+	 * {@link #intern}, this neither takes a lock nor modifies the
+	 * formula or the table of canonical operators.
+	 * @param o The formula
+	 * @return The canonical formula, or null if it has not been
+	 * interned
+	 */
+	public static Operator find(Operator o)
+	{
+		if (o.m_id >= 0)
+			return o;
+		if (o instanceof BinaryOperator)
+		{
+			BinaryOperator bo = (BinaryOperator) o;
+			Operator left = find(bo.m_left);
+			if (left == null)
+				return null;
+			Operator right = find(bo.m_right);
+			if (right == null)
+				return null;
+			return s_table.get(newKey(o, left, right));
+		}
+		if (o instanceof UnaryOperator)
+		{
+			Operator operand = find(((UnaryOperator) o).m_operand);
+			if (operand == null)
+				return null;
+			return s_table.get(newKey(o, operand, null));
+		}
+		return s_table.get(newKey(o, null, null));
+	}
+	
+	/**
+	 * Describes an operator, given the canonical copies of its operands
+	 * @param o The operator
+	 * @param first Its first operand, or null for an atom
+	 * @param second Its second operand, or null for an atom or a unary
+	 * operator
+	 * @return The description of the operator
+	 */
+	private static Key newKey(Operator o, Operator first, Operator second)
+	{
+		if (first == null)
+			return new Key(o.getClass(), o.toString(), -1, -1);
+		if (second == null)
+			return new Key(o.getClass(), null, first.m_id, -1);
+		int left = first.m_id, right = second.m_id;
+		if (((BinaryOperator) o).m_commutes && left > right)
+			return new Key(o.getClass(), null, right, left);
+		return new Key(o.getClass(), null, left, right);
+	}
+	
+	/**
+	 * Parses a formula and interns it.
+	 * @see Operator#parseFromString(String)
+	 * @param s The formula
+	 * @return The canonical formula
+	 * @throws Operator.ParseException If the formula cannot be parsed
+	 */
+	public static Operator parse(String s) throws Operator.ParseException
+	{
+		return intern(Operator.parseFromString(s));
+	}
+	
+	/**
+	 * Returns the interned operator with a given number.
+	 * @param id The number
+	 * @return The operator
+	 */
+	public static synchronized Operator get(int id)
+	{
+		return s_operators.get(id);
+	}
+	
+	/**
+	 * Returns the number of interned operators. Their numbers range
+	 * from 0 to this value minus one.
+	 * @return The number of operators
+	 */
+	public static synchronized int size()
+	{
+		return s_operators.size();
+	}
+	
+	/**
+	 * Interns a set of operators and sorts them in the order of their
+	 * numbers. This gives the operators of a property local numbers
+	 * (their positions in the array) that only depend on the order in
+	 * which they were interned.
+	 * @param operators The operators
+	 * @return The canonical operators, without duplicates, sorted by
+	 * number
+	 */
+	public static Operator[] sort(Collection<Operator> operators)
+	{
+		Set<Operator> out = new HashSet<Operator>();
+		for (Operator o : operators)
+			out.add(intern(o));
+		Operator[] sorted = out.toArray(new Operator[out.size()]);
+		Arrays.sort(sorted, new Comparator<Operator>()
+		{
+			@Override
+			public int compare(Operator o1, Operator o2)
+			{
+				return o1.m_id - o2.m_id;
+			}
+		});
+		return sorted;
+	}
+	
+	/**
+	 * Maps the numbers of interned operators to their positions in an
+	 * array, as returned by {@link #sort}.
+	 * @param operators The interned operators
+	 * @return An array giving, for each operator number, the position
+	 * of the operator in <code>operators</code>, or -1 if it is not
+	 * there
+	 */
+	public static int[] index(Operator[] operators)
+	{
+		int length = 0;
+		for (Operator o : operators)
+			length = Math.max(length, o.m_id + 1);
+		int[] index = new int[length];
+		Arrays.fill(index, -1);
+		for (int i = 0; i < operators.length; i++)
+			index[operators[i].m_id] = i;
+		return index;
+	}
+	
+	/**
+	 * Returns the position of an operator in an array sorted by
+	 * {@link #sort}, given the index of the array. An operator that is
+	 * not interned is looked up through its canonical copy (see
+	 * {@link #find}); this takes no lock.
+	 * @param index The index of the array, as returned by {@link #index}
+	 * @param o The operator
+	 * @return The position of the operator, or -1 if it is not in the
+	 * array
+	 */
+	public static int indexOf(int[] index, Operator o)
+	{
+		if (o.m_id < 0)
+		{
+			o = find(o);
+			if (o == null)
+				return -1;
+		}
+		if (o.m_id >= index.length)
+			return -1;
+		return index[o.m_id];
+	}
+	
+	/**
+	 * Description of an operator, used to find its canonical copy
+	 */
+	private static final class Key
+	{
+		private final Class<?> m_class;
+		private final String m_symbol;
+		private final int m_first;
+		private final int m_second;
+		
+		Key(Class<?> c, String symbol, int first, int second)
+		{
+			super();
+			m_class = c;
+			m_symbol = symbol;
+			m_first = first;
+			m_second = second;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			int h = m_class.hashCode() + 31 * m_first + 961 * m_second;
+			if (m_symbol != null)
+				h += m_symbol.hashCode();
+			return h;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			if (m_class != k.m_class || m_first != k.m_first || m_second != k.m_second)
+				return false;
+			if (m_symbol == null)
+				return k.m_symbol == null;
+			return m_symbol.equals(k.m_symbol);
+		}
+	}
+}
@@ -19,6 +19,8 @@ package ca.uqac.dim.mapreduce.ltl;
 
 public class OperatorNot extends UnaryOperator
 {
+	private static final long serialVersionUID = 1L;
+	
 	private static final String SYMBOL = "\u00AC";
 
 	public OperatorNot()
@@ -0,0 +1,209 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.util.List;
+import java.util.Set;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Factory of collectors that store LTL tuples as packed primitives (see
+ * {@link PackedTupleList}), rather than as a few objects per tuple. The
+ * subformul&aelig; of the property are numbered once, in the order of
+ * their numbers in the {@link OperatorFactory}, and a tuple is encoded in a single
+ * <code>long</code>, from the most significant bits down:
+ * <ul>
+ * <li>12 bits: the number of its key</li>
+ * <li>12 bits: the number of the operator of its value plus one (zero
+ *   standing for no operator)</li>
+ * <li>8 bits: its iteration number</li>
+ * <li>32 bits: its state number</li>
+ * </ul>
+ * This factory must only be given to the collectors of LTL tuples
+ * whose operators are subformul&aelig; of the property it was built
+ * from.
+ */
+public class PackedCollectorFactory implements CollectorFactory
+{
+	/**
+	 * The maximum number of subformul&aelig; of a property
+	 */
+	public static final int MAX_SUBFORMULAS = (1 << 12) - 1;
+	
+	/**
+	 * The maximum iteration number of a tuple
+	 */
+	public static final int MAX_ITERATION = (1 << 8) - 1;
+	
+	/**
+	 * The subformul&aelig;, indexed by their number
+	 */
+	private final Operator[] m_operators;
+	
+	/**
+	 * The number of each subformula, indexed by the number of its
+	 * canonical copy (see {@link OperatorFactory#index})
+	 */
+	private final int[] m_index;
+	
+	/**
+	 * Create an instance of PackedCollectorFactory
+	 * @param subformulas The subformul&aelig; of the property
+	 */
+	public PackedCollectorFactory(Set<Operator> subformulas)
+	{
+		super();
+		m_operators = OperatorFactory.sort(subformulas);
+		if (m_operators.length > MAX_SUBFORMULAS)
+			throw new IllegalArgumentException("A property can have at most " + MAX_SUBFORMULAS + " subformulas");
+		m_index = OperatorFactory.index(m_operators);
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public <K,V> List<Tuple<K,V>> newStorage()
+	{
+		List<?> list = new PackedTupleList(this);
+		return (List<Tuple<K,V>>) list;
+	}
+	
+	/**
+	 * Encodes a tuple
+	 * @param t The tuple
+	 * @return The tuple, packed in a long
+	 * @throws IllegalArgumentException If the tuple cannot be encoded
+	 */
+	public long encode(Tuple<Operator,LTLTupleValue> t)
+	{
+		LTLTupleValue v = t.getValue();
+		int op_id = 0;
+		if (v.getOperator() != null)
+			op_id = getId(v.getOperator()) + 1;
+		return pack(getId(t.getKey()), op_id, v.getIteration(), v.getStateNumber());
+	}
+	
+	/**
+	 * Packs a tuple given by the numbers of its parts
+	 * @param key_id The number of the key
+	 * @param op_id The number of the operator of the value plus one, or
+	 *   0 for no operator
+	 * @param iteration The iteration number
+	 * @param state The state number
+	 * @return The tuple, packed in a long
+	 * @throws IllegalArgumentException If the iteration cannot be packed
+	 */
+	public static long pack(int key_id, int op_id, int iteration, int state)
+	{
+		if (iteration < 0 || iteration > MAX_ITERATION)
+			throw new IllegalArgumentException("Iteration " + iteration + " cannot be packed");
+		return ((long) key_id << 52) | ((long) op_id << 40)
+			| ((long) iteration << 32) | (state & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Decodes a tuple
+	 * @param packed The tuple, packed in a long
+	 * @return The tuple
+	 */
+	public Tuple<Operator,LTLTupleValue> decode(long packed)
+	{
+		Operator key = m_operators[getKeyId(packed)];
+		int op_id = getOperatorId(packed);
+		Operator op = null;
+		if (op_id > 0)
+			op = m_operators[op_id - 1];
+		return new LTLTuple(key, new LTLTupleValue(op, getStateNumber(packed), getIteration(packed)));
+	}
+	
+	/**
+	 * Returns the number of the key of a packed tuple, without decoding it
+	 * @param packed The tuple, packed in a long
+	 * @return The number of the key
+	 */
+	public static int getKeyId(long packed)
+	{
+		return (int) (packed >>> 52);
+	}
+	
+	/**
+	 * Returns the number of the operator of a packed tuple, without
+	 * decoding it
+	 * @param packed The tuple, packed in a long
+	 * @return The number of the operator plus one, or 0 if the tuple
+	 *   has no operator
+	 */
+	public static int getOperatorId(long packed)
+	{
+		return (int) (packed >>> 40) & MAX_SUBFORMULAS;
+	}
+	
+	/**
+	 * Returns the state number of a packed tuple, without decoding it
+	 * @param packed The tuple, packed in a long
+	 * @return The state number
+	 */
+	public static int getStateNumber(long packed)
+	{
+		return (int) packed;
+	}
+	
+	/**
+	 * Returns the iteration number of a packed tuple, without decoding it
+	 * @param packed The tuple, packed in a long
+	 * @return The iteration number
+	 */
+	public static int getIteration(long packed)
+	{
+		return (int) (packed >>> 32) & MAX_ITERATION;
+	}
+	
+	/**
+	 * Returns the number of subformul&aelig; of the property
+	 * @return The number of subformul&aelig;
+	 */
+	public int getSubformulaCount()
+	{
+		return m_operators.length;
+	}
+	
+	/**
+	 * Returns the subformula of a given number
+	 * @param id The number
+	 * @return The subformula
+	 */
+	public Operator getSubformula(int id)
+	{
+		return m_operators[id];
+	}
+	
+	/**
+	 * Returns the number of a subformula
+	 * @param o The subformula
+	 * @return Its number
+	 * @throws IllegalArgumentException If the operator is not a
+	 * subformula of the property
+	 */
+	public int getId(Operator o)
+	{
+		int id = OperatorFactory.indexOf(m_index, o);
+		if (id < 0)
+			throw new IllegalArgumentException("Unknown subformula " + o);
+		return id;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * List of LTL tuples stored as packed primitives. Each tuple takes a
+ * single <code>long</code> (see {@link PackedCollectorFactory}), in
+ * arrays ("chunks") each twice the size of the previous one, as in a
+ * {@link ChunkedList}: a tuple costs 8 bytes instead of three objects,
+ * and a full list adds a handful of arrays to the heap instead of
+ * millions of objects. The tuples are decoded when they are read; the
+ * list hence returns a new tuple each time it is read, equal to the
+ * one that was added. {@link PackedWorkflow} avoids this by reading and
+ * writing the packed tuples directly (see {@link #getPacked} and
+ * {@link #addPacked}).
+ * <p>
+ * Like {@link java.util.ArrayList}, this list is not synchronized.
+ */
+public class PackedTupleList extends AbstractList<Tuple<Operator,LTLTupleValue>> implements RandomAccess
+{
+	/**
+	 * The size of the first chunk is 2<sup>FIRST_SHIFT</sup>
+	 */
+	private static final int FIRST_SHIFT = 4;
+	
+	/**
+	 * The size of the first chunk
+	 */
+	private static final int FIRST_SIZE = 1 << FIRST_SHIFT;
+	
+	/**
+	 * The chunks, laid out as in a {@link ChunkedList}
+	 */
+	private long[][] m_chunks = new long[32 - FIRST_SHIFT][];
+	
+	private int m_size = 0;
+	
+	/**
+	 * The factory that encodes and decodes the tuples
+	 */
+	private final PackedCollectorFactory m_codec;
+	
+	/**
+	 * Create an empty PackedTupleList
+	 * @param codec The factory that encodes and decodes the tuples
+	 */
+	public PackedTupleList(PackedCollectorFactory codec)
+	{
+		super();
+		m_codec = codec;
+	}
+	
+	@Override
+	public int size()
+	{
+		return m_size;
+	}
+	
+	@Override
+	public Tuple<Operator,LTLTupleValue> get(int index)
+	{
+		return m_codec.decode(getPacked(index));
+	}
+	
+	/**
+	 * Returns a tuple of the list without decoding it
+	 * @param index The position of the tuple
+	 * @return The tuple, packed in a long
+	 */
+	public long getPacked(int index)
+	{
+		if (index < 0 || index >= m_size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+		int i = index + FIRST_SIZE;
+		return m_chunks[chunkOf(i)][i ^ Integer.highestOneBit(i)];
+	}
+	
+	@Override
+	public Tuple<Operator,LTLTupleValue> set(int index, Tuple<Operator,LTLTupleValue> element)
+	{
+		Tuple<Operator,LTLTupleValue> old = get(index);
+		int i = index + FIRST_SIZE;
+		m_chunks[chunkOf(i)][i ^ Integer.highestOneBit(i)] = m_codec.encode(element);
+		return old;
+	}
+	
+	@Override
+	public boolean add(Tuple<Operator,LTLTupleValue> element)
+	{
+		addPacked(m_codec.encode(element));
+		return true;
+	}
+	
+	/**
+	 * Appends a tuple already packed to the list
+	 * @param packed The tuple, packed in a long
+	 */
+	public void addPacked(long packed)
+	{
+		if (m_size == Integer.MAX_VALUE - FIRST_SIZE)
+			throw new IllegalStateException("List is full");
+		int i = m_size + FIRST_SIZE;
+		int c = chunkOf(i);
+		long[] chunk = m_chunks[c];
+		if (chunk == null)
+		{
+			chunk = new long[FIRST_SIZE << c];
+			m_chunks[c] = chunk;
+		}
+		chunk[i ^ Integer.highestOneBit(i)] = packed;
+		m_size++;
+		modCount++;
+	}
+	
+	/**
+	 * Removes all the tuples of the list. The chunks are kept, so that
+	 * the list can be filled again up to its former size without
+	 * allocating anything.
+	 */
+	@Override
+	public void clear()
+	{
+		m_size = 0;
+		modCount++;
+	}
+	
+	/**
+	 * Returns the chunk that holds a position
+	 * @param i The position, offset by the size of the first chunk
+	 * @return The index of the chunk
+	 */
+	private static int chunkOf(int i)
+	{
+		return 31 - Integer.numberOfLeadingZeros(i) - FIRST_SHIFT;
+	}
+}
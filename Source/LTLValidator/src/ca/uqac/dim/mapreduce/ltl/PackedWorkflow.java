@@ -0,0 +1,659 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * Runs a round of LTL trace validation on tuples packed in
+ * <code>long</code>s (see {@link PackedCollectorFactory}), without
+ * decoding them. It computes the same output as {@link LTLMapper} and
+ * {@link LTLReducer} run by a {@link SequentialWorkflow}, but the map
+ * phase reads the packed tuples of its source with
+ * {@link PackedTupleList#getPacked}, groups its output by the number of
+ * the key into {@link PackedTupleList}s, and the reduce phase writes
+ * packed tuples to the output with {@link PackedTupleList#addPacked}:
+ * no object is created per tuple. The groups are emptied but kept from
+ * one round to the next, and the bit sets of the reducers are reused
+ * from one key to the next until the round is over.
+ * <p>
+ * The subformul&aelig; are looked up by their number in tables built
+ * once: their kind, their depth, their operands and their parents.
+ * Given {@link ResourceManager}s (see {@link #setManagers}), the source
+ * is split into chunks mapped in parallel, each into groups of its own,
+ * and the keys are reduced in parallel. Combiners, spilling and sorted
+ * values are not supported; the workflows of the
+ * <code>ca.uqac.dim.mapreduce</code> package must be used for them.
+ */
+public class PackedWorkflow implements ReusableWorkflow<Operator,LTLTupleValue>
+{
+	/**
+	 * The kinds of subformul&aelig;
+	 */
+	private static final byte ATOM = 0, AND = 1, OR = 2, IMPLIES = 3, NOT = 4, F = 5, G = 6, X = 7;
+	
+	/**
+	 * The minimum number of tuples in a chunk of the map phase
+	 */
+	protected static final int MIN_CHUNK_SIZE = 1024;
+	
+	/**
+	 * The number of chunks the source is split into for each worker of
+	 * the map phase
+	 */
+	protected static final int CHUNKS_PER_WORKER = 4;
+	
+	private final PackedCollectorFactory m_codec;
+	
+	private int m_traceLength;
+	
+	private InCollector<Operator,LTLTupleValue> m_source = null;
+	
+	private Collector<Operator,LTLTupleValue> m_output = null;
+	
+	private ResourceManager<Operator,LTLTupleValue> m_managerMapper = null;
+	
+	private ResourceManager<Operator,LTLTupleValue> m_managerReducer = null;
+	
+	private Metrics m_metrics = Metrics.getGlobal();
+	
+	/**
+	 * The kind of each subformula, indexed by its number
+	 */
+	private final byte[] m_kinds;
+	
+	/**
+	 * The depth of each subformula
+	 */
+	private final int[] m_depths;
+	
+	/**
+	 * The number of the left operand of each subformula, or of its
+	 * only operand; -1 for an atom
+	 */
+	private final int[] m_lefts;
+	
+	/**
+	 * The number of the right operand of each subformula; -1 if it has
+	 * a single operand
+	 */
+	private final int[] m_rights;
+	
+	/**
+	 * The numbers of the subformul&aelig; that have each subformula as
+	 * an operand
+	 */
+	private final int[][] m_parents;
+	
+	/**
+	 * The output of the map phase, for each chunk of the source and
+	 * each key. They are emptied, but kept, from one round to the next.
+	 */
+	private final List<PackedTupleList[]> m_groups = new ArrayList<PackedTupleList[]>();
+	
+	/**
+	 * The bit sets given back by the reducers
+	 */
+	private final List<BitSet[]> m_scratch = new ArrayList<BitSet[]>();
+	
+	protected long m_totalTuples = 0;
+	
+	protected long m_maxTuples = 0;
+	
+	/**
+	 * Creates a workflow
+	 * @param codec The factory that packs the tuples
+	 * @param trace_len The length of the trace
+	 * @param c The source of the first round
+	 */
+	public PackedWorkflow(PackedCollectorFactory codec, int trace_len, InCollector<Operator,LTLTupleValue> c)
+	{
+		super();
+		m_codec = codec;
+		m_traceLength = trace_len;
+		m_source = c;
+		int n = codec.getSubformulaCount();
+		m_kinds = new byte[n];
+		m_depths = new int[n];
+		m_lefts = new int[n];
+		m_rights = new int[n];
+		m_parents = new int[n][];
+		Set<Operator> subformulas = new HashSet<Operator>();
+		for (int i = 0; i < n; i++)
+		{
+			Operator o = codec.getSubformula(i);
+			subformulas.add(o);
+			m_depths[i] = o.getDepth();
+			m_lefts[i] = -1;
+			m_rights[i] = -1;
+			if (o instanceof BinaryOperator)
+			{
+				m_lefts[i] = codec.getId(((BinaryOperator) o).getLeft());
+				m_rights[i] = codec.getId(((BinaryOperator) o).getRight());
+			}
+			else if (o instanceof UnaryOperator)
+				m_lefts[i] = codec.getId(((UnaryOperator) o).getOperand());
+			m_kinds[i] = getKind(o);
+		}
+		Map<Operator,Operator[]> parents = LTLMapper.getParents(subformulas);
+		for (int i = 0; i < n; i++)
+		{
+			Operator[] p = parents.get(codec.getSubformula(i));
+			m_parents[i] = new int[p == null ? 0 : p.length];
+			for (int j = 0; j < m_parents[i].length; j++)
+				m_parents[i][j] = codec.getId(p[j]);
+		}
+	}
+	
+	private static byte getKind(Operator o)
+	{
+		Class<?> c = o.getClass();
+		if (c == OperatorAnd.class)
+			return AND;
+		if (c == OperatorOr.class)
+			return OR;
+		if (c == OperatorImplies.class)
+			return IMPLIES;
+		if (c == OperatorNot.class)
+			return NOT;
+		if (c == OperatorF.class)
+			return F;
+		if (c == OperatorG.class)
+			return G;
+		if (c == OperatorX.class)
+			return X;
+		if (o instanceof Atom)
+			return ATOM;
+		throw new IllegalArgumentException("Unknown operator " + o);
+	}
+	
+	@Override
+	public void setSource(InCollector<Operator,LTLTupleValue> c)
+	{
+		m_source = c;
+	}
+	
+	@Override
+	public void setOutput(Collector<Operator,LTLTupleValue> c)
+	{
+		m_output = c;
+	}
+	
+	/**
+	 * Sets the length of the trace
+	 * @param trace_len The length
+	 */
+	public void setTraceLength(int trace_len)
+	{
+		m_traceLength = trace_len;
+	}
+	
+	/**
+	 * Sets the workers of the map and reduce phases. By default, the
+	 * phases run in the calling thread.
+	 * @param mappers The workers of the map phase, or null
+	 * @param reducers The workers of the reduce phase, or null
+	 */
+	public void setManagers(ResourceManager<Operator,LTLTupleValue> mappers, ResourceManager<Operator,LTLTupleValue> reducers)
+	{
+		m_managerMapper = mappers;
+		m_managerReducer = reducers;
+	}
+	
+	/**
+	 * Sets the registry in which the workflow records its metrics. By
+	 * default, the global registry is used (see {@link Metrics}).
+	 * @param m The registry
+	 */
+	public void setMetrics(Metrics m)
+	{
+		m_metrics = m;
+	}
+	
+	@Override
+	public InCollector<Operator,LTLTupleValue> run()
+	{
+		if (m_source == null)
+			return null;
+		m_maxTuples = 0;
+		m_totalTuples = 0;
+		final PackedTupleList source = getSource();
+		int num_groups = m_codec.getSubformulaCount();
+		
+		// Map: each chunk of the source goes to groups of its own
+		Metrics.Timer map_timer = m_metrics.timer("map.time");
+		long start = map_timer.start();
+		int source_size = source.size();
+		int num_chunks = 1;
+		if (m_managerMapper != null)
+			num_chunks = Math.max(1, Math.min(m_managerMapper.getThreadMax() * CHUNKS_PER_WORKER,
+				(source_size + MIN_CHUNK_SIZE - 1) / MIN_CHUNK_SIZE));
+		while (m_groups.size() < num_chunks)
+			m_groups.add(new PackedTupleList[num_groups]);
+		for (PackedTupleList[] groups : m_groups)
+		{
+			for (PackedTupleList g : groups)
+			{
+				if (g != null)
+					g.clear();
+			}
+		}
+		for (int i = 0; i < num_chunks; i++)
+		{
+			final PackedTupleList[] groups = m_groups.get(i);
+			final int from = (int) ((long) source_size * i / num_chunks);
+			final int to = (int) ((long) source_size * (i + 1) / num_chunks);
+			Runnable job = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int j = from; j < to; j++)
+						map(source.getPacked(j), groups);
+				}
+			};
+			if (m_managerMapper == null)
+				job.run();
+			else
+				m_managerMapper.execute(job);
+		}
+		if (m_managerMapper != null)
+			m_managerMapper.waitThreads();
+		map_timer.stop(start);
+		m_metrics.counter("map.tuples.in").add(source_size);
+		
+		// Reduce: the input of a key is its group in every chunk
+		Metrics.Timer reduce_timer = m_metrics.timer("reduce.time");
+		start = reduce_timer.start();
+		Metrics.Histogram reduce_input = m_metrics.histogram("reduce.input");
+		Collector<Operator,LTLTupleValue> output = getOutput();
+		PackedTupleList out = (PackedTupleList) output.toList();
+		PackedTupleList[] results = new PackedTupleList[num_groups];
+		int num_keys = 0;
+		for (int k = 0; k < num_groups; k++)
+		{
+			int num_tuples = 0;
+			int num_parts = 0;
+			for (int i = 0; i < num_chunks; i++)
+			{
+				PackedTupleList g = m_groups.get(i)[k];
+				if (g != null && !g.isEmpty())
+				{
+					num_tuples += g.size();
+					num_parts++;
+				}
+			}
+			if (num_tuples == 0)
+				continue;
+			final PackedTupleList[] in = new PackedTupleList[num_parts];
+			for (int i = 0, j = 0; i < num_chunks; i++)
+			{
+				PackedTupleList g = m_groups.get(i)[k];
+				if (g != null && !g.isEmpty())
+					in[j++] = g;
+			}
+			num_keys++;
+			m_totalTuples += num_tuples;
+			m_maxTuples = Math.max(m_maxTuples, num_tuples);
+			reduce_input.record(num_tuples);
+			final int key = k;
+			if (m_managerReducer == null)
+			{
+				reduce(key, in, out);
+				continue;
+			}
+			final PackedTupleList result = new PackedTupleList(m_codec);
+			results[k] = result;
+			m_managerReducer.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					reduce(key, in, result);
+				}
+			});
+		}
+		if (m_managerReducer != null)
+		{
+			m_managerReducer.waitThreads();
+			for (PackedTupleList result : results)
+			{
+				if (result == null)
+					continue;
+				for (int j = 0; j < result.size(); j++)
+					out.addPacked(result.getPacked(j));
+			}
+		}
+		reduce_timer.stop(start);
+		m_metrics.counter("reduce.tuples.in").add(m_totalTuples);
+		m_metrics.counter("reduce.keys").add(num_keys);
+		m_metrics.counter("reduce.tuples.out").add(out.size());
+		m_scratch.clear();
+		return output;
+	}
+	
+	/**
+	 * Returns the tuples of the source. A source that is not already
+	 * packed is packed into a new list.
+	 * @return The tuples
+	 */
+	private PackedTupleList getSource()
+	{
+		if (m_source instanceof Collector<?,?>)
+		{
+			List<Tuple<Operator,LTLTupleValue>> list = ((Collector<Operator,LTLTupleValue>) m_source).toList();
+			if (list instanceof PackedTupleList)
+				return (PackedTupleList) list;
+		}
+		PackedTupleList list = new PackedTupleList(m_codec);
+		m_source.rewind();
+		while (m_source.hasNext())
+			list.add(m_source.next());
+		return list;
+	}
+	
+	/**
+	 * Returns the collector in which the reducers write their output:
+	 * the output collector, emptied, if its storage is packed, or a new
+	 * collector
+	 * @return The collector
+	 */
+	private Collector<Operator,LTLTupleValue> getOutput()
+	{
+		if (m_output != null && m_output.toList() instanceof PackedTupleList)
+		{
+			m_output.clear();
+			return m_output;
+		}
+		return new Collector<Operator,LTLTupleValue>(new PackedTupleList(m_codec));
+	}
+	
+	/**
+	 * Maps a packed tuple, as {@link LTLMapper#map} does
+	 * @param t The tuple
+	 * @param groups The groups of the output, indexed by key
+	 */
+	private void map(long t, PackedTupleList[] groups)
+	{
+		int k = PackedCollectorFactory.getKeyId(t);
+		int op = PackedCollectorFactory.getOperatorId(t);
+		int iteration = PackedCollectorFactory.getIteration(t);
+		int state = PackedCollectorFactory.getStateNumber(t);
+		int depth = m_depths[k];
+		if (iteration < depth)
+			group(groups, k).addPacked(PackedCollectorFactory.pack(k, op, iteration + 1, state));
+		if (iteration <= depth && op == 0)
+		{
+			for (int f : m_parents[k])
+				group(groups, f).addPacked(PackedCollectorFactory.pack(f, k + 1, iteration + 1, state));
+		}
+	}
+	
+	private PackedTupleList group(PackedTupleList[] groups, int k)
+	{
+		PackedTupleList g = groups[k];
+		if (g == null)
+		{
+			g = new PackedTupleList(m_codec);
+			groups[k] = g;
+		}
+		return g;
+	}
+	
+	/**
+	 * Reduces the tuples of a key, as {@link LTLReducer#reduce} does
+	 * @param k The number of the key
+	 * @param in The input of the key, in parts
+	 * @param out The output
+	 */
+	private void reduce(int k, PackedTupleList[] in, PackedTupleList out)
+	{
+		switch (m_kinds[k])
+		{
+		case AND:
+			reduceAnd(k, in, out);
+			break;
+		case IMPLIES:
+			reduceComplement(k, in, out, m_rights[k] + 1);
+			break;
+		case NOT:
+			reduceComplement(k, in, out, -1);
+			break;
+		case G:
+			reduceG(k, in, out);
+			break;
+		case F:
+			reduceF(k, in, out);
+			break;
+		default:
+			// Atoms, disjunctions and X: each tuple gives one state
+			int shift = (m_kinds[k] == X) ? 1 : 0;
+			for (PackedTupleList part : in)
+			{
+				for (int j = 0; j < part.size(); j++)
+				{
+					long t = part.getPacked(j);
+					int state = PackedCollectorFactory.getStateNumber(t) - shift;
+					if (state >= 0)
+						out.addPacked(PackedCollectorFactory.pack(k, 0, PackedCollectorFactory.getIteration(t), state));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copies the input of a key, from a given tuple on, to the output:
+	 * these tuples are used at a later iteration
+	 * @param in The input
+	 * @param part The part of the first tuple to copy
+	 * @param from The position of that tuple in its part
+	 * @param out The output
+	 */
+	private static void passOn(PackedTupleList[] in, int part, int from, PackedTupleList out)
+	{
+		for (int i = part; i < in.length; i++)
+		{
+			for (int j = (i == part) ? from : 0; j < in[i].size(); j++)
+				out.addPacked(in[i].getPacked(j));
+		}
+	}
+	
+	private void reduceAnd(int k, PackedTupleList[] in, PackedTupleList out)
+	{
+		BitSet[] sets = borrowScratch();
+		BitSet contain_left = sets[0];
+		BitSet contain_right = sets[1];
+		int left = m_lefts[k] + 1, right = m_rights[k] + 1;
+		try
+		{
+			for (int i = 0; i < in.length; i++)
+			{
+				for (int j = 0; j < in[i].size(); j++)
+				{
+					long t = in[i].getPacked(j);
+					int iteration = PackedCollectorFactory.getIteration(t);
+					if (m_depths[k] > iteration)
+					{
+						passOn(in, i, j, out);
+						return;
+					}
+					int op = PackedCollectorFactory.getOperatorId(t);
+					int n = PackedCollectorFactory.getStateNumber(t);
+					boolean holds = false;
+					if (left == right)
+						holds = true;
+					else if (op == left)
+					{
+						holds = contain_right.get(n);
+						if (!holds)
+							contain_left.set(n);
+					}
+					else if (op == right)
+					{
+						holds = contain_left.get(n);
+						if (!holds)
+							contain_right.set(n);
+					}
+					if (holds)
+						out.addPacked(PackedCollectorFactory.pack(k, 0, iteration, n));
+				}
+			}
+		}
+		finally
+		{
+			giveBack(sets);
+		}
+	}
+	
+	/**
+	 * Reduces a negation or an implication: the output holds in the
+	 * states that the input does not mention, and, for an implication,
+	 * in the states where its right operand holds
+	 * @param k The number of the key
+	 * @param in The input
+	 * @param out The output
+	 * @param right The number of the right operand plus one, or -1 for
+	 *   a negation
+	 */
+	private void reduceComplement(int k, PackedTupleList[] in, PackedTupleList out, int right)
+	{
+		BitSet[] sets = borrowScratch();
+		BitSet sats = sets[0];
+		int last_iteration = m_depths[k];
+		try
+		{
+			for (int i = 0; i < in.length; i++)
+			{
+				for (int j = 0; j < in[i].size(); j++)
+				{
+					long t = in[i].getPacked(j);
+					int iteration = PackedCollectorFactory.getIteration(t);
+					if (m_depths[k] > iteration)
+					{
+						passOn(in, i, j, out);
+						return;
+					}
+					int n = PackedCollectorFactory.getStateNumber(t);
+					if (n < 0)
+					{
+						// The marker of the key (see LTLReducer.addMarkers)
+						continue;
+					}
+					sats.set(n);
+					last_iteration = iteration;
+					if (PackedCollectorFactory.getOperatorId(t) == right)
+						out.addPacked(PackedCollectorFactory.pack(k, 0, iteration, n));
+				}
+			}
+			for (int n = sats.nextClearBit(0); n < m_traceLength; n = sats.nextClearBit(n + 1))
+				out.addPacked(PackedCollectorFactory.pack(k, 0, last_iteration, n));
+		}
+		finally
+		{
+			giveBack(sets);
+		}
+	}
+	
+	private void reduceG(int k, PackedTupleList[] in, PackedTupleList out)
+	{
+		BitSet[] sets = borrowScratch();
+		BitSet sats = sets[0];
+		int iteration = 0;
+		try
+		{
+			for (PackedTupleList part : in)
+			{
+				for (int j = 0; j < part.size(); j++)
+				{
+					long t = part.getPacked(j);
+					iteration = PackedCollectorFactory.getIteration(t);
+					sats.set(PackedCollectorFactory.getStateNumber(t));
+				}
+			}
+			// G holds from the state following the last state where the operand is false
+			int last_false = m_traceLength > 0 ? sats.previousClearBit(m_traceLength - 1) : -1;
+			for (int n = m_traceLength - 1; n > last_false; n--)
+				out.addPacked(PackedCollectorFactory.pack(k, 0, iteration, n));
+		}
+		finally
+		{
+			giveBack(sets);
+		}
+	}
+	
+	private void reduceF(int k, PackedTupleList[] in, PackedTupleList out)
+	{
+		int max_seen = -1;
+		for (PackedTupleList part : in)
+		{
+			for (int j = 0; j < part.size(); j++)
+			{
+				long t = part.getPacked(j);
+				int state = PackedCollectorFactory.getStateNumber(t);
+				int iteration = PackedCollectorFactory.getIteration(t);
+				for (int n = max_seen + 1; n <= state; n++)
+					out.addPacked(PackedCollectorFactory.pack(k, 0, iteration, n));
+				max_seen = Math.max(max_seen, state);
+			}
+		}
+	}
+	
+	/**
+	 * Borrows two bit sets of the size of the trace, cleared
+	 * @return The bit sets
+	 */
+	private BitSet[] borrowScratch()
+	{
+		synchronized (m_scratch)
+		{
+			if (m_scratch.isEmpty())
+				return new BitSet[] {new BitSet(m_traceLength), new BitSet(m_traceLength)};
+			BitSet[] sets = m_scratch.remove(m_scratch.size() - 1);
+			sets[0].clear();
+			sets[1].clear();
+			return sets;
+		}
+	}
+	
+	private void giveBack(BitSet[] sets)
+	{
+		synchronized (m_scratch)
+		{
+			m_scratch.add(sets);
+		}
+	}
+	
+	@Override
+	public long getMaxTuples()
+	{
+		return m_maxTuples;
+	}
+	
+	@Override
+	public long getTotalTuples()
+	{
+		return m_totalTuples;
+	}
+}
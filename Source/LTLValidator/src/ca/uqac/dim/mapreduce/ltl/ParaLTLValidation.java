@@ -21,6 +21,8 @@
  */
 package ca.uqac.dim.mapreduce.ltl;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 
 import ca.uqac.dim.mapreduce.*;
 
@@ -41,6 +43,7 @@ public class ParaLTLValidation
 	private static final String app_name = "ltlmapreduce [options]";
 	private static final String app_version = "1.0";
 	public static final int ERR_ARGUMENTS = 4;
+	public static final int ERR_PARITY = 5;
 	
 	private static int m_verbosity = 0;
 
@@ -65,9 +68,28 @@ public class ParaLTLValidation
 		options.addOption(opt);
 		opt = OptionBuilder.withLongOpt("redirection").withArgName("x").hasArg().withDescription("Set the redirection file for the System.out").create("r");
 	    options.addOption(opt);
+	    options.addOption("c", "combiner", false, "Combine the output of each mapper before the shuffle");
+	    opt = OptionBuilder.withLongOpt("budget").withArgName("x").hasArg().withDescription("Keep at most x tuples of the shuffle in memory, and spill the others to disk").create("b");
+	    options.addOption(opt);
+	    opt = OptionBuilder.withLongOpt("storage").withArgName("x").hasArg().withDescription("Store the tuples of collectors in x: chunked (default) or linked lists, or packed longs").create("s");
+	    options.addOption(opt);
+	    options.addOption("l", "pipelined", false, "Start the reducers before all the mappers are over");
+	    opt = OptionBuilder.withLongOpt("queue").withArgName("x").hasArg().withDescription("Parse the trace while the first loop maps it, and stream the tuples between the phases, through queues of at most x tuples (implies -l). The output of each loop is still kept whole, as the input of the next one").create("q");
+	    options.addOption(opt);
+	    options.addOption("k", "split", false, "Split the input of hot keys among several reducers");
+	    options.addOption("o", "ordered", false, "Deliver the input of each reducer sorted by state number (disables -l)");
+	    options.addOption("x", "intervals", false, "Carry the truth set of each subformula as a single set of intervals of states");
+	    options.addOption("a", "bitvector", false, "Evaluate the formula on bit vectors of the trace instead of MapReduce rounds");
+	    options.addOption("y", "parity", false, "Check the truth set of the formula in every state against the bit-vector engine");
+	    opt = OptionBuilder.withLongOpt("speculate").withArgName("x").hasArg().withDescription("Start a second attempt of the reducers running x times longer than the median").create("e");
+	    options.addOption(opt);
 	    opt = OptionBuilder.withLongOpt("mapper").withArgName("x").hasArg().withDescription("Set the number of mapper").create("m");
 	    options.addOption(opt);
 	    opt = OptionBuilder.withLongOpt("reducer").withArgName("x").hasArg().withDescription("Set the number of reducer").create("n");
+	    options.addOption(opt);
+	    options.addOption("u", "virtual", false, "Run the mappers and reducers on virtual threads (Java 21 or later)");
+	    options.addOption("f", "forkjoin", false, "Split the work into fork/join tasks run by a work-stealing pool");
+	    opt = OptionBuilder.withLongOpt("workers").withArgName("x").hasArg().withDescription("Run the mappers and reducers in x worker processes instead of threads").create("w");
 	    options.addOption(opt);
 		CommandLine c_line = parseCommandLine(options, args);
 		
@@ -103,6 +125,13 @@ public class ParaLTLValidation
 		String ParserType = "";
 		int MapperNum = 0;
 		int ReducerNum = 0;
+		int WorkerNum = 0;
+		
+		//Contains a number of worker processes
+		if (c_line.hasOption("w"))
+		{
+			WorkerNum = Integer.parseInt(c_line.getOptionValue("w"));
+		}
 		
 		//Contains a parser type
 		if (c_line.hasOption("t"))
@@ -120,7 +149,7 @@ public class ParaLTLValidation
 		{
 			MapperNum =  Integer.parseInt(c_line.getOptionValue("m"));
 		}
-		else
+		else if (WorkerNum == 0 && !c_line.hasOption("f"))
 		{
 		    System.err.println("No Mapper Number in Arguments");
 		    System.exit(ERR_ARGUMENTS);
@@ -131,7 +160,7 @@ public class ParaLTLValidation
 		{
 			ReducerNum =  Integer.parseInt(c_line.getOptionValue("n"));
 		}
-		else
+		else if (WorkerNum == 0 && !c_line.hasOption("f"))
 		{
 			System.err.println("No Reducer Number in Arguments");
 			System.exit(ERR_ARGUMENTS);
@@ -139,6 +168,36 @@ public class ParaLTLValidation
 		 
 		if (c_line.hasOption("v"))
 			m_verbosity = Integer.parseInt(c_line.getOptionValue("v"));
+		int spill_budget = 0;
+		if (c_line.hasOption("b"))
+			spill_budget = Integer.parseInt(c_line.getOptionValue("b"));
+		int queue_capacity = 0;
+		if (c_line.hasOption("q"))
+			queue_capacity = Integer.parseInt(c_line.getOptionValue("q"));
+		if (c_line.hasOption("a") && c_line.hasOption("x"))
+		{
+			System.err.println("Bit vectors (-a) and intervals (-x) cannot be combined");
+			System.exit(ERR_ARGUMENTS);
+		}
+		if (c_line.hasOption("x") && (c_line.hasOption("c") || c_line.hasOption("b") || c_line.hasOption("k")
+				|| c_line.hasOption("o") || WorkerNum > 0 || "packed".equalsIgnoreCase(c_line.getOptionValue("s"))))
+		{
+			System.err.println("Intervals cannot be combined with -c, -b, -k, -o, -w or packed storage");
+			System.exit(ERR_ARGUMENTS);
+		}
+		if (c_line.hasOption("s"))
+		{
+			String storage = c_line.getOptionValue("s");
+			if (storage.equalsIgnoreCase("linked"))
+				Collector.setDefaultFactory(new LinkedCollectorFactory());
+			else if (storage.equalsIgnoreCase("chunked"))
+				Collector.setDefaultFactory(new ChunkedCollectorFactory());
+			else if (!storage.equalsIgnoreCase("packed"))
+			{
+				System.err.println("Unknown storage " + storage);
+				System.exit(ERR_ARGUMENTS);
+			}
+		}
 
 		// Obtain the property to verify and break into subformulas
 		Operator property = null;
@@ -159,66 +218,291 @@ public class ParaLTLValidation
 				System.exit(1);
 			}
 		}
+		// Share the common subformulas and number them
+		property = OperatorFactory.intern(property);
 		Set<Operator> subformulas = property.getSubformulas();
+		PackedCollectorFactory packed = null;
+		if (c_line.hasOption("s") && c_line.getOptionValue("s").equalsIgnoreCase("packed"))
+		{
+			// The tuples are packed using the numbers of the subformulas
+			packed = new PackedCollectorFactory(subformulas);
+			Collector.setDefaultFactory(packed);
+		}
 		
 		// Initialize first collector depending on input file format
 		int max_loops = property.getDepth();
 		int max_tuples_total = 0, total_tuples_total = 0;
 		long time_begin = System.nanoTime();
+		// With -x or -a, the parser fills the truth sets of the atoms
+		// directly; with -x and -y, it fills the bit vectors alongside
+		IntervalTraceCollector intervals = null;
+		BitVectorEvaluator evaluator = null;
+		TraceSink sink = null;
+		if (c_line.hasOption("x"))
+		{
+			intervals = new IntervalTraceCollector(subformulas);
+			sink = intervals;
+		}
+		if (c_line.hasOption("a") || (c_line.hasOption("x") && c_line.hasOption("y")))
+		{
+			evaluator = new BitVectorEvaluator();
+			sink = (sink == null) ? evaluator : new TraceSink.Tee(sink, evaluator);
+		}
+		if (trace_format.compareToIgnoreCase(".txt") != 0 && trace_format.compareToIgnoreCase(".xml") != 0)
+		{
+			System.err.println("ERROR: unrecognized input format");
+			System.exit(1);
+		}
+		// With -q, the tuples of the trace go to the mappers of the first
+		// loop while the trace is parsed
+		TraceStream stream = null;
+		if (queue_capacity > 0 && sink == null && !c_line.hasOption("y") && WorkerNum <= 0 && !c_line.hasOption("f"))
+			stream = new TraceStream(queue_capacity);
+		final File in_file = new File(trace_filename);
 		TraceCollector initial_collector = null;
+		long trace_len = 0;
+		if (stream != null)
+		{
+			// The reducers of the negations and implications must run even
+			// when their operands hold nowhere
+			LTLReducer.addMarkers(stream, subformulas);
+			final TraceStream f_stream = stream;
+			final String f_format = trace_format, f_parser = ParserType;
+			Thread parser = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						f_stream.finish(parseTrace(in_file, f_format, f_parser, subformulas, f_stream).getTraceLength());
+					}
+					catch (RuntimeException e)
+					{
+						f_stream.fail(e);
+					}
+					finally
+					{
+						f_stream.close();
+					}
+				}
+			}, "Trace parser");
+			parser.setDaemon(true);
+			parser.start();
+		}
+		else
 		{
-			File in_file = new File(trace_filename);
-			if (trace_format.compareToIgnoreCase(".txt") == 0)
+			initial_collector = parseTrace(in_file, trace_format, ParserType, subformulas, sink);
+			trace_len = initial_collector.getTraceLength();
+			if ((intervals == null || c_line.hasOption("y")) && trace_len > Integer.MAX_VALUE)
 			{
-				initial_collector = new CharacterTraceCollector(in_file, subformulas);
+				System.err.println("ERROR: traces longer than " + Integer.MAX_VALUE + " events can only be checked with -x, without -y");
+				System.exit(ERR_ARGUMENTS);
 			}
-			else if (trace_format.compareToIgnoreCase(".xml") == 0)
+		}
+		
+		// Start workflow
+		InCollector<Operator,LTLTupleValue> loop_collector = (stream != null) ? stream : initial_collector;
+		print(System.out, property.toString(), 2);
+		print(System.out, loop_collector.toString(), 3);
+		if (c_line.hasOption("a"))
+		{
+			// Evaluate the whole formula at once, 64 states at a time
+			evaluator.finish((int) trace_len);
+			printResult(evaluator.getVerdict(property), trace_len, 0, 0, time_begin);
+			return;
+		}
+		if (intervals != null)
+		{
+			// Each subformula travels as a single set of intervals
+			intervals.finish(trace_len);
+			if (evaluator != null)
+				evaluator.finish((int) trace_len);
+			InCollector<Operator,LTLSetValue> set_collector = intervals;
+			LTLSetMapper set_mapper = new LTLSetMapper(subformulas);
+			LTLSetReducer set_reducer = new LTLSetReducer(trace_len);
+			ResourceManager<Operator,LTLSetValue> set_mappers = new ResourceManager<Operator,LTLSetValue>(MapperNum);
+			ResourceManager<Operator,LTLSetValue> set_reducers = new ResourceManager<Operator,LTLSetValue>(ReducerNum);
+			set_mappers.setVirtualThreads(c_line.hasOption("u"));
+			set_reducers.setVirtualThreads(c_line.hasOption("u"));
+			ForkJoinPool set_pool = null;
+			try
 			{
-				if(ParserType.equals("Dom"))
+				ReusableWorkflow<Operator,LTLSetValue> sw = null;
+				if (c_line.hasOption("f"))
 				{
-					initial_collector = new XmlDomTraceCollector(in_file, subformulas);
+					int parallelism = Math.max(MapperNum, ReducerNum);
+					if (parallelism <= 0)
+						parallelism = Runtime.getRuntime().availableProcessors();
+					set_pool = new ForkJoinPool(parallelism);
+					sw = new ForkJoinWorkflow<Operator,LTLSetValue>(set_mapper, set_reducer, set_collector, set_pool);
 				}
-				else if(ParserType.equals("Sax"))
+				else
 				{
-					initial_collector = new XmlSaxTraceCollector(in_file, subformulas);
+					ParallelWorkflow<Operator,LTLSetValue> pw = new ParallelWorkflow<Operator,LTLSetValue>(set_mapper, set_reducer, set_collector, set_mappers, set_reducers);
+					pw.setPipelined(c_line.hasOption("l") || queue_capacity > 0);
+					pw.setQueueCapacity(queue_capacity);
+					if (c_line.hasOption("e"))
+						pw.setSpeculation(Double.parseDouble(c_line.getOptionValue("e")));
+					sw = pw;
 				}
-				else
+				IterativeWorkflow<Operator,LTLSetValue> set_loops = new IterativeWorkflow<Operator,LTLSetValue>(sw, set_collector, max_loops);
+				while (!set_loops.isOver())
 				{
-					initial_collector = new XmlSaxTraceCollector(in_file, subformulas);
+					print(System.out, "Loop " + set_loops.getRound(), 2);
+					set_collector = set_loops.nextRound();
+					max_tuples_total += sw.getMaxTuples();
+					total_tuples_total += sw.getTotalTuples();
+					if (m_verbosity >= 3)
+						print(System.out, set_collector.toString(), 3);
 				}
 			}
+			finally
+			{
+				set_mappers.shutdown();
+				set_reducers.shutdown();
+				if (set_pool != null)
+					set_pool.shutdown();
+			}
+			if (evaluator != null)
+				checkParity(evaluator.firstDifference(property, getTruthSet(set_collector, property)));
+			printResult(getSetVerdict(set_collector, property), trace_len, max_tuples_total, total_tuples_total, time_begin);
+			return;
 		}
-		if (initial_collector == null)
-		{
-			System.err.println("ERROR: unrecognized input format");
-			System.exit(1);
-		}
-		
-		// Start workflow
-		int trace_len = initial_collector.getTraceLength();
-		InCollector<Operator,LTLTupleValue> loop_collector = initial_collector;
-		print(System.out, property.toString(), 2);
-		print(System.out, loop_collector.toString(), 3);
-		for (int i = 0; i < max_loops; i++)
+		// The bit vectors are read from the trace before the rounds use it
+		if (c_line.hasOption("y"))
+			evaluator = new BitVectorEvaluator(initial_collector, (int) trace_len);
+		// The reducers of the negations and implications must run even
+		// when their operands hold nowhere
+		if (stream == null)
+			LTLReducer.addMarkers(initial_collector, subformulas);
+		// The same pools of workers are used for every loop
+		ResourceManager<Operator,LTLTupleValue> manager_mapper = new ResourceManager<Operator,LTLTupleValue>(MapperNum);
+		ResourceManager<Operator,LTLTupleValue> manager_reducer = new ResourceManager<Operator,LTLTupleValue>(ReducerNum);
+		ProcessManager manager_process = null;
+		ForkJoinPool pool = null;
+		try
 		{
-			print(System.out, "Loop " + i, 2);
-			LTLParallelWorkflow w = new LTLParallelWorkflow(new LTLMapper(subformulas), new LTLReducer(subformulas, trace_len), loop_collector, new ResourceManager<Operator, 
-					LTLTupleValue>(MapperNum), new ResourceManager<Operator, LTLTupleValue>(ReducerNum));
-			loop_collector = w.run();
-			max_tuples_total += w.getMaxTuples();
-			total_tuples_total += w.getTotalTuples();
-			
-			if (m_verbosity >= 3)
+			if (c_line.hasOption("u"))
+			{
+				if (!ResourceManager.virtualThreadsAvailable())
+					System.err.println("Virtual threads are not available on this Java runtime; using platform threads");
+				manager_mapper.setVirtualThreads(true);
+				manager_reducer.setVirtualThreads(true);
+			}
+			if (WorkerNum > 0)
+				manager_process = new ProcessManager(WorkerNum);
+			if (c_line.hasOption("f"))
 			{
-				print(System.out, loop_collector.toString(), 3);
+				int parallelism = Math.max(MapperNum, ReducerNum);
+				if (parallelism <= 0)
+					parallelism = Runtime.getRuntime().availableProcessors();
+				pool = new ForkJoinPool(parallelism);
 			}
+			// The same workflow runs every loop, each on the output of the previous one
+			ReusableWorkflow<Operator,LTLTupleValue> w = null;
+			LTLMapper mapper = new LTLMapper(subformulas);
+			LTLReducer reducer = new LTLReducer(subformulas, (int) trace_len);
+			if (manager_process != null)
+			{
+				ProcessWorkflow<Operator,LTLTupleValue> pw = new ProcessWorkflow<Operator,LTLTupleValue>(mapper, reducer, loop_collector, new LTLTupleSerializer(subformulas), manager_process);
+				if (c_line.hasOption("c"))
+					pw.setCombiner(new LTLCombiner());
+				if (c_line.hasOption("o"))
+					pw.setValueComparator(new StateComparator());
+				w = pw;
+			}
+			else if (pool != null)
+			{
+				ForkJoinWorkflow<Operator,LTLTupleValue> fw = new ForkJoinWorkflow<Operator,LTLTupleValue>(mapper, reducer, loop_collector, pool);
+				if (c_line.hasOption("c"))
+					fw.setCombiner(new LTLCombiner());
+				if (c_line.hasOption("o"))
+					fw.setValueComparator(new StateComparator());
+				w = fw;
+			}
+			else if (packed != null && !c_line.hasOption("c") && spill_budget <= 0 && !c_line.hasOption("k") && !c_line.hasOption("o")
+					&& !c_line.hasOption("e") && !c_line.hasOption("l") && queue_capacity <= 0)
+			{
+				// The packed tuples are mapped and reduced without being decoded
+				PackedWorkflow kw = new PackedWorkflow(packed, (int) trace_len, loop_collector);
+				kw.setManagers(manager_mapper, manager_reducer);
+				w = kw;
+			}
+			else
+			{
+				LTLParallelWorkflow lw = new LTLParallelWorkflow(mapper, reducer, loop_collector, manager_mapper, manager_reducer);
+				if (c_line.hasOption("c"))
+					lw.setCombiner(new LTLCombiner());
+				if (spill_budget > 0)
+					lw.setSpill(spill_budget, new LTLTupleSerializer(subformulas));
+				lw.setPipelined(c_line.hasOption("l") || queue_capacity > 0);
+				lw.setQueueCapacity(queue_capacity);
+				if (c_line.hasOption("k"))
+					lw.setPartitioner(new LTLPartitioner());
+				if (c_line.hasOption("o"))
+					lw.setValueComparator(new StateComparator());
+				if (c_line.hasOption("e"))
+					lw.setSpeculation(Double.parseDouble(c_line.getOptionValue("e")));
+				w = lw;
+			}
+			IterativeWorkflow<Operator,LTLTupleValue> loops = new IterativeWorkflow<Operator,LTLTupleValue>(w, loop_collector, max_loops);
+			while (!loops.isOver())
+			{
+				print(System.out, "Loop " + loops.getRound(), 2);
+				loop_collector = loops.nextRound();
+				reducer.release();
+				if (stream != null)
+				{
+					// The first loop has read the trace to its end
+					trace_len = stream.getTraceLength();
+					if (trace_len > Integer.MAX_VALUE)
+					{
+						System.err.println("ERROR: traces longer than " + Integer.MAX_VALUE + " events can only be checked with -x, without -y");
+						System.exit(ERR_ARGUMENTS);
+					}
+					reducer.setTraceLength((int) trace_len);
+					stream = null;
+				}
+				max_tuples_total += w.getMaxTuples();
+				total_tuples_total += w.getTotalTuples();
+			
+				if (m_verbosity >= 3)
+				{
+					print(System.out, loop_collector.toString(), 3);
+				}
+			}
+		}
+		finally
+		{
+			manager_mapper.shutdown();
+			manager_reducer.shutdown();
+			if (manager_process != null)
+				manager_process.shutdown();
+			if (pool != null)
+				pool.shutdown();
 		}
-		boolean result = getVerdict(loop_collector, property);
+		if (evaluator != null)
+			checkParity(evaluator.firstDifference(property, loop_collector));
+		printResult(getVerdict(loop_collector, property), trace_len, max_tuples_total, total_tuples_total, time_begin);
+	}
+	
+	/**
+	 * Prints the verdict and the statistics of a run
+	 * @param result The verdict
+	 * @param trace_len The length of the trace
+	 * @param max_tuples_total The sum of the maximum number of tuples of each loop
+	 * @param total_tuples_total The total number of tuples of all the loops
+	 * @param time_begin The time the run started, in nanoseconds
+	 */
+	private static void printResult(boolean result, long trace_len, int max_tuples_total, int total_tuples_total, long time_begin)
+	{
 		long time_end = System.nanoTime();
 		if (result)
 			print(System.out, "Formula is true", 1);
 		else
 			print(System.out, "Formula is false", 1);
+		print(System.out, Metrics.getGlobal().toString(), 2);
 		
 		long time_total = (time_end - time_begin) / 1000000;
 		System.out.println(trace_len + "," + max_tuples_total + "," + total_tuples_total + "," + time_total);
@@ -233,25 +517,94 @@ public class ParaLTLValidation
 	 * @param formula
 	 * @return
 	 */
-	private static boolean getVerdict(InCollector<Operator,LTLTupleValue> c, Operator formula)
+	private static boolean getVerdict(InCollector<Operator,LTLTupleValue> c, final Operator formula)
 	{
-		c.rewind();
-		while (c.hasNext())
+		// The output of the last loop can be large: scan it in parallel
+		return c.parallelStream().anyMatch(new Predicate<Tuple<Operator,LTLTupleValue>>()
 		{
-			Tuple<Operator,LTLTupleValue> t = c.next();
-			Operator k = t.getKey();
-			if (k.equals(formula))
+			@Override
+			public boolean test(Tuple<Operator,LTLTupleValue> t)
 			{
-				LTLTupleValue v = t.getValue();
-				if (v.getOperator() == null && v.getStateNumber() == 0)
+				Operator k = t.getKey();
+				if (k.equals(formula))
 				{
-					return true;
+					LTLTupleValue v = t.getValue();
+					if (v.getOperator() == null && v.getStateNumber() == 0)
+					{
+						return true;
+					}
 				}
+				return false;
 			}
+		});
+	}
+	
+	
+	/**
+	 * Checks whether the output collector contains a tuple giving the
+	 * truth set of the top-level formula, and whether that set contains
+	 * the first message of the trace.
+	 * @param c The output of the last loop
+	 * @param formula The formula to verify
+	 * @return true if the formula is true on the first message
+	 */
+	private static boolean getSetVerdict(InCollector<Operator,LTLSetValue> c, Operator formula)
+	{
+		return getTruthSet(c, formula).contains(0);
+	}
+	
+	/**
+	 * Finds the truth set of the top-level formula in the output
+	 * collector
+	 * @param c The output of the last loop
+	 * @param formula The formula to verify
+	 * @return The states where the formula holds, or an empty set if
+	 *   the collector has no truth set for it
+	 */
+	private static IntervalSet getTruthSet(InCollector<Operator,LTLSetValue> c, Operator formula)
+	{
+		c.rewind();
+		while (c.hasNext())
+		{
+			Tuple<Operator,LTLSetValue> t = c.next();
+			LTLSetValue v = t.getValue();
+			if (t.getKey().equals(formula) && v.getOperator() == null)
+				return v.getStates();
 		}
-		return false;
+		return IntervalSet.EMPTY;
 	}
 	
+	/**
+	 * Stops with an error if the MapReduce rounds and the bit-vector
+	 * engine disagree on the truth value of the formula in some state
+	 * @param state The first state where they differ, or -1
+	 */
+	private static void checkParity(long state)
+	{
+		if (state < 0)
+			return;
+		System.err.println("ERROR: the bit-vector engine disagrees on the formula in state " + state);
+		System.exit(ERR_PARITY);
+	}
+	
+	/**
+	 * Parses a trace file, depending on its format
+	 * @param in_file The file
+	 * @param trace_format The extension of the file
+	 * @param ParserType The parser of XML files (Dom or Sax)
+	 * @param subformulas The subformul&aelig; of the formula to verify
+	 * @param sink Where the atoms of the trace go, or null to store
+	 *   them as tuples
+	 * @return The collector of the trace
+	 */
+	private static TraceCollector parseTrace(File in_file, String trace_format, String ParserType, Set<Operator> subformulas, TraceSink sink)
+	{
+		if (trace_format.compareToIgnoreCase(".txt") == 0)
+			return new CharacterTraceCollector(in_file, subformulas, sink);
+		if (ParserType.equals("Dom"))
+			return new XmlDomTraceCollector(in_file, subformulas, sink);
+		return new XmlSaxTraceCollector(in_file, subformulas, sink);
+	}
 	
 	/**
 	 * Computes the extension of a filename
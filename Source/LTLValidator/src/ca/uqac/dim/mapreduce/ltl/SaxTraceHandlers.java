@@ -258,9 +258,7 @@ public class SaxTraceHandlers extends DefaultHandler
 						//Adds the variable only once to the TraceCollector
 						if(VarDone != true)
 						{
-							LTLTupleValue v = new LTLTupleValue(a, ptrTraceCol.getTraceLength(), 0);
-							LTLTuple t = new LTLTuple(a, v);
-							ptrTraceCol.collect(t);
+							ptrTraceCol.holds(a, ptrTraceCol.getTraceLength());
 							listVarDone.add(nameVar + "/" + value);
 						}//if VarDone
 					}// if
@@ -0,0 +1,42 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * Orders tuple values by state number, and then by iteration. Given to
+ * a workflow (see {@link ca.uqac.dim.mapreduce.SortingShuffleCollector}),
+ * it makes each reducer receive the states of its subformula from the
+ * first to the last.
+ */
+public class StateComparator implements Comparator<LTLTupleValue>, Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	@Override
+	public int compare(LTLTupleValue v1, LTLTupleValue v2)
+	{
+		int n1 = v1.getStateNumber(), n2 = v2.getStateNumber();
+		if (n1 != n2)
+			return n1 < n2 ? -1 : 1;
+		int i1 = v1.getIteration(), i2 = v2.getIteration();
+		return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+	}
+}
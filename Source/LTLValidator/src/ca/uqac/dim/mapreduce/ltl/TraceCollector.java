@@ -4,16 +4,63 @@ import java.util.HashSet;
 import java.util.Set;
 
 import ca.uqac.dim.mapreduce.Collector;
+import ca.uqac.dim.mapreduce.CollectorFactory;
 
 public class TraceCollector extends Collector<Operator,LTLTupleValue>
 {
-	protected int m_traceLength = 0;
+	protected long m_traceLength = 0;
 	
-	public int getTraceLength()
+	/**
+	 * Where the atoms of the trace go, or null to store them as tuples
+	 * of this collector
+	 */
+	protected TraceSink m_sink = null;
+	
+	/**
+	 * Create an empty TraceCollector, stored by the default factory of
+	 * {@link Collector}
+	 */
+	public TraceCollector()
+	{
+		super();
+	}
+	
+	/**
+	 * Create an empty TraceCollector
+	 * @param f The factory that creates the storage of the collector
+	 */
+	public TraceCollector(CollectorFactory f)
+	{
+		super(f);
+	}
+	
+	public long getTraceLength()
 	{
 		return m_traceLength;
 	}
 	
+	/**
+	 * Records that an atom holds in a state of the trace. The tuple of
+	 * the atom and the state is added to the collector, unless the
+	 * collector was given a {@link TraceSink}: the atom then goes to the
+	 * sink, and the collector stays empty.
+	 * @param a The atom
+	 * @param state The number of the state
+	 * @throws IllegalStateException If the state number does not fit
+	 * in a tuple
+	 */
+	protected void holds(Atom a, long state)
+	{
+		if (m_sink != null)
+		{
+			m_sink.holds(a, state);
+			return;
+		}
+		if (state > Integer.MAX_VALUE)
+			throw new IllegalStateException("State " + state + " cannot be stored in a tuple; use interval sets");
+		collect(new LTLTuple(a, new LTLTupleValue(a, (int) state, 0)));
+	}
+	
 	protected static Set<Atom> getAtoms(Set<Operator> subformulas)
 	{
 		assert subformulas != null;
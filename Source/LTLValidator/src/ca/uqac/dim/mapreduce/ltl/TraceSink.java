@@ -0,0 +1,62 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+/**
+ * Receives the atoms that hold in each state of a trace, as the trace
+ * is parsed. A {@link TraceCollector} given a sink hands it the atoms
+ * instead of storing one tuple per atom and state, so that an engine
+ * that does not work on tuples never has the trace as tuples. States
+ * are numbered with <code>long</code>s, so that traces of more than
+ * 2<sup>31</sup> events can be read.
+ */
+public interface TraceSink
+{
+	/**
+	 * Signals that an atom holds in a state of the trace. The states
+	 * are signalled in increasing order.
+	 * @param a The atom
+	 * @param state The number of the state, starting at 0
+	 */
+	public void holds(Atom a, long state);
+	
+	/**
+	 * A sink that hands the atoms to two other sinks, so that two
+	 * engines can be fed by a single reading of the trace
+	 */
+	public static class Tee implements TraceSink
+	{
+		protected final TraceSink m_first;
+		
+		protected final TraceSink m_second;
+		
+		public Tee(TraceSink first, TraceSink second)
+		{
+			super();
+			m_first = first;
+			m_second = second;
+		}
+		
+		@Override
+		public void holds(Atom a, long state)
+		{
+			m_first.holds(a, state);
+			m_second.holds(a, state);
+		}
+	}
+}
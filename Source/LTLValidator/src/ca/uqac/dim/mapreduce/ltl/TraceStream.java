@@ -0,0 +1,117 @@
+/*
+    LTL trace validation using MapReduce
+    Copyright (C) 2012 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce.ltl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uqac.dim.mapreduce.*;
+
+/**
+ * The tuples of a trace, handed to the mappers of the first round while
+ * the trace is still being parsed. The parser runs in a thread of its
+ * own and writes to the stream as a {@link TraceSink}; the stream is a
+ * {@link BlockingCollector} with a capacity, so that the parser waits
+ * for the mappers instead of holding the whole trace in memory. The
+ * length of the trace is only known once the stream is finished.
+ */
+public class TraceStream extends BlockingCollector<Operator,LTLTupleValue> implements TraceSink
+{
+	/**
+	 * The number of tuples handed to the readers at once
+	 */
+	protected final int m_chunkSize;
+	
+	/**
+	 * The tuples not handed to the readers yet
+	 */
+	protected List<Tuple<Operator,LTLTupleValue>> m_chunk;
+	
+	/**
+	 * The length of the trace, or -1 until the stream is finished
+	 */
+	protected volatile long m_traceLength = -1;
+	
+	/**
+	 * The reason the parser stopped, if it failed
+	 */
+	protected volatile RuntimeException m_error = null;
+	
+	/**
+	 * Creates a stream of tuples
+	 * @param capacity The maximum number of tuples parsed but not read
+	 *   yet
+	 */
+	public TraceStream(int capacity)
+	{
+		super(capacity);
+		m_chunkSize = Math.max(1, Math.min(1024, capacity / 4));
+		m_chunk = new ArrayList<Tuple<Operator,LTLTupleValue>>(m_chunkSize);
+	}
+	
+	@Override
+	public void holds(Atom a, long state)
+	{
+		if (state > Integer.MAX_VALUE)
+			throw new IllegalStateException("State " + state + " cannot be stored in a tuple; use interval sets");
+		m_chunk.add(new LTLTuple(a, new LTLTupleValue(a, (int) state, 0)));
+		if (m_chunk.size() >= m_chunkSize)
+		{
+			addAll(m_chunk);
+			m_chunk = new ArrayList<Tuple<Operator,LTLTupleValue>>(m_chunkSize);
+		}
+	}
+	
+	/**
+	 * Ends the stream once the trace is parsed
+	 * @param trace_len The length of the trace
+	 */
+	public void finish(long trace_len)
+	{
+		if (!m_chunk.isEmpty())
+			addAll(m_chunk);
+		m_chunk = null;
+		m_traceLength = trace_len;
+		close();
+	}
+	
+	/**
+	 * Ends the stream when the parser fails. The readers see the end of
+	 * the tuples, and {@link #getTraceLength} reports the failure.
+	 * @param e The reason of the failure
+	 */
+	public void fail(RuntimeException e)
+	{
+		m_error = e;
+		m_chunk = null;
+		close();
+	}
+	
+	/**
+	 * Returns the length of the trace. It must only be called once the
+	 * stream has been read to its end.
+	 * @return The length
+	 * @throws IllegalStateException If the parser failed
+	 */
+	public long getTraceLength()
+	{
+		if (m_error != null)
+			throw new IllegalStateException("The trace could not be parsed", m_error);
+		return m_traceLength;
+	}
+}
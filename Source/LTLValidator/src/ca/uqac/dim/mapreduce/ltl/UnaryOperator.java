@@ -21,6 +21,8 @@ import java.util.Set;
 
 public abstract class UnaryOperator extends Operator
 {
+	private static final long serialVersionUID = 1L;
+	
 	protected Operator m_operand;
 	protected String m_symbol;
 	
@@ -43,6 +45,7 @@ public abstract class UnaryOperator extends Operator
 
 	public void setOperand(Operator o)
 	{
+		checkMutable();
 		m_operand = o;
 	}
 	
@@ -62,6 +65,21 @@ public abstract class UnaryOperator extends Operator
 		return out.toString();
 	}
 	
+	/**
+	 * Unary operators are only equal to themselves (their subclasses
+	 * compare them with {@link Object#equals}), so the hash code is the
+	 * identity hash code. Structurally equal formul&aelig; are made the
+	 * same object by the {@link OperatorFactory}, which compares
+	 * operators through their own descriptions.
+	 */
+	@Override
+	public int hashCode()
+	{
+		if (m_id >= 0)
+			return m_hash;
+		return System.identityHashCode(this);
+	}
+	
 	public boolean hasOperand(Operator o)
 	{
 		return m_operand.equals(o);
@@ -82,6 +100,8 @@ public abstract class UnaryOperator extends Operator
 	
 	public int getDepth()
 	{
+		if (m_id >= 0)
+			return m_depth;
 		return 1 + m_operand.getDepth();
 	}
 }
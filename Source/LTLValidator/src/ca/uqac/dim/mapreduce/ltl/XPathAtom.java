@@ -22,6 +22,8 @@ import org.w3c.dom.NodeList;
 
 public class XPathAtom extends Atom
 {
+	private static final long serialVersionUID = 1L;
+	
 	String[] m_parts;
 	
 	public XPathAtom(String s)
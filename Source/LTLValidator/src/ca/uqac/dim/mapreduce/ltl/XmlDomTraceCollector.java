@@ -46,8 +46,21 @@ public class XmlDomTraceCollector extends TraceCollector
 	 * @param filename The filename to read the trace from
 	 */
 	public XmlDomTraceCollector(File f, Set<Operator> subformulas)
+	{
+		this(f, subformulas, null);
+	}
+	
+	/**
+	 * Creates an instance of an XmlDomTraceCollector that hands the
+	 * atoms of the trace to a sink
+	 * @param f The file to read the trace from
+	 * @param subformulas The subformul&aelig; of the formula to verify
+	 * @param sink The sink, or null to store the trace as tuples
+	 */
+	public XmlDomTraceCollector(File f, Set<Operator> subformulas, TraceSink sink)
 	{
 		this();
+		m_sink = sink;
 		// Computes the set of atoms
 		Set<Atom> atoms = getAtoms(subformulas);
 		// Get file contents
@@ -97,11 +110,7 @@ public class XmlDomTraceCollector extends TraceCollector
 			for (Atom a : atoms)
 			{
 				if (a.isPresent(n))
-				{
-					LTLTupleValue v = new LTLTupleValue(a, i, 0);
-					LTLTuple t = new LTLTuple(a, v);
-					collect(t);
-				}
+					holds(a, i);
 			}
 		}
 	}
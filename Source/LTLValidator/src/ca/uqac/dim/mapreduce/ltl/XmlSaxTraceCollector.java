@@ -46,8 +46,21 @@ public class XmlSaxTraceCollector extends TraceCollector{
 	* @param filename The filename to read the trace from
 	*/
 	public XmlSaxTraceCollector(File f, Set<Operator> subformulas) 
+	{
+		this(f, subformulas, null);
+	}
+	
+	/**
+	* Creates an instance of an XmlSaxTraceCollector that hands the
+	* atoms of the trace to a sink
+	* @param f The file to read the trace from
+	* @param subformulas The subformul&aelig; of the formula to verify
+	* @param sink The sink, or null to store the trace as tuples
+	*/
+	public XmlSaxTraceCollector(File f, Set<Operator> subformulas, TraceSink sink) 
 	{
 		this();
+		m_sink = sink;
 
 		// Computes the set of atoms
 		Set<Atom> atoms = getAtoms(subformulas);
@@ -0,0 +1,303 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Collector whose tuples can be enumerated while they are still being
+ * collected. It is used to stream the output of the mappers to the
+ * reducers: a reducer can start enumerating its input as soon as the
+ * first tuples for its key have been produced. When the reducer has
+ * consumed all the tuples collected so far, {@link #hasNext} blocks until
+ * more tuples are collected, or until the collector is closed (which
+ * signals that no more tuples will come).
+ * <p>
+ * Tuples are collected by chunks (see {@link #addAll}); a chunk must not be
+ * modified once it has been added. A BlockingCollector can be written to
+ * by many threads, but enumerated by a single one.
+ * <p>
+ * A BlockingCollector can be given a capacity. It then forgets the
+ * chunks once they are enumerated, and {@link #addAll} blocks while the
+ * reader is behind by more than the capacity, so that a fast producer
+ * waits for the reader instead of filling the memory. A writer only
+ * blocks once the reader has started: the reader of a collector may be
+ * waiting for a worker, which could otherwise be held by a blocked
+ * writer. Such a collector cannot be rewound once it has been read.
+ */
+public class BlockingCollector<K,V> implements InCollector<K,V>, OutCollector<K,V>
+{
+	/**
+	 * The chunks of tuples collected so far
+	 */
+	private List<List<Tuple<K,V>>> m_chunks = new ArrayList<List<Tuple<K,V>>>();
+	
+	/**
+	 * The number of tuples collected so far
+	 */
+	private int m_count = 0;
+	
+	/**
+	 * Whether more tuples may still be collected
+	 */
+	private boolean m_closed = false;
+	
+	/**
+	 * The index of the next chunk to enumerate
+	 */
+	private int m_chunkIndex = 0;
+	
+	/**
+	 * The enumeration of the current chunk
+	 */
+	private Iterator<Tuple<K,V>> m_it = null;
+	
+	/**
+	 * The maximum number of tuples collected but not enumerated yet, or 0
+	 * for no maximum
+	 */
+	private final int m_capacity;
+	
+	/**
+	 * The number of tuples collected but not enumerated yet
+	 */
+	private int m_pending = 0;
+	
+	/**
+	 * Whether the reader has started enumerating the tuples, and not
+	 * given up on them
+	 */
+	private boolean m_reading = false;
+	
+	/**
+	 * Whether the reader has given up on the tuples
+	 */
+	private boolean m_released = false;
+	
+	/**
+	 * Create an instance of BlockingCollector, which keeps all the tuples
+	 * collected
+	 */
+	public BlockingCollector()
+	{
+		this(0);
+	}
+	
+	/**
+	 * Create an instance of BlockingCollector
+	 * @param capacity The maximum number of tuples collected but not yet
+	 * enumerated, or 0 to keep all the tuples collected
+	 */
+	public BlockingCollector(int capacity)
+	{
+		super();
+		m_capacity = capacity;
+	}
+	
+	/**
+	 * Add a new tuple to the collector
+	 * @param t The {@link Tuple} to add
+	 */
+	@Override
+	public void collect(Tuple<K,V> t)
+	{
+		addAll(Collections.singletonList(t));
+	}
+	
+	/**
+	 * Add a chunk of tuples to the collector, and wakes up the reader
+	 * if it is waiting for tuples
+	 * @param tuples The tuples to add. The list is not copied, and must
+	 * not be modified afterwards.
+	 */
+	public synchronized void addAll(List<Tuple<K,V>> tuples)
+	{
+		if (m_closed)
+			throw new IllegalStateException("Collector is closed");
+		if (tuples.isEmpty())
+			return;
+		boolean interrupted = false;
+		while (m_capacity > 0 && m_reading && m_pending > 0
+				&& m_pending + tuples.size() > m_capacity)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				// The tuples cannot be dropped
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		m_count += tuples.size();
+		if (m_released)
+		{
+			// The reader gave up on its input
+			return;
+		}
+		m_chunks.add(tuples);
+		m_pending += tuples.size();
+		notifyAll();
+	}
+	
+	/**
+	 * Signals that no more tuples will be collected. A reader waiting
+	 * for tuples is woken up, and {@link #hasNext} returns false once all
+	 * the tuples have been enumerated.
+	 */
+	public synchronized void close()
+	{
+		m_closed = true;
+		notifyAll();
+	}
+	
+	/**
+	 * Signals that the reader will not enumerate the tuples any further.
+	 * The writers waiting for the reader are woken up, and the tuples
+	 * collected from then on are dropped. This has no effect on a
+	 * collector that keeps all its tuples.
+	 */
+	public synchronized void release()
+	{
+		if (m_capacity == 0)
+			return;
+		m_reading = false;
+		m_released = true;
+		m_chunks.clear();
+		m_chunkIndex = 0;
+		m_pending = 0;
+		notifyAll();
+	}
+	
+	/**
+	 * Tells whether the collector has been closed
+	 * @return true if no more tuples will be collected
+	 */
+	public synchronized boolean isClosed()
+	{
+		return m_closed;
+	}
+	
+	/**
+	 * Count the number of tuples in the collector
+	 * @return The number of tuples collected so far. This is the total
+	 * number of tuples once the collector is closed.
+	 */
+	@Override
+	public synchronized int count()
+	{
+		return m_count;
+	}
+	
+	@Override
+	public boolean hasNext()
+	{
+		while (m_it == null || !m_it.hasNext())
+		{
+			List<Tuple<K,V>> chunk = nextChunk();
+			if (chunk == null)
+				return false;
+			m_it = chunk.iterator();
+		}
+		return true;
+	}
+
+	@Override
+	public Tuple<K,V> next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return m_it.next();
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+	
+	@Override
+	public synchronized void rewind()
+	{
+		if (m_capacity > 0 && m_reading)
+			throw new UnsupportedOperationException("A bounded collector cannot be read twice");
+		m_chunkIndex = 0;
+		m_it = null;
+	}
+	
+	/**
+	 * Returns the next chunk to enumerate, waiting for it to be collected
+	 * if needed
+	 * @return The chunk, or null if the collector is closed and all the
+	 * chunks have been enumerated
+	 */
+	private synchronized List<Tuple<K,V>> nextChunk()
+	{
+		m_reading = !m_released;
+		boolean interrupted = false;
+		while (m_chunkIndex >= m_chunks.size() && !m_closed)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				// The reducer cannot stop with part of its input missing
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (m_chunkIndex >= m_chunks.size())
+			return null;
+		List<Tuple<K,V>> chunk = m_chunks.get(m_chunkIndex++);
+		if (m_capacity > 0)
+		{
+			// Forget the chunk, and let the writers waiting for room go on
+			m_chunks.set(m_chunkIndex - 1, null);
+			if (m_chunkIndex == m_chunks.size())
+			{
+				m_chunks.clear();
+				m_chunkIndex = 0;
+			}
+			m_pending -= chunk.size();
+			notifyAll();
+		}
+		return chunk;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		List<Tuple<K,V>> tuples = new ArrayList<Tuple<K,V>>(m_count);
+		for (List<Tuple<K,V>> chunk : m_chunks)
+		{
+			if (chunk != null)
+				tuples.addAll(chunk);
+		}
+		return tuples.toString();
+	}
+}
@@ -0,0 +1,166 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output collector that can be written to by many workers at the same
+ * time without them waiting on each other. Each thread that collects
+ * tuples gets its own append buffer, which no other thread touches; the
+ * buffers are only put together by {@link #merge}, once all the workers
+ * are over (i.e. at the barrier that ends a phase of the map-reduce job).
+ * <p>
+ * The tuples collected by the same worker keep their order in the
+ * merged collector.
+ */
+public class BufferedCollector<K,V> implements OutCollector<K,V>
+{
+	/**
+	 * The buffers of all the workers that collected tuples since the
+	 * last merge
+	 */
+	private List<List<Tuple<K,V>>> m_buffers = new ArrayList<List<Tuple<K,V>>>();
+	
+	/**
+	 * The buffer of the current thread
+	 */
+	private volatile ThreadLocal<List<Tuple<K,V>>> m_localBuffer = newLocalBuffer();
+	
+	/**
+	 * The factory that creates the storage of the merged collector
+	 */
+	private CollectorFactory m_factory;
+	
+	/**
+	 * Create an instance of BufferedCollector, whose tuples are merged
+	 * into a collector stored by the default factory
+	 */
+	public BufferedCollector()
+	{
+		this(Collector.getDefaultFactory());
+	}
+	
+	/**
+	 * Create an instance of BufferedCollector
+	 * @param f The factory that creates the storage of the merged
+	 * collector
+	 */
+	public BufferedCollector(CollectorFactory f)
+	{
+		super();
+		m_factory = f;
+	}
+	
+	/**
+	 * Add a new tuple to the buffer of the current thread
+	 * @param t The {@link Tuple} to add
+	 */
+	@Override
+	public void collect(Tuple<K,V> t)
+	{
+		m_localBuffer.get().add(t);
+	}
+	
+	/**
+	 * Puts the buffers of all the workers together in a single Collector,
+	 * and empties the buffers. This must only be called once the workers
+	 * have stopped collecting tuples.
+	 * @return The Collector containing all the tuples collected since
+	 * the last merge
+	 */
+	public Collector<K,V> merge()
+	{
+		return merge(null);
+	}
+	
+	/**
+	 * Puts the buffers of all the workers together in the given
+	 * Collector, and empties the buffers. The Collector is emptied
+	 * first. This must only be called once the workers have stopped
+	 * collecting tuples.
+	 * @param out The Collector, or null to create a new one
+	 * @return The Collector containing all the tuples collected since
+	 * the last merge
+	 */
+	public Collector<K,V> merge(Collector<K,V> out)
+	{
+		if (out == null)
+			out = new Collector<K,V>(m_factory);
+		else
+			out.clear();
+		synchronized (m_buffers)
+		{
+			for (List<Tuple<K,V>> buffer : m_buffers)
+			{
+				out.addAll(buffer);
+				// The old thread locals stay in the workers' maps until
+				// they are expunged: do not let them hold the tuples
+				buffer.clear();
+			}
+			m_buffers.clear();
+			m_localBuffer = newLocalBuffer();
+		}
+		return out;
+	}
+	
+	/**
+	 * Count the number of tuples in the collector
+	 * @return The number of tuples
+	 */
+	public int count()
+	{
+		int total = 0;
+		synchronized (m_buffers)
+		{
+			for (List<Tuple<K,V>> buffer : m_buffers)
+				total += buffer.size();
+		}
+		return total;
+	}
+	
+	@Override
+	public void rewind()
+	{
+		// Nothing to do
+	}
+	
+	/**
+	 * Creates the thread-local buffers of the workers. The buffer of a
+	 * worker is registered with the collector the first time the worker
+	 * collects a tuple.
+	 * @return The thread-local buffers
+	 */
+	private ThreadLocal<List<Tuple<K,V>>> newLocalBuffer()
+	{
+		return new ThreadLocal<List<Tuple<K,V>>>()
+		{
+			@Override
+			protected List<Tuple<K,V>> initialValue()
+			{
+				List<Tuple<K,V>> buffer = new ArrayList<Tuple<K,V>>();
+				synchronized (m_buffers)
+				{
+					m_buffers.add(buffer);
+				}
+				return buffer;
+			}
+		};
+	}
+}
@@ -0,0 +1,171 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Input collector that reads tuples from a channel (a file, a
+ * socket...), using a {@link TupleSerializer}. The tuples are read
+ * until the end of the channel; they are typically written by a
+ * {@link ChannelOutCollector} using the same kind of serializer.
+ * <p>
+ * The collector can only be rewound if the channel is seekable (for
+ * example, a file). Since {@link #next} cannot throw checked
+ * exceptions, an error while reading is reported as a
+ * {@link RuntimeException}.
+ */
+public class ChannelInCollector<K,V> implements InCollector<K,V>
+{
+	/**
+	 * The size of the buffer in front of the channel
+	 */
+	private static final int BUFFER_SIZE = 65536;
+	
+	private ReadableByteChannel m_channel;
+	private TupleSerializer<K,V> m_serializer;
+	private TupleSerializer<K,V> m_reader;
+	private BufferedInputStream m_buffer;
+	private DataInputStream m_in;
+	
+	/**
+	 * The position of the first tuple in the channel, if it is seekable
+	 */
+	private long m_start = 0;
+	
+	/**
+	 * Create an instance of ChannelInCollector
+	 * @param channel The channel to read from
+	 * @param s The {@link TupleSerializer} used to read the tuples. A
+	 * new instance of it is used for the stream.
+	 */
+	public ChannelInCollector(ReadableByteChannel channel, TupleSerializer<K,V> s)
+	{
+		super();
+		m_channel = channel;
+		m_serializer = s;
+		if (channel instanceof SeekableByteChannel)
+		{
+			try
+			{
+				m_start = ((SeekableByteChannel) channel).position();
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Cannot read tuples", e);
+			}
+		}
+		open();
+	}
+	
+	/**
+	 * Count the number of tuples in the collector
+	 * @return -1, since the number of tuples is only known once they
+	 * have all been read
+	 */
+	@Override
+	public int count()
+	{
+		return -1;
+	}
+	
+	@Override
+	public boolean hasNext()
+	{
+		try
+		{
+			m_buffer.mark(1);
+			int b = m_buffer.read();
+			m_buffer.reset();
+			return b != -1;
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Cannot read tuples", e);
+		}
+	}
+	
+	@Override
+	public Tuple<K,V> next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+		try
+		{
+			return m_reader.read(m_in);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Cannot read tuples", e);
+		}
+	}
+	
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Rewinds the collector to the first tuple of the channel
+	 * @throws UnsupportedOperationException If the channel is not
+	 * seekable
+	 */
+	@Override
+	public void rewind()
+	{
+		if (!(m_channel instanceof SeekableByteChannel))
+			throw new UnsupportedOperationException("Channel cannot be rewound");
+		try
+		{
+			((SeekableByteChannel) m_channel).position(m_start);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Cannot read tuples", e);
+		}
+		open();
+	}
+	
+	/**
+	 * Closes the channel
+	 * @throws IOException If the channel cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		m_channel.close();
+	}
+	
+	/**
+	 * Starts reading the channel from its current position
+	 */
+	private void open()
+	{
+		InputStream is = Channels.newInputStream(m_channel);
+		m_buffer = new BufferedInputStream(is, BUFFER_SIZE);
+		m_in = new DataInputStream(m_buffer);
+		m_reader = m_serializer.newInstance();
+	}
+}
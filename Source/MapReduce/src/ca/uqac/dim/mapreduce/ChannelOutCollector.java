@@ -0,0 +1,112 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output collector that writes the tuples it collects to a channel
+ * (a file, a socket...), using a {@link TupleSerializer}. It can be used
+ * to persist the output of a map-reduce job, or to send it to another
+ * process; the tuples can be read back with a {@link ChannelInCollector}
+ * using the same kind of serializer. The collector must be closed once
+ * all the tuples have been collected.
+ * <p>
+ * Since {@link #collect} cannot throw checked exceptions, an error while
+ * writing is reported as a {@link RuntimeException}.
+ */
+public class ChannelOutCollector<K,V> implements OutCollector<K,V>
+{
+	/**
+	 * The size of the buffer in front of the channel
+	 */
+	private static final int BUFFER_SIZE = 65536;
+	
+	private DataOutputStream m_out;
+	private TupleSerializer<K,V> m_serializer;
+	private int m_count = 0;
+	
+	/**
+	 * Create an instance of ChannelOutCollector
+	 * @param channel The channel to write to
+	 * @param s The {@link TupleSerializer} used to write the tuples. A
+	 * new instance of it is used for the stream.
+	 */
+	public ChannelOutCollector(WritableByteChannel channel, TupleSerializer<K,V> s)
+	{
+		super();
+		m_out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+		m_serializer = s.newInstance();
+	}
+	
+	/**
+	 * Writes a tuple to the channel
+	 * @param t The {@link Tuple} to write
+	 */
+	@Override
+	public synchronized void collect(Tuple<K,V> t)
+	{
+		try
+		{
+			m_serializer.write(m_out, t);
+			m_count++;
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Cannot write tuple", e);
+		}
+	}
+	
+	/**
+	 * Count the number of tuples written so far
+	 * @return The number of tuples
+	 */
+	public synchronized int count()
+	{
+		return m_count;
+	}
+	
+	/**
+	 * Writes the tuples still in the buffer to the channel
+	 * @throws IOException If the tuples cannot be written
+	 */
+	public synchronized void flush() throws IOException
+	{
+		m_out.flush();
+	}
+	
+	/**
+	 * Writes the tuples still in the buffer to the channel, and closes
+	 * the channel
+	 * @throws IOException If the tuples cannot be written
+	 */
+	public synchronized void close() throws IOException
+	{
+		m_out.close();
+	}
+	
+	@Override
+	public void rewind()
+	{
+		// Nothing to do
+	}
+}
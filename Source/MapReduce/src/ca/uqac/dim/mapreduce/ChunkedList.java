@@ -0,0 +1,321 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * List stored as a sequence of arrays ("chunks"), each twice the size
+ * of the previous one. Appending an element never copies the elements
+ * already in the list (only a new chunk is allocated when the last one
+ * is full), and the position of an element in its chunk is computed
+ * from its index in constant time. Hence, the list can be read at any
+ * index, and cut into ranges (with {@link #subList}) for parallel
+ * consumers, in constant time; and its elements lie next to each other
+ * in memory, rather than in a node each as in a linked list.
+ * <p>
+ * Like {@link java.util.ArrayList}, this list is not synchronized.
+ */
+public class ChunkedList<E> extends AbstractList<E> implements RandomAccess
+{
+	/**
+	 * The size of the first chunk is 2<sup>FIRST_SHIFT</sup>
+	 */
+	private static final int FIRST_SHIFT = 4;
+	
+	/**
+	 * The size of the first chunk
+	 */
+	private static final int FIRST_SIZE = 1 << FIRST_SHIFT;
+	
+	/**
+	 * The chunks. Chunk <i>c</i> holds the elements whose index
+	 * <i>i</i> is such that 2<sup><i>c</i>+FIRST_SHIFT</sup> &le;
+	 * <i>i</i> + FIRST_SIZE &lt; 2<sup><i>c</i>+FIRST_SHIFT+1</sup>.
+	 */
+	private Object[][] m_chunks = new Object[32 - FIRST_SHIFT][];
+	
+	private int m_size = 0;
+	
+	/**
+	 * Create an empty ChunkedList
+	 */
+	public ChunkedList()
+	{
+		super();
+	}
+	
+	@Override
+	public int size()
+	{
+		return m_size;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public E get(int index)
+	{
+		checkIndex(index);
+		int i = index + FIRST_SIZE;
+		return (E) m_chunks[chunkOf(i)][i ^ Integer.highestOneBit(i)];
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public E set(int index, E element)
+	{
+		checkIndex(index);
+		int i = index + FIRST_SIZE;
+		Object[] chunk = m_chunks[chunkOf(i)];
+		int offset = i ^ Integer.highestOneBit(i);
+		E old = (E) chunk[offset];
+		chunk[offset] = element;
+		return old;
+	}
+	
+	@Override
+	public boolean add(E element)
+	{
+		if (m_size == Integer.MAX_VALUE - FIRST_SIZE)
+			throw new IllegalStateException("List is full");
+		int i = m_size + FIRST_SIZE;
+		int c = chunkOf(i);
+		Object[] chunk = m_chunks[c];
+		if (chunk == null)
+		{
+			chunk = new Object[FIRST_SIZE << c];
+			m_chunks[c] = chunk;
+		}
+		chunk[i ^ Integer.highestOneBit(i)] = element;
+		m_size++;
+		modCount++;
+		return true;
+	}
+	
+	@Override
+	public void add(int index, E element)
+	{
+		if (index < 0 || index > m_size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+		add(element);
+		for (int i = m_size - 1; i > index; i--)
+			set(i, get(i - 1));
+		set(index, element);
+	}
+	
+	@Override
+	public E remove(int index)
+	{
+		E old = get(index);
+		for (int i = index; i < m_size - 1; i++)
+			set(i, get(i + 1));
+		set(m_size - 1, null);
+		m_size--;
+		modCount++;
+		return old;
+	}
+	
+	/**
+	 * Removes all the elements of the list. The chunks are kept, so
+	 * that the list can be filled again up to its former size without
+	 * allocating anything.
+	 */
+	@Override
+	public void clear()
+	{
+		int left = m_size;
+		for (int c = 0; left > 0; c++)
+		{
+			int len = Math.min(left, m_chunks[c].length);
+			Arrays.fill(m_chunks[c], 0, len, null);
+			left -= len;
+		}
+		m_size = 0;
+		modCount++;
+	}
+	
+	/**
+	 * Enumerates the elements chunk by chunk, without computing the
+	 * position of each of them
+	 */
+	@Override
+	public Iterator<E> iterator()
+	{
+		return new ChunkIterator();
+	}
+	
+	/**
+	 * Returns a spliterator that splits a range of positions in two
+	 * halves in constant time
+	 */
+	@Override
+	public Spliterator<E> spliterator()
+	{
+		return new ChunkSpliterator(0, m_size, modCount);
+	}
+	
+	/**
+	 * Returns the chunk that holds a position
+	 * @param i The index of an element, plus FIRST_SIZE
+	 * @return The number of the chunk
+	 */
+	private static int chunkOf(int i)
+	{
+		return 31 - Integer.numberOfLeadingZeros(i) - FIRST_SHIFT;
+	}
+	
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= m_size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + m_size);
+	}
+	
+	private class ChunkSpliterator implements Spliterator<E>
+	{
+		private int m_index;
+		private final int m_fence;
+		private final int m_expectedModCount;
+		
+		ChunkSpliterator(int from, int to, int expected_mod_count)
+		{
+			super();
+			m_index = from;
+			m_fence = to;
+			m_expectedModCount = expected_mod_count;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super E> action)
+		{
+			if (m_index >= m_fence)
+				return false;
+			E e = get(m_index);
+			m_index++;
+			action.accept(e);
+			checkModCount();
+			return true;
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public void forEachRemaining(Consumer<? super E> action)
+		{
+			// Walk each chunk directly instead of locating every position
+			while (m_index < m_fence)
+			{
+				int i = m_index + FIRST_SIZE;
+				Object[] chunk = m_chunks[chunkOf(i)];
+				int offset = i ^ Integer.highestOneBit(i);
+				int end = Math.min(chunk.length, offset + m_fence - m_index);
+				m_index += end - offset;
+				for (int j = offset; j < end; j++)
+					action.accept((E) chunk[j]);
+			}
+			checkModCount();
+		}
+		
+		@Override
+		public Spliterator<E> trySplit()
+		{
+			int middle = (m_index + m_fence) >>> 1;
+			if (middle <= m_index)
+				return null;
+			Spliterator<E> prefix = new ChunkSpliterator(m_index, middle, m_expectedModCount);
+			m_index = middle;
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize()
+		{
+			return m_fence - m_index;
+		}
+		
+		@Override
+		public int characteristics()
+		{
+			return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED;
+		}
+		
+		private void checkModCount()
+		{
+			if (modCount != m_expectedModCount)
+				throw new ConcurrentModificationException();
+		}
+	}
+	
+	private class ChunkIterator implements Iterator<E>
+	{
+		private int m_index = 0;
+		private int m_chunk = 0;
+		private int m_offset = 0;
+		private int m_last = -1;
+		private int m_expectedModCount = modCount;
+		
+		@Override
+		public boolean hasNext()
+		{
+			return m_index < m_size;
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public E next()
+		{
+			if (modCount != m_expectedModCount)
+				throw new ConcurrentModificationException();
+			if (m_index >= m_size)
+				throw new NoSuchElementException();
+			Object[] chunk = m_chunks[m_chunk];
+			E e = (E) chunk[m_offset];
+			m_last = m_index;
+			m_index++;
+			m_offset++;
+			if (m_offset == chunk.length)
+			{
+				m_chunk++;
+				m_offset = 0;
+			}
+			return e;
+		}
+		
+		@Override
+		public void remove()
+		{
+			if (m_last < 0)
+				throw new IllegalStateException();
+			if (modCount != m_expectedModCount)
+				throw new ConcurrentModificationException();
+			ChunkedList.this.remove(m_last);
+			// The next element has moved to the position just removed
+			m_index = m_last;
+			int i = m_index + FIRST_SIZE;
+			m_chunk = chunkOf(i);
+			m_offset = i ^ Integer.highestOneBit(i);
+			m_last = -1;
+			m_expectedModCount = modCount;
+		}
+	}
+}
@@ -22,22 +22,95 @@ import java.util.*;
  * Data source used both as the input and output of the map and reduce 
  * phases. A Collector can be used to:
  * <ol>
- * <li>Store data tuples using the {@link collect} method</li>
- * <li>Enumerate data tuples using the {@link hasNext} and {@link next}
+ * <li>Store data tuples using the {@link #collect} method</li>
+ * <li>Enumerate data tuples using the {@link #hasNext} and {@link #next}
  * methods, like an {@link Iterator}</li>
  * <li>Partition the set of tuples into a set of Collectors, grouping
- * tuples by their key, using the {@link subCollector} and 
- * {@link subCollectors} methods</li> 
+ * tuples by their key, using the {@link #subCollector} and 
+ * {@link #subCollectors} methods</li> 
  * </ol>
+ * The tuples are stored in a list created by a {@link CollectorFactory};
+ * unless told otherwise, a Collector uses the default factory, which
+ * stores the tuples in a {@link ChunkedList}.
  * @author Sylvain Hallé
  * @version 1.1
  *
  */
 public class Collector<K,V> implements InCollector<K,V>, OutCollector<K,V>
 {
-	private List<Tuple<K,V>> m_tuples = new LinkedList<Tuple<K,V>>();
+	/**
+	 * The factory used by the Collectors that are not given one
+	 */
+	private static volatile CollectorFactory s_defaultFactory = new ChunkedCollectorFactory();
+	
+	private List<Tuple<K,V>> m_tuples;
 	private Iterator<Tuple<K,V>> m_it = null;
 	
+	/**
+	 * Create an empty Collector, stored by the default factory
+	 */
+	public Collector()
+	{
+		this(s_defaultFactory);
+	}
+	
+	/**
+	 * Create an empty Collector
+	 * @param f The factory that creates the storage of the Collector
+	 */
+	public Collector(CollectorFactory f)
+	{
+		this(f.<K,V>newStorage());
+	}
+	
+	/**
+	 * Create a Collector whose contents are the given list of tuples.
+	 * The list is not copied: it becomes the storage of the Collector.
+	 * @param tuples The list of tuples
+	 */
+	public Collector(List<Tuple<K,V>> tuples)
+	{
+		super();
+		m_tuples = tuples;
+	}
+	
+	/**
+	 * Sets the factory used by the Collectors that are not given one
+	 * @param f The factory
+	 */
+	public static void setDefaultFactory(CollectorFactory f)
+	{
+		s_defaultFactory = f;
+	}
+	
+	/**
+	 * Returns the factory used by the Collectors that are not given one
+	 * @return The factory
+	 */
+	public static CollectorFactory getDefaultFactory()
+	{
+		return s_defaultFactory;
+	}
+	
+	/**
+	 * Returns a Collector made of a range of the tuples of this one.
+	 * The tuples are not copied: the new Collector is a view of this
+	 * one, which must hence not be modified while the range is used.
+	 * With a storage that allows it (such as a {@link ChunkedList}),
+	 * this takes constant time, so that the contents of a Collector
+	 * can be split among parallel consumers.
+	 * @param from The position of the first tuple of the range
+	 * @param to The position following the last tuple of the range
+	 * @return The Collector
+	 */
+	public Collector<K,V> range(int from, int to)
+	{
+		synchronized (this)
+		{
+			return new Collector<K,V>(m_tuples.subList(from, to));
+		}
+	}
+	
 	/**
 	 * Return the Collector's contents as a list of tuples
 	 * @return The list of tuples
@@ -58,6 +131,21 @@ public class Collector<K,V> implements InCollector<K,V>, OutCollector<K,V>
             }
 	}
 	
+	/**
+	 * Removes all the tuples of the Collector. Its storage is kept, so
+	 * that the Collector can be filled again without allocating it
+	 * anew; the ranges of the Collector (see {@link #range}) must no
+	 * longer be used.
+	 */
+	public void clear()
+	{
+		synchronized (this)
+		{
+			m_tuples.clear();
+			m_it = null;
+		}
+	}
+	
 	/**
 	 * Add a new tuple to the Collector in a synchronized mode
 	 * @param t The {@link Tuple} to add
@@ -141,6 +229,22 @@ public class Collector<K,V> implements InCollector<K,V>, OutCollector<K,V>
 		m_it.remove();
 	}
 	
+	/**
+	 * Returns a {@link Spliterator} over the tuples of the Collector.
+	 * It does not affect the enumeration of the Collector with
+	 * {@link #hasNext} and {@link #next}; the Collector must not be
+	 * modified while it is used.
+	 * @return The spliterator
+	 */
+	@Override
+	public Spliterator<Tuple<K,V>> spliterator()
+	{
+		synchronized (this)
+		{
+			return m_tuples.spliterator();
+		}
+	}
+	
 	@Override
 	public String toString()
 	{
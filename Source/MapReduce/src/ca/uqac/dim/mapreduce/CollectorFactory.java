@@ -0,0 +1,36 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.List;
+
+/**
+ * Creates the storage of new {@link Collector}s. The factory decides
+ * which kind of list holds the tuples of a collector; the collectors
+ * created by the workflows use the factory given to them, and all the
+ * others use the default factory (see
+ * {@link Collector#setDefaultFactory}).
+ */
+public interface CollectorFactory
+{
+	/**
+	 * Creates an empty list to hold the tuples of a collector
+	 * @return The list
+	 */
+	public <K,V> List<Tuple<K,V>> newStorage();
+}
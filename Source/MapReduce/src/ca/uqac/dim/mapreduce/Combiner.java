@@ -0,0 +1,43 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+/**
+ * Interface declaration of the (optional) combine phase of the
+ * map-reduce algorithm. A combiner is run on the output of a single
+ * mapper, one key at a time, before that output is sent to the shuffle.
+ * It can be used to pre-aggregate tuples locally, so that fewer tuples
+ * go through the shuffle and reach the reducers.
+ * <p>
+ * A combiner must only output tuples with the key it is given, and
+ * these tuples must be a valid input for the reducer. Since the
+ * workflow is free to run it any number of times (including zero) on
+ * any part of the map output, the result of the reduce phase must be
+ * the same whether the combiner is used or not.
+ */
+public interface Combiner<K,V>
+{
+	/**
+	 * Combine function
+	 * @param out A {@link OutCollector} that will be used to write output tuples
+	 * @param key The key associated to this instance of combiner
+	 * @param in An {@link InCollector} containing the tuples generated by
+	 * a single mapper for the given key
+	 */
+	public void combine(OutCollector<K,V> out, K key, InCollector<K,V> in);
+}
@@ -0,0 +1,325 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Coordinates the execution of a map-reduce job on a
+ * {@link ForkJoinPool}. Rather than cutting the work into a fixed
+ * number of jobs for a fixed number of threads (as the
+ * {@link ParallelWorkflow} does), each phase is a task that recursively
+ * splits its part of the work in two: the input tuples in the map
+ * phase, and the set of keys in the reduce phase. An idle worker of the
+ * pool steals the pending halves of a busy one; hence a key whose
+ * reducer takes much longer than the others only keeps one worker
+ * busy, while the other keys are spread among the rest of the pool.
+ * The input tuples are split through the {@link Spliterator} of the
+ * source, without being copied first.
+ * <p>
+ * A pool is meant to be created once and shared by all the jobs of a
+ * process.
+ */
+public class ForkJoinWorkflow<K,V> implements ReusableWorkflow<K,V>
+{
+	/**
+	 * The minimum number of input tuples a map task handles without
+	 * splitting them further
+	 */
+	protected static final int MIN_CHUNK_SIZE = 1024;
+	
+	/**
+	 * The number of map tasks per worker of the pool, once the input is
+	 * completely split. More tasks than workers give the pool some
+	 * room to balance the work.
+	 */
+	protected static final int CHUNKS_PER_WORKER = 8;
+	
+	private Mapper<K,V> m_mapper = null;
+	private Reducer<K,V> m_reducer = null;
+	private InCollector<K,V> m_source = null;
+	private Collector<K,V> m_output = null;
+	private Combiner<K,V> m_combiner = null;
+	private Comparator<? super V> m_comparator = null;
+	private ForkJoinPool m_pool = null;
+	private CollectorFactory m_factory = Collector.getDefaultFactory();
+	private Metrics m_metrics = Metrics.getGlobal();
+	
+	/**
+	 * The total number of tuples processed by all reducers
+	 */
+	protected long m_totalTuples = 0;
+	
+	/**
+	 * The maximum number of tuples processed by a single reducer
+	 */
+	protected long m_maxTuples = 0;
+	
+	/**
+	 * Create an instance of ForkJoinWorkflow
+	 * @param m The {@link Mapper} to use in the map phase
+	 * @param r The {@link Reducer} to use in the reduce phase
+	 * @param c The {@link InCollector} to use as the input source of tuples
+	 * @param pool The pool that runs the tasks of the job
+	 */
+	public ForkJoinWorkflow(Mapper<K,V> m, Reducer<K,V> r, InCollector<K,V> c, ForkJoinPool pool)
+	{
+		super();
+		setMapper(m);
+		setReducer(r);
+		setSource(c);
+		m_pool = pool;
+	}
+	
+	public void setMapper(Mapper<K,V> m)
+	{
+		m_mapper = m;
+	}
+	
+	public void setReducer(Reducer<K,V> r)
+	{
+		m_reducer = r;
+	}
+	
+	public void setSource(InCollector<K,V> c)
+	{
+		m_source = c;
+	}
+	
+	/**
+	 * Sets the collector in which the next runs write their output. It
+	 * is emptied at the start of each run. By default, a new collector
+	 * is created for each run.
+	 * @param c The collector, or null to create a new one
+	 */
+	public void setOutput(Collector<K,V> c)
+	{
+		m_output = c;
+	}
+	
+	/**
+	 * Sets the combiner to run on the output of each map task before
+	 * the shuffle. By default, no combiner is used.
+	 * @param c The {@link Combiner} to use, or null for none
+	 */
+	public void setCombiner(Combiner<K,V> c)
+	{
+		m_combiner = c;
+	}
+	
+	/**
+	 * Sets the order in which each reducer receives the values of its
+	 * key (see {@link SortingShuffleCollector}). By default,
+	 * the values are not sorted.
+	 * @param c The order of the values, or null not to sort them
+	 */
+	public void setValueComparator(Comparator<? super V> c)
+	{
+		m_comparator = c;
+	}
+	
+	/**
+	 * Sets the registry in which the workflow records its metrics. By
+	 * default, the global registry is used (see {@link Metrics}).
+	 * @param m The registry
+	 */
+	public void setMetrics(Metrics m)
+	{
+		m_metrics = m;
+	}
+	
+	/**
+	 * Sets the factory that creates the storage of the collectors of
+	 * the job (the groups of the shuffle and the output). By default,
+	 * the default factory of {@link Collector} is used.
+	 * @param f The factory
+	 */
+	public void setCollectorFactory(CollectorFactory f)
+	{
+		m_factory = f;
+	}
+	
+	@Override
+	public InCollector<K,V> run()
+	{
+		if (m_mapper == null || m_reducer == null || m_source == null)
+			return null;
+		m_maxTuples = 0;
+		m_totalTuples = 0;
+		Spliterator<Tuple<K,V>> tuples = m_source.spliterator();
+		long size = tuples.estimateSize();
+		long grain = MIN_CHUNK_SIZE;
+		if (size != Long.MAX_VALUE)
+			grain = Math.max(MIN_CHUNK_SIZE, size / (m_pool.getParallelism() * CHUNKS_PER_WORKER));
+		ShuffleCollector<K,V> shuffle = null;
+		if (m_comparator != null)
+			shuffle = new SortingShuffleCollector<K,V>(m_combiner, m_comparator);
+		else
+			shuffle = new ShuffleCollector<K,V>(m_combiner);
+		shuffle.setCollectorFactory(m_factory);
+		Metrics.Timer map_timer = m_metrics.timer("map.time");
+		long start = map_timer.start();
+		m_pool.invoke(new MapTask(tuples, shuffle, grain));
+		map_timer.stop(start);
+		if (size != Long.MAX_VALUE)
+			m_metrics.counter("map.tuples.in").add(size);
+		
+		Metrics.Timer shuffle_timer = m_metrics.timer("shuffle.time");
+		start = shuffle_timer.start();
+		Map<K,? extends InCollector<K,V>> inputs = shuffle.getReducerInputs();
+		shuffle_timer.stop(start);
+		Metrics.Timer reduce_timer = m_metrics.timer("reduce.time");
+		start = reduce_timer.start();
+		Metrics.Histogram reduce_input = m_metrics.histogram("reduce.input");
+		List<K> keys = new ArrayList<K>(inputs.keySet());
+		long reduce_tuples = 0;
+		for (InCollector<K,V> s_source : inputs.values())
+		{
+			int num_tuples = s_source.count();
+			reduce_tuples += num_tuples;
+			reduce_input.record(num_tuples);
+			m_maxTuples = Math.max(m_maxTuples, num_tuples);
+		}
+		m_totalTuples += reduce_tuples;
+		m_metrics.counter("reduce.tuples.in").add(reduce_tuples);
+		m_metrics.counter("reduce.keys").add(keys.size());
+		BufferedCollector<K,V> out = new BufferedCollector<K,V>(m_factory);
+		m_pool.invoke(new ReduceTask(keys, inputs, out));
+		shuffle.dispose();
+		Collector<K,V> result = out.merge(m_output);
+		m_metrics.counter("reduce.tuples.out").add(result.count());
+		reduce_timer.stop(start);
+		return result;
+	}
+	
+	/**
+	 * Returns the maximum number of tuples processed by a single
+	 * reducer in the process. This method returns 0 if the MapReduce
+	 * job hasn't executed yet (i.e. you should call it only after
+	 * a call to {@link #run}).
+	 * @return
+	 */
+	public long getMaxTuples()
+	{
+		return m_maxTuples;
+	}
+	
+	/**
+	 * Returns the total number of tuples processed by all reducers.
+	 * This method returns 0 if the MapReduce
+	 * job hasn't executed yet (i.e. you should call it only after
+	 * a call to {@link #run}).
+	 * @return
+	 */
+	public long getTotalTuples()
+	{
+		return m_totalTuples;
+	}
+	
+	/**
+	 * Maps a part of the input tuples, handing halves of it to new
+	 * tasks while it is larger than the grain
+	 */
+	private class MapTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final Spliterator<Tuple<K,V>> m_tuples;
+		private final ShuffleCollector<K,V> m_out;
+		private final long m_grain;
+		
+		MapTask(Spliterator<Tuple<K,V>> tuples, ShuffleCollector<K,V> out, long grain)
+		{
+			super();
+			m_tuples = tuples;
+			m_out = out;
+			m_grain = grain;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			List<MapTask> forked = new ArrayList<MapTask>();
+			Spliterator<Tuple<K,V>> prefix;
+			while (m_tuples.estimateSize() > m_grain && (prefix = m_tuples.trySplit()) != null)
+			{
+				MapTask task = new MapTask(prefix, m_out, m_grain);
+				task.fork();
+				forked.add(task);
+			}
+			m_tuples.forEachRemaining(new Consumer<Tuple<K,V>>()
+			{
+				@Override
+				public void accept(Tuple<K,V> t)
+				{
+					m_mapper.map(m_out, t);
+				}
+			});
+			// The thread may run another task next: publish what this
+			// one produced
+			m_out.flush();
+			for (MapTask task : forked)
+				task.join();
+		}
+	}
+	
+	/**
+	 * Reduces a range of the keys, splitting it in two until a single
+	 * key is left
+	 */
+	private class ReduceTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final List<K> m_keys;
+		private final Map<K,? extends InCollector<K,V>> m_inputs;
+		private final OutCollector<K,V> m_out;
+		
+		ReduceTask(List<K> keys, Map<K,? extends InCollector<K,V>> inputs, OutCollector<K,V> out)
+		{
+			super();
+			m_keys = keys;
+			m_inputs = inputs;
+			m_out = out;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			int size = m_keys.size();
+			if (size == 0)
+				return;
+			if (size == 1)
+			{
+				K key = m_keys.get(0);
+				m_reducer.reduce(m_out, key, m_inputs.get(key));
+				return;
+			}
+			int middle = size / 2;
+			invokeAll(new ReduceTask(m_keys.subList(0, middle), m_inputs, m_out),
+					new ReduceTask(m_keys.subList(middle, size), m_inputs, m_out));
+		}
+	}
+}
@@ -18,15 +18,21 @@
 package ca.uqac.dim.mapreduce;
 
 import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Data source used as the input of the map and reduce 
  * phases. An InCollector can be used to enumerate data
- * tuples using the {@link hasNext} and {@link next}
- * methods, like an {@link Iterator}.
+ * tuples using the {@link #hasNext} and {@link #next}
+ * methods, like an {@link Iterator}. Its tuples can also be traversed
+ * by a {@link Spliterator} (see {@link #spliterator}), and hence be
+ * consumed by a (possibly parallel) {@link Stream}.
  * 
  * @author Sylvain Hallé
- * @version 1.0
+ * @version 1.1
  *
  */
 public interface InCollector<K,V> extends Iterator<Tuple<K,V>>
@@ -42,4 +48,42 @@ public interface InCollector<K,V> extends Iterator<Tuple<K,V>>
 	 * Rewinds the collector to the beginning of its enumeration
 	 */
 	public void rewind();
+	
+	/**
+	 * Returns a {@link Spliterator} over the tuples of the collector.
+	 * By default, the spliterator enumerates the collector itself, from
+	 * its first tuple: the collector must then not be enumerated with
+	 * {@link #hasNext} and {@link #next} at the same time, and splitting
+	 * the spliterator copies batches of tuples. A collector that stores
+	 * its tuples should rather return a spliterator of its own, which
+	 * leaves the enumeration of the collector alone and splits without
+	 * copying.
+	 * @return The spliterator
+	 */
+	public default Spliterator<Tuple<K,V>> spliterator()
+	{
+		rewind();
+		int size = count();
+		if (size < 0)
+			return Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED);
+		return Spliterators.spliterator(this, size, Spliterator.ORDERED);
+	}
+	
+	/**
+	 * Returns a sequential {@link Stream} of the tuples of the collector
+	 * @return The stream
+	 */
+	public default Stream<Tuple<K,V>> stream()
+	{
+		return StreamSupport.stream(spliterator(), false);
+	}
+	
+	/**
+	 * Returns a parallel {@link Stream} of the tuples of the collector
+	 * @return The stream
+	 */
+	public default Stream<Tuple<K,V>> parallelStream()
+	{
+		return StreamSupport.stream(spliterator(), true);
+	}
 }
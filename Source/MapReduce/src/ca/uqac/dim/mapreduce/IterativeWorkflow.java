@@ -0,0 +1,185 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.function.Predicate;
+
+/**
+ * Coordinates a sequence of map-reduce jobs ("rounds"), where the
+ * output of each round is the source of the next one. All the rounds
+ * are run by the same {@link ReusableWorkflow}, so that its mapper,
+ * reducer and pool of workers are set up once for all of them. The
+ * rounds stop after a given number of them, or as soon as the output
+ * of a round satisfies a fixpoint condition (see {@link #setFixpoint}).
+ * <p>
+ * The storage of the outputs is recycled: once a round is over, its
+ * source is no longer needed, and is emptied to hold the output of
+ * the next round. Hence, the output of a round can only be read until
+ * the round after the next one starts. The initial source is never
+ * emptied.
+ */
+public class IterativeWorkflow<K,V> implements Workflow<K,V>
+{
+	private ReusableWorkflow<K,V> m_workflow;
+	private InCollector<K,V> m_source = null;
+	private int m_maxRounds;
+	private Predicate<? super InCollector<K,V>> m_fixpoint = null;
+	
+	/**
+	 * The number of rounds run since the source was set
+	 */
+	private int m_round = 0;
+	
+	/**
+	 * The output of the last round, or the source before the first one
+	 */
+	private InCollector<K,V> m_current = null;
+	
+	/**
+	 * The storage that can hold the output of the next round
+	 */
+	private Collector<K,V> m_spare = null;
+	
+	/**
+	 * The maximum number of tuples processed by a single reducer in
+	 * any round
+	 */
+	protected long m_maxTuples = 0;
+	
+	/**
+	 * The total number of tuples processed by the reducers of all the
+	 * rounds
+	 */
+	protected long m_totalTuples = 0;
+	
+	/**
+	 * Create an instance of IterativeWorkflow
+	 * @param w The workflow that runs each round
+	 * @param c The {@link InCollector} to use as the source of the first
+	 * round
+	 * @param rounds The maximum number of rounds
+	 */
+	public IterativeWorkflow(ReusableWorkflow<K,V> w, InCollector<K,V> c, int rounds)
+	{
+		super();
+		m_workflow = w;
+		m_maxRounds = rounds;
+		setSource(c);
+	}
+	
+	/**
+	 * Sets the source of the first round, and starts over from it
+	 * @param c The {@link InCollector} to use as the source of tuples
+	 */
+	public void setSource(InCollector<K,V> c)
+	{
+		m_source = c;
+		m_current = c;
+		m_spare = null;
+		m_round = 0;
+		m_maxTuples = 0;
+		m_totalTuples = 0;
+	}
+	
+	/**
+	 * Sets the condition that stops the rounds before their maximum
+	 * number is reached. It is checked on the output of each round.
+	 * @param p The condition, or null to always run the maximum number
+	 * of rounds
+	 */
+	public void setFixpoint(Predicate<? super InCollector<K,V>> p)
+	{
+		m_fixpoint = p;
+	}
+	
+	/**
+	 * Returns the number of rounds run so far
+	 * @return The number of rounds
+	 */
+	public int getRound()
+	{
+		return m_round;
+	}
+	
+	/**
+	 * Tells whether all the rounds have been run
+	 * @return true if the maximum number of rounds is reached, or if the
+	 * output of the last round satisfies the fixpoint condition
+	 */
+	public boolean isOver()
+	{
+		if (m_round >= m_maxRounds)
+			return true;
+		return m_round > 0 && m_fixpoint != null && m_fixpoint.test(m_current);
+	}
+	
+	/**
+	 * Runs the next round on the output of the previous one
+	 * @return The output of the round
+	 */
+	public InCollector<K,V> nextRound()
+	{
+		m_workflow.setSource(m_current);
+		m_workflow.setOutput(m_spare);
+		InCollector<K,V> out = m_workflow.run();
+		m_maxTuples = Math.max(m_maxTuples, m_workflow.getMaxTuples());
+		m_totalTuples += m_workflow.getTotalTuples();
+		// The source of this round is free, unless it is the initial one
+		if (m_current != m_source && m_current instanceof Collector<?,?>)
+			m_spare = (Collector<K,V>) m_current;
+		else
+			m_spare = null;
+		m_current = out;
+		m_round++;
+		return out;
+	}
+	
+	/**
+	 * Runs all the remaining rounds
+	 * @return The output of the last round
+	 */
+	@Override
+	public InCollector<K,V> run()
+	{
+		if (m_workflow == null || m_source == null)
+			return null;
+		while (!isOver())
+			nextRound();
+		return m_current;
+	}
+	
+	/**
+	 * Returns the maximum number of tuples processed by a single
+	 * reducer in any of the rounds run so far
+	 * @return The number of tuples
+	 */
+	public long getMaxTuples()
+	{
+		return m_maxTuples;
+	}
+	
+	/**
+	 * Returns the total number of tuples processed by the reducers of
+	 * all the rounds run so far
+	 * @return The number of tuples
+	 */
+	public long getTotalTuples()
+	{
+		return m_totalTuples;
+	}
+}
@@ -0,0 +1,34 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Stores the tuples of collectors in a {@link LinkedList}, as collectors
+ * did in earlier versions.
+ */
+public class LinkedCollectorFactory implements CollectorFactory
+{
+	@Override
+	public <K,V> List<Tuple<K,V>> newStorage()
+	{
+		return new LinkedList<Tuple<K,V>>();
+	}
+}
@@ -0,0 +1,384 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the measures taken while map-reduce jobs run. A metric is
+ * identified by its name, and is created the first time it is asked
+ * for; there are three kinds of them:
+ * <ul>
+ * <li>{@link Counter}s, which add up quantities (tuples, bytes...)</li>
+ * <li>{@link Timer}s, which add up durations measured in nanoseconds,
+ *   and remember how many were measured and the longest one</li>
+ * <li>{@link Histogram}s, which record the distribution of a quantity
+ *   (for example, the size of the input of each reducer, which shows
+ *   how skewed the keys are)</li>
+ * </ul>
+ * All the metrics can be updated by many threads at the same time. They
+ * can be read with {@link #getValues}, or over JMX, once the registry is
+ * registered with {@link #register}. Unless they are given another
+ * registry, the workflows record their metrics in the global registry
+ * (see {@link #getGlobal}), which registers itself as
+ * <tt>ca.uqac.dim.mapreduce:type=Metrics</tt>.
+ * <p>
+ * The workflows use the following names:
+ * <ul>
+ * <li><tt>map.time</tt>, <tt>shuffle.time</tt>, <tt>reduce.time</tt>:
+ *   the duration of each phase of a job</li>
+ * <li><tt>map.tuples.in</tt>, <tt>reduce.tuples.in</tt>,
+ *   <tt>reduce.tuples.out</tt>, <tt>reduce.keys</tt>: the number of
+ *   tuples (or keys) going in and out of each phase</li>
+ * <li><tt>reduce.input</tt>: the histogram of the number of tuples
+ *   given to each reducer</li>
+ * <li><tt>shuffle.spill.bytes</tt>: the bytes spilled to disk by the
+ *   shuffle</li>
+ * <li><tt>reduce.split.keys</tt>, <tt>reduce.split.parts</tt>: the keys
+ *   whose input was split by a {@link Partitioner}, and the number of
+ *   parts they were split into</li>
+ * <li><tt>map.queue.wait</tt>, <tt>reduce.queue.wait</tt>: the time the
+ *   jobs of a {@link ResourceManager} spend queued before a worker
+ *   picks them up</li>
+ * <li><tt>map.barrier.wait</tt>, <tt>reduce.barrier.wait</tt>: the time
+ *   a workflow waits at the end of a phase for its jobs to finish</li>
+ * </ul>
+ */
+public class Metrics implements MetricsMXBean
+{
+	/**
+	 * The name under which the global registry is registered
+	 */
+	public static final String GLOBAL_NAME = "ca.uqac.dim.mapreduce:type=Metrics";
+	
+	private static Metrics s_global = null;
+	
+	private ConcurrentMap<String,Counter> m_counters = new ConcurrentHashMap<String,Counter>();
+	private ConcurrentMap<String,Timer> m_timers = new ConcurrentHashMap<String,Timer>();
+	private ConcurrentMap<String,Histogram> m_histograms = new ConcurrentHashMap<String,Histogram>();
+	
+	/**
+	 * Returns the global registry, registering it over JMX the first
+	 * time it is asked for
+	 * @return The registry
+	 */
+	public static synchronized Metrics getGlobal()
+	{
+		if (s_global == null)
+		{
+			s_global = new Metrics();
+			try
+			{
+				s_global.register(GLOBAL_NAME);
+			}
+			catch (JMException e)
+			{
+				// The metrics can still be read programmatically
+			}
+		}
+		return s_global;
+	}
+	
+	/**
+	 * Registers the registry with the platform MBean server
+	 * @param name The object name of the registry
+	 * @throws JMException If the registry cannot be registered
+	 */
+	public void register(String name) throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(this, new ObjectName(name));
+	}
+	
+	/**
+	 * Returns a counter, creating it if needed
+	 * @param name The name of the counter
+	 * @return The counter
+	 */
+	public Counter counter(String name)
+	{
+		Counter c = m_counters.get(name);
+		if (c == null)
+		{
+			Counter new_c = new Counter();
+			c = m_counters.putIfAbsent(name, new_c);
+			if (c == null)
+				c = new_c;
+		}
+		return c;
+	}
+	
+	/**
+	 * Returns a timer, creating it if needed
+	 * @param name The name of the timer
+	 * @return The timer
+	 */
+	public Timer timer(String name)
+	{
+		Timer t = m_timers.get(name);
+		if (t == null)
+		{
+			Timer new_t = new Timer();
+			t = m_timers.putIfAbsent(name, new_t);
+			if (t == null)
+				t = new_t;
+		}
+		return t;
+	}
+	
+	/**
+	 * Returns a histogram, creating it if needed
+	 * @param name The name of the histogram
+	 * @return The histogram
+	 */
+	public Histogram histogram(String name)
+	{
+		Histogram h = m_histograms.get(name);
+		if (h == null)
+		{
+			Histogram new_h = new Histogram();
+			h = m_histograms.putIfAbsent(name, new_h);
+			if (h == null)
+				h = new_h;
+		}
+		return h;
+	}
+	
+	/**
+	 * Returns the current value of every metric. A counter is given
+	 * under its own name; a timer <i>t</i> gives <i>t</i>.count,
+	 * <i>t</i>.total.ns and <i>t</i>.max.ns; a histogram <i>h</i> gives
+	 * <i>h</i>.count, <i>h</i>.sum, <i>h</i>.max, <i>h</i>.p50 and
+	 * <i>h</i>.p99.
+	 * @return A map from names to values, sorted by name
+	 */
+	@Override
+	public Map<String,Long> getValues()
+	{
+		Map<String,Long> values = new TreeMap<String,Long>();
+		for (Map.Entry<String,Counter> e : m_counters.entrySet())
+			values.put(e.getKey(), e.getValue().get());
+		for (Map.Entry<String,Timer> e : m_timers.entrySet())
+		{
+			Timer t = e.getValue();
+			values.put(e.getKey() + ".count", t.getCount());
+			values.put(e.getKey() + ".total.ns", t.getTotalNanos());
+			values.put(e.getKey() + ".max.ns", t.getMaxNanos());
+		}
+		for (Map.Entry<String,Histogram> e : m_histograms.entrySet())
+		{
+			Histogram h = e.getValue();
+			values.put(e.getKey() + ".count", h.getCount());
+			values.put(e.getKey() + ".sum", h.getSum());
+			values.put(e.getKey() + ".max", h.getMax());
+			values.put(e.getKey() + ".p50", h.getPercentile(0.5));
+			values.put(e.getKey() + ".p99", h.getPercentile(0.99));
+		}
+		return values;
+	}
+	
+	@Override
+	public void reset()
+	{
+		m_counters.clear();
+		m_timers.clear();
+		m_histograms.clear();
+	}
+	
+	/**
+	 * Returns the value of every metric, one per line
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String,Long> e : getValues().entrySet())
+			out.append(e.getKey()).append(" = ").append(e.getValue()).append("\n");
+		return out.toString();
+	}
+	
+	/**
+	 * Adds up a quantity
+	 */
+	public static class Counter
+	{
+		private LongAdder m_value = new LongAdder();
+		
+		public void add(long x)
+		{
+			m_value.add(x);
+		}
+		
+		public void increment()
+		{
+			m_value.increment();
+		}
+		
+		public long get()
+		{
+			return m_value.sum();
+		}
+	}
+	
+	/**
+	 * Adds up durations, in nanoseconds. A duration is measured by
+	 * calling {@link #start} and then {@link #stop} with its result.
+	 */
+	public static class Timer
+	{
+		private LongAdder m_count = new LongAdder();
+		private LongAdder m_total = new LongAdder();
+		private AtomicLong m_max = new AtomicLong();
+		
+		/**
+		 * Starts measuring a duration
+		 * @return The current time, to give to {@link #stop}
+		 */
+		public long start()
+		{
+			return System.nanoTime();
+		}
+		
+		/**
+		 * Stops measuring a duration, and records it
+		 * @param start The value returned by {@link #start}
+		 * @return The duration, in nanoseconds
+		 */
+		public long stop(long start)
+		{
+			long nanos = System.nanoTime() - start;
+			record(nanos);
+			return nanos;
+		}
+		
+		/**
+		 * Records a duration
+		 * @param nanos The duration, in nanoseconds
+		 */
+		public void record(long nanos)
+		{
+			m_count.increment();
+			m_total.add(nanos);
+			long max = m_max.get();
+			while (nanos > max && !m_max.compareAndSet(max, nanos))
+				max = m_max.get();
+		}
+		
+		public long getCount()
+		{
+			return m_count.sum();
+		}
+		
+		public long getTotalNanos()
+		{
+			return m_total.sum();
+		}
+		
+		public long getMaxNanos()
+		{
+			return m_max.get();
+		}
+	}
+	
+	/**
+	 * Records the distribution of a non-negative quantity. The values
+	 * are counted in buckets whose bounds are powers of two, so that the
+	 * percentiles are known within a factor of two.
+	 */
+	public static class Histogram
+	{
+		/**
+		 * Bucket <i>b</i> counts the values <i>x</i> such that
+		 * 2<sup><i>b</i>-1</sup> &le; <i>x</i> &lt; 2<sup><i>b</i></sup>
+		 * (bucket 0 counts the zeros)
+		 */
+		private AtomicLongArray m_buckets = new AtomicLongArray(65);
+		private LongAdder m_count = new LongAdder();
+		private LongAdder m_sum = new LongAdder();
+		private AtomicLong m_max = new AtomicLong();
+		
+		/**
+		 * Records a value
+		 * @param x The value; negative values are counted as zero
+		 */
+		public void record(long x)
+		{
+			if (x < 0)
+				x = 0;
+			m_buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(x));
+			m_count.increment();
+			m_sum.add(x);
+			long max = m_max.get();
+			while (x > max && !m_max.compareAndSet(max, x))
+				max = m_max.get();
+		}
+		
+		public long getCount()
+		{
+			return m_count.sum();
+		}
+		
+		public long getSum()
+		{
+			return m_sum.sum();
+		}
+		
+		public long getMax()
+		{
+			return m_max.get();
+		}
+		
+		/**
+		 * Returns an upper bound of a percentile of the values
+		 * @param p The percentile, between 0 and 1
+		 * @return The smallest bucket bound below which at least this
+		 * fraction of the values lie (or the maximum, if it is lower)
+		 */
+		public long getPercentile(double p)
+		{
+			long count = 0;
+			for (int b = 0; b < m_buckets.length(); b++)
+				count += m_buckets.get(b);
+			if (count == 0)
+				return 0;
+			long rank = (long) Math.ceil(p * count);
+			long seen = 0;
+			for (int b = 0; b < m_buckets.length(); b++)
+			{
+				seen += m_buckets.get(b);
+				if (seen >= rank && seen > 0)
+				{
+					long bound = (b >= 63) ? Long.MAX_VALUE : (1L << b) - 1;
+					return Math.min(bound, getMax());
+				}
+			}
+			return getMax();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link Metrics}, through which the metrics of
+ * the map-reduce jobs can be read over JMX.
+ */
+public interface MetricsMXBean
+{
+	/**
+	 * Returns the current value of every metric
+	 * @return A map from metric names to values
+	 * @see Metrics#getValues()
+	 */
+	public Map<String,Long> getValues();
+	
+	/**
+	 * Sets every metric back to zero
+	 */
+	public void reset();
+}
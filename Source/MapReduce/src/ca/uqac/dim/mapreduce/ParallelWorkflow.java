@@ -16,15 +16,32 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 package ca.uqac.dim.mapreduce;
+import java.io.File;
 import java.util.*;
-import java.util.Date;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Coordinates the execution of a map-reduce job in a multithreading 
- * mode. This means that the data source is split tuple by tuple and 
- * each tuple has it's own mapper (thread). After that, the output 
- * tuples are collected, split according to their keys, and  each 
- * list is sent to his reducer (thread).  As such, the ParallelWorkflow 
+ * mode. This means that the data source is split into contiguous chunks
+ * of tuples and each chunk has it's own mapper (job run by the pool of
+ * workers of a {@link ResourceManager}). The output tuples of the
+ * mappers are grouped according to their keys as they are collected
+ * (see {@link ShuffleCollector}). After that, each 
+ * list is sent to his reducer (job); the reducers write their output
+ * tuples in buffers of their own (see {@link BufferedCollector}), which
+ * are put together once all of them are over. Optionally, the reducers
+ * can start before all the mappers are over (see {@link #setPipelined}),
+ * and the phases can then be connected by bounded queues (see
+ * {@link #setQueueCapacity}). A reducer that runs much longer than the
+ * others can be given a second attempt (see {@link #setSpeculation}).
+ * The input of a key that carries too many tuples can also be split
+ * among several reducers, whose results are merged afterwards (see
+ * {@link #setPartitioner}).
+ * The duration of each phase and the number of tuples that go through
+ * it are recorded in a {@link Metrics} registry.
+ * As such, the ParallelWorkflow 
  * reproduces exactly the processing done by map-reduce, 
  * with the distribution of computation. It is best suited to 
  * pedagogical and debugging purposes.
@@ -32,13 +49,46 @@ import java.util.Date;
  * @version 1.1
  * 
  */
-public class ParallelWorkflow<K,V> implements Workflow<K,V>
+public class ParallelWorkflow<K,V> implements ReusableWorkflow<K,V>
 {
     private Mapper<K,V> m_mapper = null;
 	private Reducer<K,V> m_reducer = null;
 	private InCollector<K,V> m_source = null;
+	private Collector<K,V> m_output = null;
+	private Combiner<K,V> m_combiner = null;
+	private Comparator<? super V> m_comparator = null;
+	private int m_spillBudget = 0;
+	private TupleSerializer<K,V> m_serializer = null;
+	private File m_spillDirectory = null;
+	private CollectorFactory m_factory = Collector.getDefaultFactory();
+	private Metrics m_metrics = Metrics.getGlobal();
+	private Partitioner<K,V> m_partitioner = null;
+	private boolean m_pipelined = false;
+	private int m_queueCapacity = 0;
+	private double m_speculation = 0;
     private ResourceManager<K,V> m_managerMapper = null;
     private ResourceManager<K,V> m_managerReducer = null;
+    
+    /**
+     * The number of chunks the input tuples are split into for each
+     * worker of the map phase. Having a few chunks per worker evens out
+     * the load when some chunks take longer to map than others.
+     */
+    protected static final int CHUNKS_PER_WORKER = 4;
+    
+    /**
+     * The minimum time a reducer runs before it is given a second
+     * attempt, in nanoseconds. Below it, the attempt would cost more
+     * than the time it could save.
+     */
+    protected static final long MIN_SPECULATION_TIME = 20000000L;
+    
+    /**
+     * The minimum number of tuples in a chunk of the map phase. Below
+     * this size, the cost of handing a job to a worker is higher than
+     * the cost of mapping its tuples.
+     */
+    protected static final int MIN_CHUNK_SIZE = 1024;
 	
 	/**
 	 * The total number of tuples that the mappers will produce.
@@ -103,6 +153,68 @@ public class ParallelWorkflow<K,V> implements Workflow<K,V>
 	{
 		m_source = c;
 	}
+	
+	/**
+	 * Sets the collector in which the next runs write their output. It
+	 * is emptied at the start of each run. By default, a new collector
+	 * is created for each run.
+	 * @param c The collector, or null to create a new one
+	 */
+	public void setOutput(Collector<K,V> c)
+	{
+		m_output = c;
+	}
+	
+	/**
+	 * Sets the combiner to run on the output of each mapper before the
+	 * shuffle. By default, no combiner is used.
+	 * @param c The {@link Combiner} to use, or null for none
+	 */
+	public void setCombiner(Combiner<K,V> c)
+	{
+		m_combiner = c;
+	}
+	
+	/**
+	 * Sets the order in which each reducer receives the values of its
+	 * key (see {@link SortingShuffleCollector}). The map and
+	 * reduce phases are then not pipelined, and the shuffle is kept in
+	 * memory. By default,
+	 * the values are not sorted.
+	 * @param c The order of the values, or null not to sort them
+	 */
+	public void setValueComparator(Comparator<? super V> c)
+	{
+		m_comparator = c;
+	}
+	
+	/**
+	 * Sets the maximum number of tuples the shuffle keeps in memory.
+	 * Past this budget, the output of the mappers is spilled to
+	 * temporary files, and read back from them by the reducers (see
+	 * {@link SpillingShuffleCollector}). By default, the whole output
+	 * of the mappers is kept in memory. The budget is not used in
+	 * pipelined mode, where the reducers consume the output of the
+	 * mappers as it is produced.
+	 * @param budget The maximum number of tuples kept in memory, or 0
+	 * to keep everything in memory
+	 * @param s The {@link TupleSerializer} used to write the tuples to disk
+	 */
+	public void setSpill(int budget, TupleSerializer<K,V> s)
+	{
+		m_spillBudget = budget;
+		m_serializer = s;
+	}
+	
+	/**
+	 * Sets the directory where the shuffle is spilled
+	 * @param directory The directory, or null for the default temporary
+	 * directory
+	 */
+	public void setSpillDirectory(File directory)
+	{
+		m_spillDirectory = directory;
+	}
         
     public void setManagerMapper(ResourceManager<K,V> rmM)
     {
@@ -113,7 +225,99 @@ public class ParallelWorkflow<K,V> implements Workflow<K,V>
     {
         m_managerReducer = rmR;
     }
+    
+	/**
+	 * Sets whether the map and reduce phases are pipelined. In pipelined
+	 * mode, the reduce job for a key is started as soon as a mapper has
+	 * produced tuples for that key, and reads its input as the mappers
+	 * produce it (see {@link PipelinedShuffleCollector}); otherwise, the
+	 * reducers only start once all the mappers are over. The pipelined
+	 * mode is only used when the map and reduce phases have distinct
+	 * {@link ResourceManager}s, and the values are not sorted (see
+	 * {@link #setValueComparator}).
+	 * @param b true to pipeline the phases
+	 */
+	public void setPipelined(boolean b)
+	{
+		m_pipelined = b;
+	}
+	
+	/**
+	 * Sets the capacity of the queues that connect the phases in
+	 * pipelined mode. The source is then read as the mappers consume it,
+	 * with at most this number of tuples waiting for a mapper, and each
+	 * reducer has at most this number of tuples waiting in its input
+	 * (see {@link PipelinedShuffleCollector}). A stage that gets ahead of
+	 * the next one waits for it, so that the memory used by the tuples in
+	 * transit depends on the capacity rather than on the size of the
+	 * source. By default, the queues are not bounded.
+	 * @param capacity The capacity of the queues, in tuples, or 0 not to
+	 * bound them
+	 */
+	public void setQueueCapacity(int capacity)
+	{
+		m_queueCapacity = capacity;
+	}
+	
+	/**
+	 * Sets when the reducers are re-executed speculatively. Once half of
+	 * the keys are reduced, a reducer that has been running longer than
+	 * the given factor times the median duration of the reducers over is
+	 * given a second attempt on the same input. The first attempt to
+	 * finish publishes its output; the output of the other one is
+	 * discarded. Each attempt hence collects its output in a buffer of
+	 * its own. Speculation is not used in pipelined mode, for the parts
+	 * of a split key, or when the input of a key cannot be read twice.
+	 * By default, the reducers are not re-executed.
+	 * @param factor The factor, or 0 not to re-execute the reducers
+	 */
+	public void setSpeculation(double factor)
+	{
+		m_speculation = factor;
+	}
+	
+	/**
+	 * Tells whether the map and reduce phases are pipelined
+	 * @return true if the phases are pipelined
+	 */
+	public boolean isPipelined()
+	{
+		return m_pipelined && m_comparator == null && m_managerMapper != m_managerReducer;
+	}
 
+	/**
+	 * Sets the partitioner that splits the input of the keys that carry
+	 * too many tuples. It is only used for the keys that the reducer
+	 * accepts to split (see {@link SplittableReducer}), and not in
+	 * pipelined mode. By default, the input of a key is never split.
+	 * @param p The partitioner, or null not to split any input
+	 */
+	public void setPartitioner(Partitioner<K,V> p)
+	{
+		m_partitioner = p;
+	}
+	
+	/**
+	 * Sets the registry in which the workflow records its metrics. By
+	 * default, the global registry is used (see {@link Metrics}).
+	 * @param m The registry
+	 */
+	public void setMetrics(Metrics m)
+	{
+		m_metrics = m;
+	}
+	
+	/**
+	 * Sets the factory that creates the storage of the collectors of
+	 * the job (the groups of the shuffle and the output). By default,
+	 * the default factory of {@link Collector} is used.
+	 * @param f The factory
+	 */
+	public void setCollectorFactory(CollectorFactory f)
+	{
+		m_factory = f;
+	}
+	
         public InCollector<K,V> run()
         {
             if (m_mapper == null || m_reducer == null || m_source == null)
@@ -121,70 +325,300 @@ public class ParallelWorkflow<K,V> implements Workflow<K,V>
             assert m_mapper != null;
             assert m_reducer != null;
             assert m_source != null;
-            Collector<K,V> temp_coll = new Collector<K,V>();
-            m_source.rewind();
+            m_maxTuples = 0;
+            m_totalTuples = 0;
+            BufferedCollector<K,V> out = new BufferedCollector<K,V>(m_factory);
+            ShuffleCollector<K,V> temp_coll = null;
+            PipelinedShuffleCollector<K,V> pipeline = null;
+            if (isPipelined())
+            {
+                // The reducers are started as the mappers publish their output
+                pipeline = new PipelinedShuffleCollector<K,V>(m_combiner, m_managerReducer, m_reducer, out, m_queueCapacity);
+                temp_coll = pipeline;
+            }
+            else if (m_comparator != null)
+                temp_coll = new SortingShuffleCollector<K,V>(m_combiner, m_comparator);
+            else if (m_spillBudget > 0 && m_serializer != null)
+                temp_coll = new SpillingShuffleCollector<K,V>(m_combiner, m_spillBudget, m_serializer, m_spillDirectory);
+            else
+                temp_coll = new ShuffleCollector<K,V>(m_combiner);
+            temp_coll.setCollectorFactory(m_factory);
             
-            long timeBeforeMap = new Date().getTime();
+            Metrics.Timer map_timer = m_metrics.timer("map.time");
+            long map_start = map_timer.start();
+            m_managerMapper.setQueueTimer(m_metrics.timer("map.queue.wait"));
+            m_managerReducer.setQueueTimer(m_metrics.timer("reduce.queue.wait"));
             
-            while (m_source.hasNext())
+            if (pipeline != null && m_queueCapacity > 0)
+                m_metrics.counter("map.tuples.in").add(streamSource(temp_coll));
+            else
             {
-                Tuple<K,V> t = m_source.next();
+                List<Tuple<K,V>> tuples = getSourceTuples();
+                int source_size = tuples.size();
+                m_metrics.counter("map.tuples.in").add(source_size);
+                int num_chunks = Math.min(m_managerMapper.getThreadMax() * CHUNKS_PER_WORKER,
+                        (source_size + MIN_CHUNK_SIZE - 1) / MIN_CHUNK_SIZE);
+                for (int i = 0; i < num_chunks; i++)
+                {
+                    // Contiguous chunks whose sizes differ by at most one tuple
+                    int from = (int) ((long) source_size * i / num_chunks);
+                    int to = (int) ((long) source_size * (i + 1) / num_chunks);
                 
-                //Thread for all mappers
-                Thread MThread = m_managerMapper.getThread(t, temp_coll, m_mapper);
-                MThread.start();
+                    //Job for all mappers
+                    m_managerMapper.execute(tuples.subList(from, to), temp_coll, m_mapper);
+                }
             }
             //WAIT all mapper theads to finish
+            long barrier_start = System.nanoTime();
             m_managerMapper.waitThreads();
+            m_metrics.timer("map.barrier.wait").stop(barrier_start);
+            map_timer.stop(map_start);
             
-            long timeAfterMap = new Date().getTime();
-            long timePhaseMap = timeAfterMap - timeBeforeMap;
-            System.out.println("--------------------------------------------------------");
-            System.out.println("------------------Time of every Phases------------------");
-            System.out.println("--------------------------------------------------------");
-            System.out.println("                  Map : " + timePhaseMap + " Milliseconds");
-        
-            Map<K,Collector<K,V>> shuffle = temp_coll.subCollectors();
-            Set<K> keys = shuffle.keySet();
-            Collector<K,V> out = new Collector<K,V>();
-            
-            long timeBeforeReduce = new Date().getTime();
-            for (K key : keys)
+            Metrics.Timer reduce_timer = m_metrics.timer("reduce.time");
+            long reduce_start = reduce_timer.start();
+            Metrics.Histogram reduce_input = m_metrics.histogram("reduce.input");
+            long reduce_tuples = 0;
+            int num_keys = 0;
+            Map<K,Collector<K,V>> split_keys = new HashMap<K,Collector<K,V>>();
+            List<SpeculativeReduce> speculative = new ArrayList<SpeculativeReduce>();
+            if (pipeline != null)
             {
-                Collector<K,V> s_source = shuffle.get(key);
-                int num_tuples = s_source.count();
-                m_totalTuples += num_tuples;
-                m_maxTuples = Math.max(m_maxTuples, num_tuples);
-                
-                //Tread for all Reducers
-                Thread RThread = m_managerReducer.getThread(out, key, s_source, m_reducer);
-                RThread.start();
+                // Let the reducers know that their input is complete
+                Map<K,BlockingCollector<K,V>> inputs = pipeline.close();
+                for (BlockingCollector<K,V> s_source : inputs.values())
+                {
+                    int num_tuples = s_source.count();
+                    reduce_tuples += num_tuples;
+                    reduce_input.record(num_tuples);
+                    m_maxTuples = Math.max(m_maxTuples, num_tuples);
+                }
+                num_keys = inputs.size();
+            }
+            else
+            {
+                Metrics.Timer shuffle_timer = m_metrics.timer("shuffle.time");
+                long shuffle_start = shuffle_timer.start();
+                Map<K,? extends InCollector<K,V>> shuffle = temp_coll.getReducerInputs();
+                shuffle_timer.stop(shuffle_start);
+                Set<K> keys = shuffle.keySet();
+                for (InCollector<K,V> s_source : shuffle.values())
+                    reduce_tuples += s_source.count();
+                for (K key : keys)
+                {
+                    InCollector<K,V> s_source = shuffle.get(key);
+                    int num_tuples = s_source.count();
+                    reduce_input.record(num_tuples);
+                    int num_parts = getPartitions(key, num_tuples, reduce_tuples);
+                    if (num_parts > 1)
+                    {
+                        // The parts of a hot key are reduced separately,
+                        // and their results merged once they are all over
+                        Collector<K,V> partial = new Collector<K,V>(m_factory);
+                        split_keys.put(key, partial);
+                        for (InCollector<K,V> part : m_partitioner.split(key, s_source, num_parts))
+                        {
+                            m_maxTuples = Math.max(m_maxTuples, part.count());
+                            m_managerReducer.executePart(partial, key, part, (SplittableReducer<K,V>) m_reducer);
+                        }
+                        m_metrics.counter("reduce.split.parts").add(num_parts);
+                        continue;
+                    }
+                    m_maxTuples = Math.max(m_maxTuples, num_tuples);
+                    if (m_speculation > 0 && s_source instanceof Collector<?,?>)
+                    {
+                        speculative.add(new SpeculativeReduce(out, key, (Collector<K,V>) s_source));
+                        continue;
+                    }
+                    
+                    //Job for all Reducers
+                    m_managerReducer.execute(out, key, s_source, m_reducer);
+                }
+                num_keys = keys.size();
             }
+            m_totalTuples += reduce_tuples;
+            m_metrics.counter("reduce.tuples.in").add(reduce_tuples);
+            m_metrics.counter("reduce.keys").add(num_keys);
             
             //WAIT all reduce theads to finish
-             m_managerReducer.waitThreads();
-             
-             long timeAfterReduce = new Date().getTime();
-             long timePhaseReduce = timeAfterReduce - timeBeforeReduce;
-             long timePhaseTotal = timePhaseMap + timePhaseReduce;
-             double timeSeconds = (double) timePhaseTotal/1000;
-             int timeMinutes = (int) (timePhaseTotal/1000)/60;
-             double timeSecMins = ( (double)timePhaseTotal/1000) - ( (double)timeMinutes * 60);
-             
-             System.out.println("               Reduce : " + timePhaseReduce + " Milliseconds");
-             System.out.println("--------------------------------------------------------");
-             System.out.println("                Total : " + timePhaseTotal + " Milliseconds");
-             System.out.println("        Total Seconds : " + timeSeconds);
-             System.out.println("        Total Minutes : " + timeMinutes + "." + timeSecMins);
-             System.out.println("--------------------------------------------------------");
-            return out;
+            barrier_start = System.nanoTime();
+            RuntimeException speculative_failure = null;
+            if (!speculative.isEmpty())
+                speculative_failure = waitSpeculative(speculative);
+            m_managerReducer.waitThreads();
+            if (speculative_failure != null)
+                throw speculative_failure;
+            if (!split_keys.isEmpty())
+            {
+                for (Map.Entry<K,Collector<K,V>> entry : split_keys.entrySet())
+                    m_managerReducer.executeMerge(out, entry.getKey(), entry.getValue(), (SplittableReducer<K,V>) m_reducer);
+                m_managerReducer.waitThreads();
+                m_metrics.counter("reduce.split.keys").add(split_keys.size());
+            }
+            m_metrics.timer("reduce.barrier.wait").stop(barrier_start);
+            if (temp_coll instanceof SpillingShuffleCollector<?,?>)
+                m_metrics.counter("shuffle.spill.bytes").add(((SpillingShuffleCollector<K,V>) temp_coll).getSpilledBytes());
+            temp_coll.dispose();
+            Collector<K,V> result = out.merge(m_output);
+            m_metrics.counter("reduce.tuples.out").add(result.count());
+            reduce_timer.stop(reduce_start);
+            return result;
         }
         
+	/**
+	 * Waits until all the keys reduced speculatively have an attempt over,
+	 * starting a second attempt for the reducers that lag behind, and
+	 * stops the attempts that are no longer needed. The attempts that
+	 * are still running stop by themselves shortly after; they must
+	 * still be waited for with the other jobs of the reducers.
+	 * @param reduces The keys reduced speculatively
+	 * @return The failure of a key none of whose attempts succeeded, or
+	 *   null if all the keys are reduced
+	 */
+	private RuntimeException waitSpeculative(List<SpeculativeReduce> reduces)
+	{
+		int num_attempts = 0;
+		List<SpeculativeReduce> running = new LinkedList<SpeculativeReduce>(reduces);
+		List<Long> durations = new ArrayList<Long>();
+		while (!running.isEmpty())
+		{
+			long now = System.nanoTime();
+			Iterator<SpeculativeReduce> it = running.iterator();
+			while (it.hasNext())
+			{
+				SpeculativeReduce r = it.next();
+				if (r.isOver())
+				{
+					durations.add(r.getDuration(now));
+					it.remove();
+				}
+			}
+			if (running.isEmpty())
+				break;
+			long wait = MIN_SPECULATION_TIME;
+			if (2 * durations.size() >= reduces.size())
+			{
+				Collections.sort(durations);
+				long median = durations.get(durations.size() / 2);
+				long threshold = Math.max(MIN_SPECULATION_TIME, (long) (median * m_speculation));
+				for (SpeculativeReduce r : running)
+				{
+					if (r.getAttempts() == 1 && r.getDuration(now) > threshold)
+					{
+						r.attempt();
+						num_attempts++;
+					}
+				}
+				wait = Math.max(wait, threshold / 2);
+			}
+			running.get(0).await(wait);
+		}
+		int num_wins = 0;
+		RuntimeException failure = null;
+		for (SpeculativeReduce r : reduces)
+		{
+			if (r.cancelLosers())
+				num_wins++;
+			if (failure == null)
+				failure = r.getFailure();
+		}
+		m_metrics.counter("reduce.speculative.attempts").add(num_attempts);
+		m_metrics.counter("reduce.speculative.wins").add(num_wins);
+		return failure;
+	}
+	
+	/**
+	 * Returns the number of parts into which the input of a key is split
+	 * @param key The key
+	 * @param size The number of tuples of the input of the key
+	 * @param total The number of tuples of the inputs of all the keys
+	 * @return The number of parts, 1 if the input is not split
+	 */
+	private int getPartitions(K key, int size, long total)
+	{
+		if (m_partitioner == null || !(m_reducer instanceof SplittableReducer<?,?>))
+			return 1;
+		if (!((SplittableReducer<K,V>) m_reducer).isSplittable(key))
+			return 1;
+		return m_partitioner.getPartitions(key, size, total, m_managerReducer.getThreadMax());
+	}
+	
+	/**
+	 * Hands the tuples of the data source to the mappers in chunks, as
+	 * they are enumerated, waiting for the mappers when the chunks not
+	 * mapped yet hold the capacity of the queues
+	 * @param temp_coll The collector of the output of the mappers
+	 * @return The number of tuples of the source
+	 */
+	private long streamSource(final OutCollector<K,V> temp_coll)
+	{
+		int chunk_size = Math.max(1, Math.min(MIN_CHUNK_SIZE, m_queueCapacity / m_managerMapper.getThreadMax()));
+		final Semaphore room = new Semaphore(Math.max(1, m_queueCapacity / chunk_size));
+		long num_source = 0;
+		List<Tuple<K,V>> chunk = new ArrayList<Tuple<K,V>>(chunk_size);
+		m_source.rewind();
+		while (m_source.hasNext())
+		{
+			chunk.add(m_source.next());
+			num_source++;
+			if (chunk.size() == chunk_size)
+			{
+				submitChunk(chunk, temp_coll, room);
+				chunk = new ArrayList<Tuple<K,V>>(chunk_size);
+			}
+		}
+		if (!chunk.isEmpty())
+			submitChunk(chunk, temp_coll, room);
+		return num_source;
+	}
+	
+	/**
+	 * Submits a map job on a chunk of tuples, once there is room for it
+	 * @param chunk The tuples
+	 * @param temp_coll The collector of the output of the mappers
+	 * @param room The number of chunks that can still be submitted
+	 */
+	private void submitChunk(List<Tuple<K,V>> chunk, OutCollector<K,V> temp_coll, final Semaphore room)
+	{
+		room.acquireUninterruptibly();
+		m_managerMapper.execute(chunk, temp_coll, m_mapper, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				room.release();
+			}
+		});
+	}
+	
+        /**
+	 * Returns the tuples of the data source as a list that can be split
+	 * into chunks in constant time. The contents of a {@link Collector}
+	 * are used directly when they allow it; otherwise the source is
+	 * enumerated into a new list.
+	 * @return The list of tuples
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<Tuple<K,V>> getSourceTuples()
+	{
+		if (m_source instanceof Collector<?,?>)
+		{
+			List<Tuple<K,V>> list = ((Collector<K,V>) m_source).toList();
+			if (list instanceof RandomAccess)
+				return list;
+			return new ArrayList<Tuple<K,V>>(list);
+		}
+		List<Tuple<K,V>> list = new ArrayList<Tuple<K,V>>();
+		m_source.rewind();
+		while (m_source.hasNext())
+			list.add(m_source.next());
+		return list;
+	}
+	
         /**
 	 * Returns the maximum number of tuples processed by a single
 	 * reducer in the process. This method returns 0 if the MapReduce
 	 * job hasn't executed yet (i.e. you should call it only after
-	 * a call to {@link run}).
+	 * a call to {@link #run}).
 	 * @return
 	 */
 	public long getMaxTuples()
@@ -196,11 +630,200 @@ public class ParallelWorkflow<K,V> implements Workflow<K,V>
 	 * Returns the total number of tuples processed by all reducers.
 	 * This method returns 0 if the MapReduce
 	 * job hasn't executed yet (i.e. you should call it only after
-	 * a call to {@link run}).
+	 * a call to {@link #run}).
 	 * @return
 	 */
 	public long getTotalTuples()
 	{
 		return m_totalTuples;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * The reduction of a key that can be attempted more than once. Each
+	 * attempt reads its own view of the input and collects its output in
+	 * a buffer of its own; the first attempt to finish copies its buffer
+	 * to the output of the workflow. The other attempts stop the next
+	 * time they read their input or collect a tuple. An attempt that
+	 * fails does not fail the job: the failure is only reported if no
+	 * attempt succeeds.
+	 */
+	private class SpeculativeReduce
+	{
+		private final OutCollector<K,V> m_out;
+		private final K m_key;
+		private final Collector<K,V> m_in;
+		private final List<ResourceManager.Task> m_attempts = new ArrayList<ResourceManager.Task>(2);
+		
+		/**
+		 * The index of the attempt whose output is published, or -1
+		 */
+		private final AtomicInteger m_winner = new AtomicInteger(-1);
+		
+		/**
+		 * The first failure of an attempt
+		 */
+		private final AtomicReference<RuntimeException> m_failure = new AtomicReference<RuntimeException>();
+		
+		SpeculativeReduce(OutCollector<K,V> out, K key, Collector<K,V> in)
+		{
+			super();
+			m_out = out;
+			m_key = key;
+			m_in = in;
+			attempt();
+		}
+		
+		/**
+		 * Submits a new attempt at reducing the key
+		 */
+		void attempt()
+		{
+			final int index = m_attempts.size();
+			m_attempts.add(m_managerReducer.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						Collector<K,V> buffer = new AttemptCollector(m_factory.<K,V>newStorage(), index);
+						m_reducer.reduce(buffer, m_key, new AttemptCollector(m_in.range(0, m_in.count()).toList(), index));
+						if (m_winner.compareAndSet(-1, index))
+						{
+							for (Tuple<K,V> t : buffer.toList())
+								m_out.collect(t);
+						}
+					}
+					catch (AttemptLostException e)
+					{
+						// Another attempt has won
+					}
+					catch (RuntimeException e)
+					{
+						m_failure.compareAndSet(null, e);
+					}
+				}
+			}));
+		}
+		
+		int getAttempts()
+		{
+			return m_attempts.size();
+		}
+		
+		/**
+		 * Tells whether the key is reduced: the winning attempt has copied
+		 * its output, or all the attempts have failed
+		 * @return true if no attempt needs to be waited for
+		 */
+		boolean isOver()
+		{
+			int winner = m_winner.get();
+			if (winner >= 0)
+				return m_attempts.get(winner).isDone();
+			for (ResourceManager.Task t : m_attempts)
+			{
+				if (!t.isDone())
+					return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Returns how long the first attempt has been running
+		 * @param now The current time
+		 * @return The time, in nanoseconds
+		 */
+		long getDuration(long now)
+		{
+			int winner = m_winner.get();
+			return m_attempts.get(Math.max(winner, 0)).getRunningTime(now);
+		}
+		
+		void await(long timeout)
+		{
+			int winner = m_winner.get();
+			m_attempts.get(Math.max(winner, 0)).await(timeout);
+		}
+		
+		/**
+		 * Cancels the attempts that did not win and have not started; those
+		 * that are running stop by themselves, since a winner is known
+		 * @return true if an attempt other than the first one won
+		 */
+		boolean cancelLosers()
+		{
+			int winner = m_winner.get();
+			for (int i = 0; i < m_attempts.size(); i++)
+			{
+				if (i != winner)
+					m_attempts.get(i).cancel();
+			}
+			return winner > 0;
+		}
+		
+		/**
+		 * Returns why the key could not be reduced
+		 * @return The failure of an attempt if no attempt has won, null
+		 *   otherwise
+		 */
+		RuntimeException getFailure()
+		{
+			if (m_winner.get() >= 0)
+				return null;
+			return m_failure.get();
+		}
+		
+		/**
+		 * The input or output of an attempt, which stops the attempt as
+		 * soon as another attempt has won
+		 */
+		private class AttemptCollector extends Collector<K,V>
+		{
+			private final int m_index;
+			
+			AttemptCollector(List<Tuple<K,V>> tuples, int index)
+			{
+				super(tuples);
+				m_index = index;
+			}
+			
+			private void checkWinner()
+			{
+				int winner = m_winner.get();
+				if (winner >= 0 && winner != m_index)
+					throw new AttemptLostException();
+			}
+			
+			@Override
+			public boolean hasNext()
+			{
+				checkWinner();
+				return super.hasNext();
+			}
+			
+			@Override
+			public Tuple<K,V> next()
+			{
+				checkWinner();
+				return super.next();
+			}
+			
+			@Override
+			public void collect(Tuple<K,V> t)
+			{
+				checkWinner();
+				super.collect(t);
+			}
+		}
+	}
+	
+	/**
+	 * Thrown in a speculative attempt to stop it once another attempt
+	 * has won
+	 */
+	private static class AttemptLostException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.List;
+
+/**
+ * Decides how the input of the reducer of a key is divided among
+ * workers. By default, a workflow gives the whole input of a key to a
+ * single reducer; but when a few keys carry most of the tuples, their
+ * reducers take much longer than the others, and the reduce phase
+ * hardly runs in parallel. With a partitioner, the workflow asks, for
+ * each key whose reducer is a {@link SplittableReducer} that accepts
+ * it, into how many parts the input of the key should be split, and
+ * has the partitioner split it.
+ */
+public interface Partitioner<K,V>
+{
+	/**
+	 * Returns the number of parts into which the input of a key should
+	 * be split
+	 * @param key The key
+	 * @param size The number of tuples of the input of the key
+	 * @param total The number of tuples of the inputs of all the keys
+	 * @param workers The number of workers of the reduce phase
+	 * @return The number of parts; 1 not to split the input
+	 */
+	public int getPartitions(K key, int size, long total, int workers);
+	
+	/**
+	 * Splits the input of a key
+	 * @param key The key
+	 * @param in The input of the key
+	 * @param parts The number of parts, as returned by
+	 * {@link #getPartitions}
+	 * @return The parts
+	 */
+	public List<InCollector<K,V>> split(K key, InCollector<K,V> in, int parts);
+}
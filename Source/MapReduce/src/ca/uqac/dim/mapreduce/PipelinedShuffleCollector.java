@@ -0,0 +1,182 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Output of the map phase that streams the tuples to the reducers while
+ * the map phase is still running. The tuples published by each mapper
+ * (see {@link ShuffleCollector#flush}) are appended to the
+ * {@link BlockingCollector} of their key; the reduce job for a key is
+ * submitted to the manager of the reduce phase as soon as the first
+ * tuples for that key are published. The reduce work hence overlaps with
+ * the end of the map phase, instead of waiting for the slowest mapper.
+ * <p>
+ * Since the reduce jobs wait for their input while the mappers are
+ * running, they must not be run by the same pool of workers as the map
+ * jobs.
+ * <p>
+ * The inputs of the reducers can be bounded (see {@link BlockingCollector}):
+ * a mapper that publishes its output then waits for the reducers that
+ * are behind, rather than buffering the whole output of the map phase.
+ * Only the inputs of the reducers that are running are bounded, so the
+ * bound holds for all the keys when the manager of the reduce phase has
+ * at least as many workers as there are keys.
+ */
+public class PipelinedShuffleCollector<K,V> extends ShuffleCollector<K,V>
+{
+	/**
+	 * The input of the reducer of each key seen so far
+	 */
+	private Map<K,BlockingCollector<K,V>> m_inputs = new HashMap<K,BlockingCollector<K,V>>();
+	
+	/**
+	 * The manager running the reduce jobs
+	 */
+	private ResourceManager<K,V> m_managerReducer;
+	
+	/**
+	 * The reducer to start for each key
+	 */
+	private Reducer<K,V> m_reducer;
+	
+	/**
+	 * The collector of the output of the reducers
+	 */
+	private OutCollector<K,V> m_out;
+	
+	/**
+	 * The maximum number of tuples waiting in the input of a reducer,
+	 * or 0 for no maximum
+	 */
+	private int m_capacity;
+	
+	/**
+	 * Create an instance of PipelinedShuffleCollector
+	 * @param c The {@link Combiner} to use, or null for none
+	 * @param rmR The {@link ResourceManager} to use to run the reduce jobs
+	 * @param r The {@link Reducer} to use in the reduce phase
+	 * @param out The collector of the output of the reducers
+	 */
+	public PipelinedShuffleCollector(Combiner<K,V> c, ResourceManager<K,V> rmR, Reducer<K,V> r, OutCollector<K,V> out)
+	{
+		this(c, rmR, r, out, 0);
+	}
+	
+	/**
+	 * Create an instance of PipelinedShuffleCollector
+	 * @param c The {@link Combiner} to use, or null for none
+	 * @param rmR The {@link ResourceManager} to use to run the reduce jobs
+	 * @param r The {@link Reducer} to use in the reduce phase
+	 * @param out The collector of the output of the reducers
+	 * @param capacity The maximum number of tuples waiting in the input
+	 * of a reducer, or 0 for no maximum
+	 */
+	public PipelinedShuffleCollector(Combiner<K,V> c, ResourceManager<K,V> rmR, Reducer<K,V> r, OutCollector<K,V> out, int capacity)
+	{
+		super(c);
+		m_managerReducer = rmR;
+		m_reducer = r;
+		m_out = out;
+		m_capacity = capacity;
+	}
+	
+	@Override
+	protected void publish(Map<K,List<Tuple<K,V>>> buffers)
+	{
+		for (Map.Entry<K,List<Tuple<K,V>>> entry : buffers.entrySet())
+		{
+			getInput(entry.getKey()).addAll(entry.getValue());
+		}
+	}
+	
+	/**
+	 * Signals that the map phase is over: the tuples not yet published
+	 * are sent to the reducers, and the inputs of all the reducers are
+	 * closed. The caller can then wait for the reduce jobs to finish.
+	 * @return A map from keys to the inputs of their reducers
+	 */
+	public Map<K,BlockingCollector<K,V>> close()
+	{
+		flushAll();
+		synchronized (m_inputs)
+		{
+			for (BlockingCollector<K,V> in : m_inputs.values())
+				in.close();
+			return m_inputs;
+		}
+	}
+	
+	/**
+	 * Returns the input of the reducer for a key, starting this reducer
+	 * if the key has not been seen before
+	 * @param key The key
+	 * @return The input of the reducer
+	 */
+	private BlockingCollector<K,V> getInput(K key)
+	{
+		synchronized (m_inputs)
+		{
+			BlockingCollector<K,V> in = m_inputs.get(key);
+			if (in == null)
+			{
+				in = new BlockingCollector<K,V>(m_capacity);
+				m_inputs.put(key, in);
+				if (m_capacity > 0)
+					m_managerReducer.execute(new BoundedReduceJob(key, in));
+				else
+					m_managerReducer.execute(m_out, key, in, m_reducer);
+			}
+			return in;
+		}
+	}
+	
+	/**
+	 * Reduce job on a bounded input. Once the reducer is over, its input
+	 * is released, so that no mapper waits for it if the reducer did not
+	 * read all of it.
+	 */
+	private class BoundedReduceJob implements Runnable
+	{
+		private final K m_key;
+		private final BlockingCollector<K,V> m_in;
+		
+		BoundedReduceJob(K key, BlockingCollector<K,V> in)
+		{
+			super();
+			m_key = key;
+			m_in = in;
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				m_reducer.reduce(m_out, m_key, m_in);
+			}
+			finally
+			{
+				m_in.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Starts and owns a set of worker processes on the local host, used by
+ * a {@link ProcessWorkflow}. Each worker is a new Java virtual machine
+ * running {@link ProcessWorker}, with the same class path as the
+ * current one; it talks to the manager through a socket on the loopback
+ * interface only. Since each worker has its own heap, a large job can
+ * be spread over several moderate heaps instead of a single big one.
+ * <p>
+ * Like the {@link ResourceManager}, a manager is meant to be created
+ * once and shared by all the jobs of a process: the workers are only
+ * started when the first job needs them, and live until
+ * {@link #shutdown} is called.
+ */
+public class ProcessManager
+{
+	/**
+	 * The number of milliseconds the manager waits for a worker to
+	 * connect, once it is started
+	 */
+	private static final int CONNECT_TIMEOUT = 60000;
+	
+	private int m_numWorkers;
+	private List<String> m_jvmArguments = new ArrayList<String>();
+	private List<Worker> m_workers = null;
+	
+	/**
+	 * Create an instance of ProcessManager
+	 * @param workers The number of worker processes
+	 */
+	public ProcessManager(int workers)
+	{
+		super();
+		if (workers < 1)
+			throw new IllegalArgumentException("At least one worker is needed");
+		m_numWorkers = workers;
+	}
+	
+	/**
+	 * Sets the arguments given to the virtual machine of each worker
+	 * (for example, "-Xmx2g" to set the size of its heap). This has no
+	 * effect once the workers are started.
+	 * @param args The arguments
+	 */
+	public void setJvmArguments(String... args)
+	{
+		m_jvmArguments = new ArrayList<String>(Arrays.asList(args));
+	}
+	
+	/**
+	 * Returns the number of worker processes
+	 * @return The number of workers
+	 */
+	public int getWorkerCount()
+	{
+		return m_numWorkers;
+	}
+	
+	/**
+	 * Returns the worker processes, starting them if needed
+	 * @return The workers
+	 * @throws IOException If a worker cannot be started
+	 */
+	synchronized List<Worker> getWorkers() throws IOException
+	{
+		if (m_workers != null)
+			return m_workers;
+		List<Worker> workers = new ArrayList<Worker>(m_numWorkers);
+		ServerSocket server = new ServerSocket(0, m_numWorkers, InetAddress.getLoopbackAddress());
+		try
+		{
+			server.setSoTimeout(CONNECT_TIMEOUT);
+			List<Process> processes = new ArrayList<Process>(m_numWorkers);
+			for (int i = 0; i < m_numWorkers; i++)
+				processes.add(startProcess(server.getLocalPort()));
+			// The workers connect in any order; they are all alike
+			for (Process p : processes)
+			{
+				Socket socket;
+				try
+				{
+					socket = server.accept();
+				}
+				catch (SocketTimeoutException e)
+				{
+					for (Process q : processes)
+						q.destroy();
+					for (Worker w : workers)
+						w.close();
+					throw new IOException("Worker process did not connect", e);
+				}
+				workers.add(new Worker(p, socket));
+			}
+		}
+		finally
+		{
+			server.close();
+		}
+		m_workers = workers;
+		return m_workers;
+	}
+	
+	/**
+	 * Starts a worker process
+	 * @param port The port the worker must connect to
+	 * @return The process
+	 * @throws IOException If the process cannot be started
+	 */
+	private Process startProcess(int port) throws IOException
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> command = new ArrayList<String>();
+		command.add(java);
+		command.addAll(m_jvmArguments);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ProcessWorker.class.getName());
+		command.add(Integer.toString(port));
+		ProcessBuilder pb = new ProcessBuilder(command);
+		// Whatever the workers print goes to the console of the manager
+		pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		return pb.start();
+	}
+	
+	/**
+	 * Stops the worker processes. A new job started after this call
+	 * starts new workers.
+	 */
+	public synchronized void shutdown()
+	{
+		if (m_workers == null)
+			return;
+		// A socket is not necessarily that of the process it is paired
+		// with (see getWorkers): all of them must be closed before the
+		// manager waits for any process
+		for (Worker w : m_workers)
+			w.disconnect();
+		for (Worker w : m_workers)
+			w.close();
+		m_workers = null;
+	}
+	
+	/**
+	 * A worker process and the connection to it
+	 */
+	static class Worker
+	{
+		final Process m_process;
+		final Socket m_socket;
+		final ObjectOutputStream m_out;
+		final ObjectInputStream m_in;
+		
+		Worker(Process p, Socket s) throws IOException
+		{
+			super();
+			m_process = p;
+			m_socket = s;
+			m_socket.setTcpNoDelay(true);
+			m_out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream(), ProcessWorker.BUFFER_SIZE));
+			m_out.flush();
+			m_in = new ObjectInputStream(new BufferedInputStream(s.getInputStream(), ProcessWorker.BUFFER_SIZE));
+		}
+		
+		/**
+		 * Reads the status of a reply of the worker
+		 * @throws IOException If the worker reports an error
+		 */
+		void checkReply() throws IOException
+		{
+			if (!m_in.readBoolean())
+				throw new IOException("Worker process failed: " + m_in.readUTF());
+		}
+		
+		/**
+		 * Closes the connection; the worker exits when it sees it
+		 */
+		void disconnect()
+		{
+			try
+			{
+				m_socket.close();
+			}
+			catch (IOException e)
+			{
+				m_process.destroy();
+			}
+		}
+		
+		/**
+		 * Closes the connection, and waits for the process to exit
+		 */
+		void close()
+		{
+			disconnect();
+			try
+			{
+				m_process.waitFor();
+			}
+			catch (InterruptedException e)
+			{
+				m_process.destroy();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
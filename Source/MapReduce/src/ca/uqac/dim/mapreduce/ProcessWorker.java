@@ -0,0 +1,597 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Entry point of a worker process started by a {@link ProcessManager}.
+ * The worker connects to the coordinator on the loopback interface (the
+ * port is given as its only argument), and then executes the commands
+ * it receives until the coordinator closes the connection:
+ * <ul>
+ * <li>{@link JOB}: receive the mapper, reducer, combiner, value order
+ *   and serializer of the next map-reduce job, as serialized objects</li>
+ * <li>{@link MAP}: map a split of the input, given either as a list of
+ *   tuples or as segments of files written by an earlier job; write the
+ *   output of the mapper (combined, if the job has a combiner) to a run
+ *   file, grouped by key, and send back the index of the run</li>
+ * <li>{@link REDUCE}: reduce a set of keys, each given as the segments
+ *   of its tuples in the runs of all the workers, and write the output
+ *   of the reducer to a file</li>
+ * </ul>
+ * The tuples hence go from one worker to another through files, which
+ * all the processes of the local host can read; the coordinator only
+ * sees their positions. A list of tuples is sent as its size followed
+ * by the tuples, written by a new instance of the job's
+ * {@link TupleSerializer}; so is each segment of a file. Each reply
+ * starts with a boolean telling whether the command succeeded; if not,
+ * it is followed by the stack trace of the error.
+ */
+public class ProcessWorker
+{
+	/**
+	 * Command: receive a new job
+	 */
+	static final int JOB = 1;
+	
+	/**
+	 * Command: map a split of the input
+	 */
+	static final int MAP = 2;
+	
+	/**
+	 * Command: reduce a set of keys
+	 */
+	static final int REDUCE = 3;
+	
+	/**
+	 * The size of the buffers in front of the socket and the files
+	 */
+	static final int BUFFER_SIZE = 65536;
+	
+	/**
+	 * The maximum length of the stack trace sent with an error
+	 */
+	private static final int MAX_TRACE = 16384;
+	
+	private ObjectInputStream m_in;
+	private ObjectOutputStream m_out;
+	private Job<Object,Object> m_job = null;
+	
+	ProcessWorker(ObjectInputStream in, ObjectOutputStream out)
+	{
+		super();
+		m_in = in;
+		m_out = out;
+	}
+	
+	public static void main(String[] args) throws IOException
+	{
+		int port = Integer.parseInt(args[0]);
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+		out.flush();
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+		new ProcessWorker(in, out).serve();
+		socket.close();
+	}
+	
+	/**
+	 * Executes commands until the coordinator closes the connection
+	 * @throws IOException If the connection is broken
+	 */
+	void serve() throws IOException
+	{
+		while (true)
+		{
+			int command;
+			try
+			{
+				command = m_in.readInt();
+			}
+			catch (EOFException e)
+			{
+				// The coordinator is done with us
+				return;
+			}
+			try
+			{
+				switch (command)
+				{
+				case JOB:
+					m_job = readJob();
+					m_out.writeBoolean(true);
+					break;
+				case MAP:
+					doMap();
+					break;
+				case REDUCE:
+					doReduce();
+					break;
+				default:
+					throw new IOException("Unknown command " + command);
+				}
+			}
+			catch (IOException e)
+			{
+				throw e;
+			}
+			catch (Throwable t)
+			{
+				// Report the error to the coordinator; the rest of the
+				// input of the command is lost, so the worker stops
+				StringWriter sw = new StringWriter();
+				t.printStackTrace(new PrintWriter(sw));
+				m_out.writeBoolean(false);
+				String trace = sw.toString();
+				if (trace.length() > MAX_TRACE)
+					trace = trace.substring(0, MAX_TRACE);
+				m_out.writeUTF(trace);
+				m_out.flush();
+				return;
+			}
+			m_out.flush();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Job<Object,Object> readJob() throws IOException, ClassNotFoundException
+	{
+		return (Job<Object,Object>) m_in.readObject();
+	}
+	
+	private void doMap() throws IOException
+	{
+		if (m_job == null)
+			throw new IllegalStateException("No job");
+		File run = new File(m_in.readUTF());
+		ShuffleCollector<Object,Object> out = null;
+		if (m_job.m_comparator != null)
+			out = new SortingShuffleCollector<Object,Object>(m_job.m_combiner, m_job.m_comparator);
+		else
+			out = new ShuffleCollector<Object,Object>(m_job.m_combiner);
+		if (m_in.readBoolean())
+		{
+			// The split is made of files written by an earlier job
+			List<File> files = readFiles(m_in);
+			SegmentInput<Object,Object> split = new SegmentInput<Object,Object>(files, readSegments(m_in), m_job.m_serializer, null);
+			while (split.hasNext())
+				m_job.m_mapper.map(out, split.next());
+		}
+		else
+		{
+			// The tuples are mapped as they arrive
+			int size = m_in.readInt();
+			TupleSerializer<Object,Object> reader = m_job.m_serializer.newInstance();
+			for (int i = 0; i < size; i++)
+				m_job.m_mapper.map(out, reader.read(m_in));
+		}
+		out.flush();
+		Map<Object,? extends InCollector<Object,Object>> groups = out.getReducerInputs();
+		// Each key is a segment of the run, read on its own by a reducer
+		List<Tuple<Object,Object>> firsts = new ArrayList<Tuple<Object,Object>>(groups.size());
+		List<Segment> segments = new ArrayList<Segment>(groups.size());
+		FileOutputStream fos = new FileOutputStream(run);
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+		try
+		{
+			for (InCollector<Object,Object> group : groups.values())
+			{
+				data.flush();
+				long offset = fos.getChannel().position();
+				TupleSerializer<Object,Object> writer = m_job.m_serializer.newInstance();
+				int count = 0;
+				group.rewind();
+				while (group.hasNext())
+				{
+					Tuple<Object,Object> t = group.next();
+					if (count == 0)
+						firsts.add(t);
+					writer.write(data, t);
+					count++;
+				}
+				segments.add(new Segment(0, offset, count));
+			}
+		}
+		finally
+		{
+			data.close();
+		}
+		out.dispose();
+		// The first tuple of each segment tells the coordinator its key
+		m_out.writeBoolean(true);
+		m_out.writeInt(segments.size());
+		for (int i = 0; i < segments.size(); i++)
+		{
+			m_out.writeLong(segments.get(i).m_offset);
+			m_out.writeInt(segments.get(i).m_count);
+			m_job.m_serializer.newInstance().write(m_out, firsts.get(i));
+		}
+	}
+	
+	private void doReduce() throws IOException
+	{
+		if (m_job == null)
+			throw new IllegalStateException("No job");
+		File output = new File(m_in.readUTF());
+		List<File> runs = readFiles(m_in);
+		int num_keys = m_in.readInt();
+		FileOutputStream fos = new FileOutputStream(output);
+		ChannelOutCollector<Object,Object> out = new ChannelOutCollector<Object,Object>(fos.getChannel(), m_job.m_serializer);
+		try
+		{
+			for (int i = 0; i < num_keys; i++)
+			{
+				SegmentInput<Object,Object> in = new SegmentInput<Object,Object>(runs, readSegments(m_in), m_job.m_serializer, m_job.m_comparator);
+				Object key = in.next().getKey();
+				in.rewind();
+				m_job.m_reducer.reduce(out, key, in);
+				in.rewind();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		m_out.writeBoolean(true);
+		m_out.writeInt(out.count());
+	}
+	
+	/**
+	 * Writes a list of tuples
+	 * @param out The stream to write to
+	 * @param tuples The tuples
+	 * @param s The serializer of the job
+	 * @throws IOException If the tuples cannot be written
+	 */
+	static <K,V> void writeTuples(ObjectOutputStream out, List<Tuple<K,V>> tuples, TupleSerializer<K,V> s) throws IOException
+	{
+		out.writeInt(tuples.size());
+		TupleSerializer<K,V> writer = s.newInstance();
+		for (Tuple<K,V> t : tuples)
+			writer.write(out, t);
+	}
+	
+	/**
+	 * Writes a list of file names
+	 * @param out The stream to write to
+	 * @param files The names of the files
+	 * @throws IOException If the names cannot be written
+	 */
+	static void writeFiles(ObjectOutputStream out, List<File> files) throws IOException
+	{
+		out.writeInt(files.size());
+		for (File f : files)
+			out.writeUTF(f.getPath());
+	}
+	
+	/**
+	 * Reads a list of file names
+	 * @param in The stream to read from
+	 * @return The files
+	 * @throws IOException If the names cannot be read
+	 */
+	static List<File> readFiles(ObjectInputStream in) throws IOException
+	{
+		int size = in.readInt();
+		List<File> files = new ArrayList<File>(size);
+		for (int i = 0; i < size; i++)
+			files.add(new File(in.readUTF()));
+		return files;
+	}
+	
+	/**
+	 * Writes a list of segments
+	 * @param out The stream to write to
+	 * @param segments The segments
+	 * @throws IOException If the segments cannot be written
+	 */
+	static void writeSegments(ObjectOutputStream out, List<Segment> segments) throws IOException
+	{
+		out.writeInt(segments.size());
+		for (Segment s : segments)
+		{
+			out.writeInt(s.m_file);
+			out.writeLong(s.m_offset);
+			out.writeInt(s.m_count);
+		}
+	}
+	
+	/**
+	 * Reads a list of segments
+	 * @param in The stream to read from
+	 * @return The segments
+	 * @throws IOException If the segments cannot be read
+	 */
+	static List<Segment> readSegments(ObjectInputStream in) throws IOException
+	{
+		int size = in.readInt();
+		List<Segment> segments = new ArrayList<Segment>(size);
+		for (int i = 0; i < size; i++)
+			segments.add(new Segment(in.readInt(), in.readLong(), in.readInt()));
+		return segments;
+	}
+	
+	/**
+	 * The objects that define a map-reduce job. They are sent together,
+	 * so that the objects they share (for example, the keys known to
+	 * both the mapper and the serializer) are still shared once they are
+	 * read by the worker.
+	 */
+	static class Job<K,V> implements Serializable
+	{
+		private static final long serialVersionUID = 2L;
+		
+		final Mapper<K,V> m_mapper;
+		final Reducer<K,V> m_reducer;
+		final Combiner<K,V> m_combiner;
+		final Comparator<? super V> m_comparator;
+		final TupleSerializer<K,V> m_serializer;
+		
+		Job(Mapper<K,V> m, Reducer<K,V> r, Combiner<K,V> c, Comparator<? super V> comparator, TupleSerializer<K,V> s)
+		{
+			super();
+			m_mapper = m;
+			m_reducer = r;
+			m_combiner = c;
+			m_comparator = comparator;
+			m_serializer = s;
+		}
+	}
+	
+	/**
+	 * Location of a sequence of tuples in a file: the file, given by its
+	 * position in a list of files, the position of the first tuple, and
+	 * the number of tuples
+	 */
+	static class Segment
+	{
+		final int m_file;
+		final long m_offset;
+		final int m_count;
+		
+		Segment(int file, long offset, int count)
+		{
+			super();
+			m_file = file;
+			m_offset = offset;
+			m_count = count;
+		}
+	}
+	
+	/**
+	 * Input made of segments of files, read one after the other; if an
+	 * order of the values is given, the segments are sorted runs, and
+	 * are merged instead. The tuples are read as they are enumerated.
+	 */
+	static class SegmentInput<K,V> implements InCollector<K,V>
+	{
+		private final List<File> m_files;
+		private final List<Segment> m_segments;
+		private final TupleSerializer<K,V> m_serializer;
+		private final Comparator<Tuple<K,V>> m_order;
+		
+		/**
+		 * The segment being read, when they are read one after the other
+		 */
+		private Cursor m_cursor = null;
+		
+		/**
+		 * The position of the next segment to read
+		 */
+		private int m_next = 0;
+		
+		/**
+		 * The segments being merged, by their next tuple
+		 */
+		private PriorityQueue<Cursor> m_heads = null;
+		
+		SegmentInput(List<File> files, List<Segment> segments, TupleSerializer<K,V> s, final Comparator<? super V> comparator)
+		{
+			super();
+			m_files = files;
+			m_segments = segments;
+			m_serializer = s;
+			if (comparator == null)
+			{
+				m_order = null;
+				return;
+			}
+			m_order = new Comparator<Tuple<K,V>>()
+			{
+				@Override
+				public int compare(Tuple<K,V> t1, Tuple<K,V> t2)
+				{
+					return comparator.compare(t1.getValue(), t2.getValue());
+				}
+			};
+		}
+		
+		@Override
+		public int count()
+		{
+			int total = 0;
+			for (Segment s : m_segments)
+				total += s.m_count;
+			return total;
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			if (m_order != null)
+			{
+				if (m_heads == null)
+				{
+					m_heads = new PriorityQueue<Cursor>(Math.max(1, m_segments.size()));
+					for (int i = 0; i < m_segments.size(); i++)
+					{
+						Cursor c = new Cursor(m_segments.get(i), i);
+						if (c.advance())
+							m_heads.add(c);
+					}
+				}
+				return !m_heads.isEmpty();
+			}
+			while ((m_cursor == null || m_cursor.m_head == null) && m_next < m_segments.size())
+			{
+				m_cursor = new Cursor(m_segments.get(m_next), m_next);
+				m_next++;
+				m_cursor.advance();
+			}
+			return m_cursor != null && m_cursor.m_head != null;
+		}
+		
+		@Override
+		public Tuple<K,V> next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Cursor c = (m_order != null) ? m_heads.poll() : m_cursor;
+			Tuple<K,V> t = c.m_head;
+			if (c.advance() && m_order != null)
+				m_heads.add(c);
+			return t;
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+		
+		/**
+		 * Rewinds the input, and closes the files it reads
+		 */
+		@Override
+		public void rewind()
+		{
+			if (m_cursor != null)
+				m_cursor.close();
+			if (m_heads != null)
+			{
+				for (Cursor c : m_heads)
+					c.close();
+			}
+			m_cursor = null;
+			m_heads = null;
+			m_next = 0;
+		}
+		
+		/**
+		 * Position in a segment
+		 */
+		private class Cursor implements Comparable<Cursor>
+		{
+			private final int m_index;
+			private DataInputStream m_in;
+			private TupleSerializer<K,V> m_reader;
+			private int m_left;
+			private Tuple<K,V> m_head = null;
+			
+			Cursor(Segment s, int index)
+			{
+				super();
+				m_index = index;
+				m_left = s.m_count;
+				m_reader = m_serializer.newInstance();
+				try
+				{
+					FileInputStream fis = new FileInputStream(m_files.get(s.m_file));
+					fis.getChannel().position(s.m_offset);
+					m_in = new DataInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Cannot read the shuffle from disk", e);
+				}
+			}
+			
+			/**
+			 * Reads the next tuple of the segment
+			 * @return false if the segment is over
+			 */
+			boolean advance()
+			{
+				if (m_left == 0)
+				{
+					m_head = null;
+					close();
+					return false;
+				}
+				m_left--;
+				try
+				{
+					m_head = m_reader.read(m_in);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Cannot read the shuffle from disk", e);
+				}
+				return true;
+			}
+			
+			void close()
+			{
+				if (m_in == null)
+					return;
+				try
+				{
+					m_in.close();
+				}
+				catch (IOException e)
+				{
+					// Nothing else to do with a file we have finished reading
+				}
+				m_in = null;
+			}
+			
+			@Override
+			public int compareTo(Cursor c)
+			{
+				int comp = m_order.compare(m_head, c.m_head);
+				if (comp != 0)
+					return comp;
+				return m_index < c.m_index ? -1 : (m_index == c.m_index ? 0 : 1);
+			}
+		}
+	}
+}
@@ -0,0 +1,546 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Runs a map-reduce job in the worker processes of a
+ * {@link ProcessManager}. The process running the workflow acts as the
+ * coordinator, which assigns the work but never holds the tuples of the
+ * job:
+ * <ol>
+ * <li>it sends the job (mapper, reducer, combiner, value order and
+ *   serializer) to every worker</li>
+ * <li>it gives each worker a split of the input to map: a contiguous
+ *   chunk of the tuples, or, when the input is the output of an earlier
+ *   run, some of the files that hold it. Each worker writes the output
+ *   of its mapper to a run file, grouped by key, and sends back where
+ *   the group of each key starts</li>
+ * <li>it assigns each key to a worker according to its hash code, and
+ *   sends each worker the location of the groups of its keys in the runs
+ *   of all the workers. Each worker reads them from the runs, reduces
+ *   them, and writes the output of its reducer to a file</li>
+ * </ol>
+ * The output of the run is read from these files, as it is enumerated.
+ * The workers and the coordinator must hence share a file system, which
+ * is the case of the processes of a {@link ProcessManager}. The files
+ * are in a temporary directory; the output of a run is deleted when the
+ * run after the next one starts (like an {@link IterativeWorkflow} does
+ * with its collectors), and at the latest when the virtual machine exits.
+ * <p>
+ * The tuples are written to the files by the {@link TupleSerializer}
+ * given to the workflow. The mapper, reducer, combiner, value order and
+ * serializer are sent as serialized objects, and must hence implement
+ * {@link Serializable}.
+ */
+public class ProcessWorkflow<K,V> implements ReusableWorkflow<K,V>
+{
+	private Mapper<K,V> m_mapper = null;
+	private Reducer<K,V> m_reducer = null;
+	private InCollector<K,V> m_source = null;
+	private Collector<K,V> m_output = null;
+	private Combiner<K,V> m_combiner = null;
+	private Comparator<? super V> m_comparator = null;
+	private TupleSerializer<K,V> m_serializer = null;
+	private ProcessManager m_manager = null;
+	
+	/**
+	 * The directory of the files of the jobs, created by the first run
+	 */
+	private File m_directory = null;
+	
+	/**
+	 * The number of runs started so far
+	 */
+	private int m_runs = 0;
+	
+	/**
+	 * The outputs of the runs that have not been deleted yet
+	 */
+	private List<FileOutput<K,V>> m_outputs = new ArrayList<FileOutput<K,V>>();
+	
+	/**
+	 * The total number of tuples processed by all reducers
+	 */
+	protected long m_totalTuples = 0;
+	
+	/**
+	 * The maximum number of tuples processed by a single reducer
+	 */
+	protected long m_maxTuples = 0;
+	
+	/**
+	 * Create an instance of ProcessWorkflow
+	 * @param m The mapper
+	 * @param r The reducer
+	 * @param c The input tuples
+	 * @param s The serializer used to write the tuples to the files
+	 * @param pm The manager of the worker processes
+	 */
+	public ProcessWorkflow(Mapper<K,V> m, Reducer<K,V> r, InCollector<K,V> c, TupleSerializer<K,V> s, ProcessManager pm)
+	{
+		super();
+		setMapper(m);
+		setReducer(r);
+		setSource(c);
+		setSerializer(s);
+		m_manager = pm;
+	}
+	
+	public void setMapper(Mapper<K,V> m)
+	{
+		checkSerializable(m);
+		m_mapper = m;
+	}
+	
+	public void setReducer(Reducer<K,V> r)
+	{
+		checkSerializable(r);
+		m_reducer = r;
+	}
+	
+	public void setSource(InCollector<K,V> c)
+	{
+		m_source = c;
+	}
+	
+	/**
+	 * Sets the collector in which the next runs copy their output. It
+	 * is emptied at the start of each run. By default, the output of a
+	 * run is read from the files written by the workers.
+	 * @param c The collector, or null to read the output from the files
+	 */
+	public void setOutput(Collector<K,V> c)
+	{
+		m_output = c;
+	}
+	
+	public void setSerializer(TupleSerializer<K,V> s)
+	{
+		checkSerializable(s);
+		m_serializer = s;
+	}
+	
+	/**
+	 * Sets the combiner applied by each worker to the output of its
+	 * mapper, before it is written to its run
+	 * @param c The combiner, or null for none
+	 */
+	public void setCombiner(Combiner<K,V> c)
+	{
+		checkSerializable(c);
+		m_combiner = c;
+	}
+	
+	/**
+	 * Sets the order in which each reducer receives the values of its
+	 * key (see {@link SortingShuffleCollector}). Each worker sorts the
+	 * groups of its run, and the reducers merge the runs of all the
+	 * workers. By default, the values are not sorted.
+	 * @param c The order of the values, or null not to sort them
+	 */
+	public void setValueComparator(Comparator<? super V> c)
+	{
+		checkSerializable(c);
+		m_comparator = c;
+	}
+	
+	@Override
+	public InCollector<K,V> run()
+	{
+		if (m_mapper == null || m_reducer == null || m_source == null || m_serializer == null)
+			return null;
+		try
+		{
+			return runJob();
+		}
+		catch (IOException e)
+		{
+			// The workers are in an unknown state: start over next time
+			m_manager.shutdown();
+			throw new RuntimeException("Map-reduce job failed in a worker process", e);
+		}
+	}
+	
+	private InCollector<K,V> runJob() throws IOException
+	{
+		m_maxTuples = 0;
+		m_totalTuples = 0;
+		List<ProcessManager.Worker> workers = m_manager.getWorkers();
+		int num_workers = workers.size();
+		ProcessWorker.Job<K,V> job = new ProcessWorker.Job<K,V>(m_mapper, m_reducer, m_combiner, m_comparator, m_serializer);
+		File directory = getDirectory();
+		int run_id = m_runs++;
+		// Only the source is still read among the earlier outputs
+		Iterator<FileOutput<K,V>> it = m_outputs.iterator();
+		while (it.hasNext())
+		{
+			FileOutput<K,V> o = it.next();
+			if (o != m_source)
+			{
+				o.delete();
+				it.remove();
+			}
+		}
+		
+		// Map phase: one split of the input per worker
+		List<File> runs = new ArrayList<File>(num_workers);
+		List<Tuple<K,V>> tuples = null;
+		if (!m_outputs.contains(m_source))
+			tuples = getSourceTuples();
+		for (int i = 0; i < num_workers; i++)
+		{
+			ObjectOutputStream out = workers.get(i).m_out;
+			out.writeInt(ProcessWorker.JOB);
+			out.writeObject(job);
+			// Forget the objects already sent, so that the next job
+			// is sent again as a whole
+			out.reset();
+			File run = newFile(directory, "map-" + i + ".run");
+			runs.add(run);
+			out.writeInt(ProcessWorker.MAP);
+			out.writeUTF(run.getPath());
+			out.writeBoolean(tuples == null);
+			if (tuples == null)
+			{
+				// The output of the last run is already in files
+				((FileOutput<K,V>) m_source).writeSplit(out, i, num_workers);
+			}
+			else
+			{
+				int from = (int) ((long) tuples.size() * i / num_workers);
+				int to = (int) ((long) tuples.size() * (i + 1) / num_workers);
+				ProcessWorker.writeTuples(out, tuples.subList(from, to), m_serializer);
+			}
+			out.flush();
+		}
+		tuples = null;
+		// Only the location of the group of each key comes back
+		Map<K,List<ProcessWorker.Segment>> groups = new HashMap<K,List<ProcessWorker.Segment>>();
+		for (int i = 0; i < num_workers; i++)
+		{
+			ProcessManager.Worker w = workers.get(i);
+			w.checkReply();
+			w.checkReply();
+			ObjectInputStream in = w.m_in;
+			int num_keys = in.readInt();
+			for (int j = 0; j < num_keys; j++)
+			{
+				long offset = in.readLong();
+				int count = in.readInt();
+				K key = m_serializer.newInstance().read(in).getKey();
+				List<ProcessWorker.Segment> segments = groups.get(key);
+				if (segments == null)
+				{
+					segments = new ArrayList<ProcessWorker.Segment>(num_workers);
+					groups.put(key, segments);
+				}
+				segments.add(new ProcessWorker.Segment(i, offset, count));
+			}
+		}
+		
+		// Reduce phase: each key goes to the worker given by its hash
+		List<List<List<ProcessWorker.Segment>>> partitions = new ArrayList<List<List<ProcessWorker.Segment>>>(num_workers);
+		for (int i = 0; i < num_workers; i++)
+			partitions.add(new ArrayList<List<ProcessWorker.Segment>>());
+		for (Map.Entry<K,List<ProcessWorker.Segment>> entry : groups.entrySet())
+		{
+			int i = (entry.getKey().hashCode() & Integer.MAX_VALUE) % num_workers;
+			partitions.get(i).add(entry.getValue());
+			long num_tuples = 0;
+			for (ProcessWorker.Segment s : entry.getValue())
+				num_tuples += s.m_count;
+			m_totalTuples += num_tuples;
+			m_maxTuples = Math.max(m_maxTuples, num_tuples);
+		}
+		groups = null;
+		List<File> outputs = new ArrayList<File>(num_workers);
+		for (int i = 0; i < num_workers; i++)
+		{
+			ObjectOutputStream out = workers.get(i).m_out;
+			File output = newFile(directory, "out-" + run_id + "-" + i + ".run");
+			outputs.add(output);
+			out.writeInt(ProcessWorker.REDUCE);
+			out.writeUTF(output.getPath());
+			ProcessWorker.writeFiles(out, runs);
+			List<List<ProcessWorker.Segment>> partition = partitions.get(i);
+			out.writeInt(partition.size());
+			for (List<ProcessWorker.Segment> segments : partition)
+				ProcessWorker.writeSegments(out, segments);
+			out.flush();
+		}
+		partitions = null;
+		FileOutput<K,V> output = new FileOutput<K,V>(m_serializer);
+		for (int i = 0; i < num_workers; i++)
+		{
+			ProcessManager.Worker w = workers.get(i);
+			w.checkReply();
+			output.add(outputs.get(i), w.m_in.readInt());
+		}
+		for (File run : runs)
+			run.delete();
+		m_outputs.add(output);
+		if (m_output == null)
+			return output;
+		m_output.clear();
+		output.rewind();
+		while (output.hasNext())
+			m_output.collect(output.next());
+		output.rewind();
+		return m_output;
+	}
+	
+	/**
+	 * Returns the directory of the files of the jobs, and creates it if
+	 * needed
+	 * @return The directory
+	 * @throws IOException If the directory cannot be created
+	 */
+	private File getDirectory() throws IOException
+	{
+		if (m_directory == null)
+		{
+			m_directory = Files.createTempDirectory("mapreduce").toFile();
+			// Registered first, so that it is deleted after its files
+			m_directory.deleteOnExit();
+		}
+		return m_directory;
+	}
+	
+	/**
+	 * Names a file of a job, to be deleted when the virtual machine exits
+	 * @param directory The directory of the file
+	 * @param name The name of the file
+	 * @return The file
+	 */
+	private static File newFile(File directory, String name)
+	{
+		File f = new File(directory, name);
+		f.deleteOnExit();
+		return f;
+	}
+	
+	/**
+	 * Returns the tuples of the data source as a list
+	 * @return The list of tuples
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<Tuple<K,V>> getSourceTuples()
+	{
+		if (m_source instanceof Collector<?,?>)
+			return ((Collector<K,V>) m_source).toList();
+		List<Tuple<K,V>> list = new ArrayList<Tuple<K,V>>();
+		m_source.rewind();
+		while (m_source.hasNext())
+			list.add(m_source.next());
+		return list;
+	}
+	
+	/**
+	 * Makes sure an object can be sent to the worker processes
+	 * @param o The object
+	 * @throws IllegalArgumentException If the object is not serializable
+	 */
+	private static void checkSerializable(Object o)
+	{
+		if (o != null && !(o instanceof Serializable))
+			throw new IllegalArgumentException(o.getClass().getName() + " must implement Serializable to be sent to a worker process");
+	}
+	
+	/**
+	 * Returns the maximum number of tuples processed by a single
+	 * reducer in the process. This method returns 0 if the MapReduce
+	 * job hasn't executed yet (i.e. you should call it only after
+	 * a call to {@link #run}).
+	 * @return
+	 */
+	public long getMaxTuples()
+	{
+		return m_maxTuples;
+	}
+	
+	/**
+	 * Returns the total number of tuples processed by all reducers.
+	 * This method returns 0 if the MapReduce
+	 * job hasn't executed yet (i.e. you should call it only after
+	 * a call to {@link #run}).
+	 * @return
+	 */
+	public long getTotalTuples()
+	{
+		return m_totalTuples;
+	}
+	
+	/**
+	 * Output of a run, made of the files written by the reducers of the
+	 * workers. The tuples are read from the files as they are enumerated.
+	 */
+	private static class FileOutput<K,V> implements InCollector<K,V>
+	{
+		private final TupleSerializer<K,V> m_serializer;
+		private final List<File> m_files = new ArrayList<File>();
+		private final List<Integer> m_counts = new ArrayList<Integer>();
+		private int m_count = 0;
+		
+		/**
+		 * The position of the next file to read
+		 */
+		private int m_next = 0;
+		
+		/**
+		 * The tuples of the file being read
+		 */
+		private ChannelInCollector<K,V> m_in = null;
+		
+		FileOutput(TupleSerializer<K,V> s)
+		{
+			super();
+			m_serializer = s;
+		}
+		
+		/**
+		 * Adds a file to the output
+		 * @param f The file
+		 * @param count The number of tuples in the file
+		 */
+		void add(File f, int count)
+		{
+			m_files.add(f);
+			m_counts.add(count);
+			m_count += count;
+		}
+		
+		/**
+		 * Sends a worker its split of this output: every file whose
+		 * position, modulo the number of workers, is the worker's own
+		 * @param out The stream to the worker
+		 * @param worker The position of the worker
+		 * @param num_workers The number of workers
+		 * @throws IOException If the split cannot be sent
+		 */
+		void writeSplit(ObjectOutputStream out, int worker, int num_workers) throws IOException
+		{
+			List<File> files = new ArrayList<File>();
+			List<ProcessWorker.Segment> segments = new ArrayList<ProcessWorker.Segment>();
+			for (int i = worker; i < m_files.size(); i += num_workers)
+			{
+				segments.add(new ProcessWorker.Segment(files.size(), 0, m_counts.get(i)));
+				files.add(m_files.get(i));
+			}
+			ProcessWorker.writeFiles(out, files);
+			ProcessWorker.writeSegments(out, segments);
+		}
+		
+		/**
+		 * Deletes the files of the output
+		 */
+		void delete()
+		{
+			rewind();
+			for (File f : m_files)
+				f.delete();
+		}
+		
+		@Override
+		public int count()
+		{
+			return m_count;
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while (m_in == null || !m_in.hasNext())
+			{
+				close();
+				if (m_next >= m_files.size())
+					return false;
+				try
+				{
+					m_in = new ChannelInCollector<K,V>(FileChannel.open(m_files.get(m_next).toPath(), StandardOpenOption.READ), m_serializer);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Cannot read tuples", e);
+				}
+				m_next++;
+			}
+			return true;
+		}
+		
+		@Override
+		public Tuple<K,V> next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return m_in.next();
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void rewind()
+		{
+			close();
+			m_next = 0;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return m_count + " tuples in " + m_files;
+		}
+		
+		/**
+		 * Closes the file being read
+		 */
+		private void close()
+		{
+			if (m_in == null)
+				return;
+			try
+			{
+				m_in.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing else to do with a file we have finished reading
+			}
+			m_in = null;
+		}
+	}
+}
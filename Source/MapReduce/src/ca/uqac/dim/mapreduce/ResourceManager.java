@@ -17,22 +17,47 @@
  */
 package ca.uqac.dim.mapreduce;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.lang.reflect.Method;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Coordinates the creation of all threads needed to execute the jobs. This 
- * means that it's the only object able to create mapper Threads and reducer 
- * Threads with all of the informations needed. It's also very important to know
- * there is a management on the number of threads. The manager create a thread,
- * put it in the threads list and send the object to the calling line. 
- * If the maximum of threads has been hit, he don't stop to try to find a 
- * dead thread in the threads list. After that, he erases the dead thread, 
- * add the new thread and return the object to the calling ligne. 
- * Finally, he can check if all threads of the list are dead. The goal is to 
- * make sure of all of the handling is over, before to pass to the other phase.
+ * Coordinates the execution of all the jobs needed by a phase of the
+ * map-reduce process. The manager owns a bounded pool of worker threads,
+ * whose size is the maximum number of threads given to the builder: jobs
+ * submitted with {@link #execute} are queued and picked up by the first
+ * idle worker, so that no thread is created for each tuple. The workers
+ * are only started when the first job is submitted, and die after they
+ * have been idle for a while.
+ * Finally, the manager can wait until all of the submitted jobs are over
+ * (using {@link #waitThreads}). The goal is to make sure of all of the 
+ * handling is over, before to pass to the other phase. This wait blocks
+ * the calling thread instead of polling the state of the workers.
+ * <p>
+ * Alternately, the manager can run each job on a virtual thread of its
+ * own (see {@link #setVirtualThreads}), when the Java runtime provides
+ * them (Java 21 and later). A virtual thread costs little more than the
+ * job itself, so that the maximum number of threads no longer limits
+ * how many jobs run at the same time; {@link #waitThreads} is still the
+ * barrier that ends a phase.
+ * <p>
+ * Each job submitted is tracked as a {@link Task}, which records when the
+ * job started and ended, and how it ended. A caller can use this to spot
+ * the jobs that take much longer than the others, and cancel the jobs
+ * it no longer needs.
  * @author Maxime Soucy-Boivin
- * @version 1.1
+ * @version 1.3
  *
  */
 public class ResourceManager<K,V> {
@@ -50,18 +75,57 @@ public class ResourceManager<K,V> {
     private int threadMax = 0;
     
     /**
-     * The list that contains all of the created threads of the manager. 
+     * The number of seconds an idle worker of the pool waits for a new job
+     * before it dies
+     */
+    private static final long KEEP_ALIVE = 30;
+    
+    /**
+     * The list that contains all of the threads created by {@link #getThread}.
      * It's important to know that the manager is the only one to have acces to 
      * the list.
      */
     private List<Thread> listThread = new LinkedList<Thread>();
     
+    /**
+     * The pool of worker threads. It is created with the first job
+     * submitted to the manager.
+     */
+    private ExecutorService m_pool = null;
+    
+    /**
+     * Whether the jobs should run on virtual threads
+     */
+    private boolean m_virtual = false;
+    
+    /**
+     * The method of {@link java.util.concurrent.Executors} that creates
+     * an executor starting a virtual thread for each job, or null if the
+     * Java runtime has no virtual threads. It is looked up by reflection,
+     * so that the manager still runs on older runtimes.
+     */
+    private static final Method VIRTUAL_EXECUTOR = findVirtualExecutor();
+    
+    /**
+     * The timer that records how long jobs wait before they start, or
+     * null
+     */
+    private Metrics.Timer m_queueTimer = null;
+    
+    /**
+     * The jobs submitted to the pool and not yet waited for by
+     * {@link #waitThreads}
+     */
+    private List<Task> m_pending = new LinkedList<Task>();
+    
     /**
      * Set the maximum of threads of the manager
      * @param max Value of the maximum
      */
     private void setThreadMax(int max)
     {
+        if (max < 1)
+            max = 1;
         this.threadMax = max;
     }
     
@@ -74,6 +138,49 @@ public class ResourceManager<K,V> {
         return this.threadMax;
     }
     
+    /**
+     * Tells whether the Java runtime provides virtual threads
+     * @return true if virtual threads can be used
+     */
+    public static boolean virtualThreadsAvailable()
+    {
+        return VIRTUAL_EXECUTOR != null;
+    }
+    
+    /**
+     * Sets whether the jobs submitted to the manager run on virtual
+     * threads, one per job, instead of on the pool of workers. This is
+     * ignored if the Java runtime has no virtual threads (see
+     * {@link #virtualThreadsAvailable}). The change applies to the jobs
+     * submitted after the next call to {@link #shutdown}, or to all of
+     * them if no job has been submitted yet.
+     * @param b Set to true to use virtual threads
+     */
+    public synchronized void setVirtualThreads(boolean b)
+    {
+        m_virtual = b;
+    }
+    
+    /**
+     * Tells whether the jobs submitted to the manager run on virtual
+     * threads
+     * @return true if they do
+     */
+    public synchronized boolean isVirtualThreads()
+    {
+        return m_virtual && virtualThreadsAvailable();
+    }
+    
+    /**
+     * Sets the timer that records how long each job submitted from now
+     * on waits before a worker starts it
+     * @param t The timer, or null to stop recording
+     */
+    public synchronized void setQueueTimer(Metrics.Timer t)
+    {
+        m_queueTimer = t;
+    }
+    
     /**
      * Create an instance of ResourceManager with the default value of 
      * threads maximum
@@ -93,138 +200,569 @@ public class ResourceManager<K,V> {
     }
     
     /**
-     * Function that create a mapper thread and return it to the calling line
+     * Submits a job to the pool of workers. The call returns immediately;
+     * the job will be run by the first idle worker.
+     * @param job The job to run
+     */
+    public void execute(Runnable job)
+    {
+        submit(job);
+    }
+    
+    /**
+     * Submits a job to the pool of workers, like {@link #execute}, and
+     * returns the task that tracks it
+     * @param job The job to run
+     * @return The task
+     */
+    public Task submit(Runnable job)
+    {
+        synchronized (this)
+        {
+            if (m_queueTimer != null)
+                job = new TimedJob(job, m_queueTimer);
+            Task task = new Task(job);
+            task.m_future = getPool().submit(task);
+            m_pending.add(task);
+            return task;
+        }
+    }
+    
+    /**
+     * Submits the processing of a tuple by a mapper to the pool of workers
      * @param t The tuple to analyse
      * @param temp_coll The collector of all results
      * @param m_mapper The {@link Mapper} to use in the map phase
-     * @return 
      */
-    public Thread getThread(Tuple<K,V> t, Collector<K,V> temp_coll, Mapper<K,V> m_mapper)
+    public void execute(Tuple<K,V> t, Collector<K,V> temp_coll, Mapper<K,V> m_mapper)
     {
-        int i=0;
-        boolean create = false;
-        MapThread<K,V> MThread = null;
-        Thread ThreadTemp = null;
-        
-        if(listThread.size() < threadMax)
-        {
-            MThread = new MapThread<K,V>(t,temp_coll,m_mapper);
-            listThread.add(MThread);
-        }
-        else
+        execute(new MapThread<K,V>(t, temp_coll, m_mapper));
+    }
+    
+    /**
+     * Submits the processing of a chunk of tuples by a mapper to the pool
+     * of workers. The tuples of the chunk are mapped one after the other
+     * by the same worker.
+     * @param tuples The chunk of tuples to analyse
+     * @param temp_coll The collector of all results
+     * @param m_mapper The {@link Mapper} to use in the map phase
+     */
+    public void execute(List<Tuple<K,V>> tuples, OutCollector<K,V> temp_coll, Mapper<K,V> m_mapper)
+    {
+        execute(new MapThread<K,V>(tuples, temp_coll, m_mapper));
+    }
+    
+    /**
+     * Submits the processing of a chunk of tuples by a mapper to the pool
+     * of workers, and runs a callback once the chunk is mapped, whether
+     * the mapper succeeded or not
+     * @param tuples The chunk of tuples to analyse
+     * @param temp_coll The collector of all results
+     * @param m_mapper The {@link Mapper} to use in the map phase
+     * @param done The callback
+     */
+    public void execute(List<Tuple<K,V>> tuples, OutCollector<K,V> temp_coll, Mapper<K,V> m_mapper, final Runnable done)
+    {
+        final MapThread<K,V> job = new MapThread<K,V>(tuples, temp_coll, m_mapper);
+        execute(new Runnable()
         {
-            while(create !=true)
+            @Override
+            public void run()
             {
-                while(i< listThread.size())
+                try
+                {
+                    job.run();
+                }
+                finally
                 {
-                    ThreadTemp = listThread.get(i);
-                
-                    if(!ThreadTemp.isAlive())
-                    {
-                        listThread.remove(i);
-                        MThread = new MapThread<K,V>(t,temp_coll,m_mapper);
-                        listThread.add(MThread);
-                        create = true;
-                        i = listThread.size();
-                    }
-                    else
-                        i++;
+                    done.run();
                 }
-                i=0;
             }
-        }
-        return MThread;
+        });
+    }
+    
+    /**
+     * Submits the processing of a key by a reducer to the pool of workers
+     * @param out The collector of the final results
+     * @param key The key to reduce
+     * @param s_source The collector of all results of the mapper phase
+     * @param m_reducer The {@link Reducer} to use in the reduce phase
+     */
+    public void execute(OutCollector<K,V> out, K key, InCollector<K,V> s_source, Reducer<K,V> m_reducer)
+    {
+        execute(new ReduceThread<K,V>(out, key, s_source, m_reducer));
+    }
+    
+    /**
+     * Submits the processing of a part of the input of a key by a
+     * splittable reducer to the pool of workers
+     * @param out The collector of the partial results
+     * @param key The key to reduce
+     * @param part The part of the input of the key
+     * @param m_reducer The {@link SplittableReducer} to use
+     */
+    public void executePart(OutCollector<K,V> out, K key, InCollector<K,V> part, SplittableReducer<K,V> m_reducer)
+    {
+        execute(new SplitReduceThread<K,V>(out, key, part, m_reducer, false));
+    }
+    
+    /**
+     * Submits the merge of the partial results of a key by a splittable
+     * reducer to the pool of workers
+     * @param out The collector of the final results
+     * @param key The key to reduce
+     * @param parts The partial results of all the parts of the key
+     * @param m_reducer The {@link SplittableReducer} to use
+     */
+    public void executeMerge(OutCollector<K,V> out, K key, InCollector<K,V> parts, SplittableReducer<K,V> m_reducer)
+    {
+        execute(new SplitReduceThread<K,V>(out, key, parts, m_reducer, true));
+    }
+    
+    /**
+     * Function that create a mapper thread and return it to the calling line.
+     * If the maximum of threads has been hit, the call blocks until the
+     * oldest thread is dead.
+     * @param t The tuple to analyse
+     * @param temp_coll The collector of all results
+     * @param m_mapper The {@link Mapper} to use in the map phase
+     * @return 
+     * @deprecated Use {@link #execute}, which does not create a thread
+     * for each tuple
+     */
+    @Deprecated
+    public Thread getThread(Tuple<K,V> t, Collector<K,V> temp_coll, Mapper<K,V> m_mapper)
+    {
+        return newThread(new MapThread<K,V>(t, temp_coll, m_mapper));
     }
     
     /**
-     * Function that create a reducer thread and return it to the calling line
+     * Function that create a reducer thread and return it to the calling line.
+     * If the maximum of threads has been hit, the call blocks until the
+     * oldest thread is dead.
      * @param out The collector of the final results
      * @param key The key to reduce
      * @param s_source The collector of all results of the mapper phase
      * @param m_reducer The {@link Reducer} to use in the reduce phase
      * @return 
+     * @deprecated Use {@link #execute}, which does not create a thread
+     * for each key
      */
+    @Deprecated
     public Thread getThread(Collector<K,V> out,  K key, Collector<K,V> s_source, Reducer<K,V> m_reducer)
     {
-        int i=0;
-        boolean create = false;
-        ReduceThread<K,V> RThread = null;
-        Thread ThreadTemp = null;
+        return newThread(new ReduceThread<K,V>(out, key, s_source, m_reducer));
+    }
+    
+    /**
+     * Function that waits until all of the jobs submitted to the manager
+     * are over, and clear the list of jobs. If a job ended with an
+     * exception, this exception is thrown back to the calling line once
+     * all the other jobs are over. The jobs that were cancelled are not
+     * waited for.
+     */
+    public void waitThreads()
+    {
+        RuntimeException failure = null;
+        while (true)
+        {
+            Task task = null;
+            synchronized (this)
+            {
+                if (m_pending.isEmpty())
+                    break;
+                task = m_pending.remove(0);
+            }
+            try
+            {
+                getUninterruptibly(task.m_future);
+            }
+            catch (CancellationException e)
+            {
+                // The caller no longer needs the job
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null)
+                    failure = new RuntimeException(e.getCause());
+            }
+        }
+        while (!listThread.isEmpty())
+        {
+            joinUninterruptibly(listThread.remove(0));
+        }
+        if (failure != null)
+            throw failure;
+    }
+    
+    /**
+     * Stops the workers of the manager once they have finished the jobs
+     * already submitted. The manager can still be used afterwards; new
+     * workers are then started with the next submitted job.
+     */
+    public void shutdown()
+    {
+        synchronized (this)
+        {
+            if (m_pool != null)
+                m_pool.shutdown();
+            m_pool = null;
+        }
+    }
+    
+    /**
+     * Returns the pool of workers of the manager, creating it if needed
+     * @return The pool
+     */
+    private ExecutorService getPool()
+    {
+        if (m_pool == null && isVirtualThreads())
+            m_pool = newVirtualExecutor();
+        if (m_pool == null)
+        {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threadMax, threadMax, KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new WorkerFactory());
+            pool.allowCoreThreadTimeOut(true);
+            m_pool = pool;
+        }
+        return m_pool;
+    }
+    
+    /**
+     * Creates an executor that starts a virtual thread for each job
+     * @return The executor, or null if it cannot be created
+     */
+    private static ExecutorService newVirtualExecutor()
+    {
+        try
+        {
+            return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Looks up the method that creates an executor of virtual threads
+     * @return The method, or null if the runtime has no virtual threads
+     */
+    private static Method findVirtualExecutor()
+    {
+        try
+        {
+            return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+        catch (SecurityException e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Creates a thread for a job, waiting for the oldest thread of the list
+     * to die if the maximum of threads has been hit
+     * @param job The job the thread will run
+     * @return The thread, not yet started
+     */
+    private Thread newThread(Runnable job)
+    {
+        if (listThread.size() >= threadMax)
+            joinUninterruptibly(listThread.remove(0));
+        Thread thread = new Thread(job);
+        listThread.add(thread);
+        return thread;
+    }
+    
+    /**
+     * Waits for a job to finish, even if the calling thread is interrupted
+     * in the meantime. The interruption is restored before returning.
+     * @param job The job to wait for
+     * @throws ExecutionException If the job ended with an exception
+     */
+    private static void getUninterruptibly(Future<?> job) throws ExecutionException
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                job.get();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * Waits for a thread to die, even if the calling thread is interrupted
+     * in the meantime. The interruption is restored before returning.
+     * @param thread The thread to wait for
+     */
+    private static void joinUninterruptibly(Thread thread)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                thread.join();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * Creates the workers of the pool. The workers are daemon threads, so
+     * that a manager that was not shut down does not prevent the program
+     * from exiting.
+     */
+    private static class WorkerFactory implements ThreadFactory
+    {
+        private static final AtomicInteger s_poolNumber = new AtomicInteger(1);
+        private final AtomicInteger m_threadNumber = new AtomicInteger(1);
+        private final String m_prefix = "mapreduce-" + s_poolNumber.getAndIncrement() + "-worker-";
         
-        if(listThread.size() < threadMax)
+        public Thread newThread(Runnable r)
         {
-           RThread = new ReduceThread<K,V>(out, key, s_source, m_reducer);
-           listThread.add(RThread);
+            Thread t = new Thread(r, m_prefix + m_threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
         }
-        else
+    }
+    
+    /**
+     * A job submitted to the manager. The task records the times at which
+     * the job started and ended (as given by {@link System#nanoTime}), and
+     * how it ended.
+     */
+    public static class Task implements Runnable
+    {
+        /**
+         * The states of a task
+         */
+        public static enum State {QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED};
+        
+        private final Runnable m_job;
+        private Future<?> m_future = null;
+        private State m_state = State.QUEUED;
+        private long m_start = 0;
+        private long m_end = 0;
+        
+        Task(Runnable job)
+        {
+            super();
+            m_job = job;
+        }
+        
+        @Override
+        public void run()
         {
-            while(create !=true)
+            synchronized (this)
             {
-                while(i< listThread.size())
+                if (m_state != State.QUEUED)
+                    return;
+                m_state = State.RUNNING;
+                m_start = System.nanoTime();
+            }
+            State outcome = State.FAILED;
+            try
+            {
+                m_job.run();
+                outcome = State.SUCCEEDED;
+            }
+            finally
+            {
+                synchronized (this)
                 {
-                    ThreadTemp = listThread.get(i);
-
-                    if(!ThreadTemp.isAlive())
-                    {
-                        listThread.remove(i);
-                        RThread = new ReduceThread<K,V>(out, key, s_source, m_reducer);
-                        listThread.add(RThread);
-                        create = true;
-                        i = listThread.size();
-                    }
-                    else
-                        i++;
+                    m_end = System.nanoTime();
+                    if (m_state == State.RUNNING)
+                        m_state = outcome;
                 }
-                i=0;
             }
         }
-        return RThread;
+        
+        /**
+         * Returns the state of the task
+         * @return The state
+         */
+        public synchronized State getState()
+        {
+            return m_state;
+        }
+        
+        /**
+         * Tells whether the job is over, or will not run
+         * @return true if the task has succeeded, failed or been cancelled
+         */
+        public synchronized boolean isDone()
+        {
+            return m_state != State.QUEUED && m_state != State.RUNNING;
+        }
+        
+        /**
+         * Returns the time at which the job started
+         * @return The time, or 0 if the job has not started
+         */
+        public synchronized long getStartTime()
+        {
+            return m_start;
+        }
+        
+        /**
+         * Returns the time at which the job ended
+         * @return The time, or 0 if the job has not ended
+         */
+        public synchronized long getEndTime()
+        {
+            return m_end;
+        }
+        
+        /**
+         * Returns how long the job has been running
+         * @param now The current time
+         * @return The time between the start of the job and its end, or
+         * now if it is still running; 0 if it has not started
+         */
+        public synchronized long getRunningTime(long now)
+        {
+            if (m_start == 0)
+                return 0;
+            if (m_end == 0)
+                return now - m_start;
+            return m_end - m_start;
+        }
+        
+        /**
+         * Waits for the job to be over, for at most a given time
+         * @param timeout The maximum time to wait, in nanoseconds
+         * @return true if the task is done
+         */
+        public boolean await(long timeout)
+        {
+            try
+            {
+                m_future.get(timeout, TimeUnit.NANOSECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e)
+            {
+                // Thrown back by waitThreads
+            }
+            catch (CancellationException e)
+            {
+                // Nothing to wait for
+            }
+            catch (TimeoutException e)
+            {
+                // Not over yet
+            }
+            return isDone();
+        }
+        
+        /**
+         * Cancels the task, if its job has not started yet: the job will
+         * not run, and the task is no longer waited for by
+         * {@link #waitThreads}. A job that is already running cannot be
+         * cancelled this way, since most jobs never check whether they are
+         * interrupted; it must be told to stop by other means, and is
+         * waited for as usual.
+         * @return true if the task was cancelled
+         */
+        public boolean cancel()
+        {
+            synchronized (this)
+            {
+                if (m_state != State.QUEUED)
+                    return false;
+                m_state = State.CANCELLED;
+            }
+            m_future.cancel(false);
+            return true;
+        }
     }
     
     /**
-     * Function who check if all threads of the list are dead and clear the list
+     * Job that records how long it waited before it started
      */
-    public void waitThreads()
+    private static class TimedJob implements Runnable
     {
-        int i=0;
-        Thread ThreadTemp = null;
-        while(i < listThread.size())
+        private final Runnable m_job;
+        private final Metrics.Timer m_timer;
+        private final long m_submitted;
+        
+        TimedJob(Runnable job, Metrics.Timer timer)
         {
-            ThreadTemp = listThread.get(i);
-                
-            if(ThreadTemp.isAlive())
-                i = 0;    
-            else
-                i++;
+            super();
+            m_job = job;
+            m_timer = timer;
+            m_submitted = timer.start();
+        }
+        
+        @Override
+        public void run()
+        {
+            m_timer.stop(m_submitted);
+            m_job.run();
         }
-        listThread.clear();
     }
 }
 
 /**
  * Class who encapsulates the processing of a mapper and his informations 
- * in a thread
+ * in a job that can be run by a thread. The job maps a chunk of tuples,
+ * one after the other.
  * @author Maxime Soucy-Boivin
  */
-class MapThread<K,V> extends Thread 
+class MapThread<K,V> implements Runnable 
 {
     /**
      * Informations needed to be transferred to the mapper
-     * For more information, see function getThread
+     * For more information, see function execute
      */
-    Tuple<K,V> tThread = new Tuple<K,V>();
-    Collector<K,V> Thread_Temp_col = new Collector<K,V>();
+    List<Tuple<K,V>> tThread = null;
+    OutCollector<K,V> Thread_Temp_col = null;
     Mapper<K,V> Thread_m_mapper = null;
     
     /**
-     * Create an instance of MapThread
+     * Create an instance of MapThread for a single tuple
      * @param t The tuple to analyse
      * @param temp_coll The collector of all results
      * @param m_mapper The {@link Mapper} to use in the map phase
      */
-    MapThread(Tuple<K,V> t, Collector<K,V> temp_coll, Mapper<K,V> m_mapper) 
+    MapThread(Tuple<K,V> t, OutCollector<K,V> temp_coll, Mapper<K,V> m_mapper) 
+    {
+        this(Collections.singletonList(t), temp_coll, m_mapper);
+    }
+    
+    /**
+     * Create an instance of MapThread for a chunk of tuples
+     * @param tuples The tuples to analyse
+     * @param temp_coll The collector of all results
+     * @param m_mapper The {@link Mapper} to use in the map phase
+     */
+    MapThread(List<Tuple<K,V>> tuples, OutCollector<K,V> temp_coll, Mapper<K,V> m_mapper) 
     {
-        this.tThread = t;
+        this.tThread = tuples;
         this.Thread_Temp_col = temp_coll;
         this.Thread_m_mapper = m_mapper;
     }
@@ -234,24 +772,28 @@ class MapThread<K,V> extends Thread
      */
     public void run() 
     {
-        Thread_m_mapper.map(Thread_Temp_col, tThread);
+        for (Tuple<K,V> t : tThread)
+            Thread_m_mapper.map(Thread_Temp_col, t);
+        // Let the shuffle combine the output of this mapper, if needed
+        if (Thread_Temp_col instanceof ShuffleCollector<?,?>)
+            ((ShuffleCollector<?,?>) Thread_Temp_col).flush();
     }
 }
 
 /**
  * Class who encapsulates the processing of a reducer and his informations
- * in a thread
+ * in a job that can be run by a thread
  * @author Maxime Soucy-Boivin
  */
-class ReduceThread<K,V> extends Thread 
+class ReduceThread<K,V> implements Runnable 
 {
     /**
      * Informations needed to be transferred to the reducer
-     * For more information, see function getThread
+     * For more information, see function execute
      */
-    Collector<K,V> outThread = new Collector<K,V>();
+    OutCollector<K,V> outThread = null;
     K Thread_key = null;
-    Collector<K,V> Thread_s_source = new Collector<K,V>();
+    InCollector<K,V> Thread_s_source = null;
     Reducer<K,V> Thread_m_reducer = null;
            
     /**
@@ -261,7 +803,7 @@ class ReduceThread<K,V> extends Thread
      * @param s_source The collector of all results of the mapper phase
      * @param m_reducer The {@link Reducer} to use in the reduce phase
      */
-    ReduceThread(Collector<K,V> out, K key, Collector<K,V> s_source, Reducer<K,V> m_reducer) 
+    ReduceThread(OutCollector<K,V> out, K key, InCollector<K,V> s_source, Reducer<K,V> m_reducer) 
     {
         this.outThread = out;
         this.Thread_key = key;
@@ -276,4 +818,43 @@ class ReduceThread<K,V> extends Thread
     {
         Thread_m_reducer.reduce(outThread, Thread_key, Thread_s_source);
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Job of a {@link SplittableReducer}: either reduces a part of the
+ * input of a key, or merges the partial results of all the parts
+ */
+class SplitReduceThread<K,V> implements Runnable
+{
+    private final OutCollector<K,V> m_out;
+    private final K m_key;
+    private final InCollector<K,V> m_in;
+    private final SplittableReducer<K,V> m_reducer;
+    private final boolean m_merge;
+    
+    /**
+     * Create an instance of SplitReduceThread
+     * @param out The collector of the results
+     * @param key The key to reduce
+     * @param in The part of the input of the key, or the partial results
+     * to merge
+     * @param reducer The {@link SplittableReducer} to use
+     * @param merge Set to true to merge partial results
+     */
+    SplitReduceThread(OutCollector<K,V> out, K key, InCollector<K,V> in, SplittableReducer<K,V> reducer, boolean merge)
+    {
+        m_out = out;
+        m_key = key;
+        m_in = in;
+        m_reducer = reducer;
+        m_merge = merge;
+    }
+    
+    public void run()
+    {
+        if (m_merge)
+            m_reducer.merge(m_out, m_key, m_in);
+        else
+            m_reducer.reducePart(m_out, m_key, m_in);
+    }
+}
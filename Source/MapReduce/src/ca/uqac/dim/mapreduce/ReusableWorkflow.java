@@ -0,0 +1,56 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+/**
+ * Workflow that can be run several times, on a different source each
+ * time, without being created again. The statistics of a reusable
+ * workflow (see {@link #getMaxTuples} and {@link #getTotalTuples}) are
+ * those of its last run.
+ */
+public interface ReusableWorkflow<K,V> extends Workflow<K,V>
+{
+	/**
+	 * Sets the input source of the next runs
+	 * @param c The {@link InCollector} to use as the input source of
+	 * tuples
+	 */
+	public void setSource(InCollector<K,V> c);
+	
+	/**
+	 * Sets the collector in which the next run writes its output. The
+	 * collector is emptied before the run; it must not be the source
+	 * of the run. By default, a new collector is created for each run.
+	 * @param c The collector, or null to create a new one
+	 */
+	public void setOutput(Collector<K,V> c);
+	
+	/**
+	 * Returns the maximum number of tuples processed by a single
+	 * reducer in the last run
+	 * @return The number of tuples
+	 */
+	public long getMaxTuples();
+	
+	/**
+	 * Returns the total number of tuples processed by all reducers in
+	 * the last run
+	 * @return The number of tuples
+	 */
+	public long getTotalTuples();
+}
@@ -17,13 +17,14 @@
  */
 package ca.uqac.dim.mapreduce;
 
+import java.io.File;
 import java.util.*;
 
 /**
  * Coordinates the execution of a map-reduce job in a single
  * thread. This means that the data source is fed tuple by tuple
- * to the mapper, the output tuples are collected, split
- * according to their keys, and  each list is 
+ * to the mapper, the output tuples are collected and grouped
+ * according to their keys (see {@link ShuffleCollector}), and  each list is 
  * sent to the reducer, again in a sequential fashion. As such,
  * the SequentialWorkflow reproduces exactly the processing
  * done by map-reduce, without the distribution of computation. It is
@@ -32,11 +33,19 @@ import java.util.*;
  * @version 1.1
  *
  */
-public class SequentialWorkflow<K,V> implements Workflow<K,V>
+public class SequentialWorkflow<K,V> implements ReusableWorkflow<K,V>
 {
 	private Mapper<K,V> m_mapper = null;
 	private Reducer<K,V> m_reducer = null;
 	private InCollector<K,V> m_source = null;
+	private Collector<K,V> m_output = null;
+	private Combiner<K,V> m_combiner = null;
+	private Comparator<? super V> m_comparator = null;
+	private int m_spillBudget = 0;
+	private TupleSerializer<K,V> m_serializer = null;
+	private File m_spillDirectory = null;
+	private CollectorFactory m_factory = Collector.getDefaultFactory();
+	private Metrics m_metrics = Metrics.getGlobal();
 	
 	/**
 	 * The total number of tuples that the mappers will produce.
@@ -85,6 +94,86 @@ public class SequentialWorkflow<K,V> implements Workflow<K,V>
 		m_source = c;
 	}
 	
+	/**
+	 * Sets the collector in which the next runs write their output. It
+	 * is emptied at the start of each run. By default, a new collector
+	 * is created for each run.
+	 * @param c The collector, or null to create a new one
+	 */
+	public void setOutput(Collector<K,V> c)
+	{
+		m_output = c;
+	}
+	
+	/**
+	 * Sets the combiner to run on the output of each mapper before the
+	 * shuffle. By default, no combiner is used.
+	 * @param c The {@link Combiner} to use, or null for none
+	 */
+	public void setCombiner(Combiner<K,V> c)
+	{
+		m_combiner = c;
+	}
+	
+	/**
+	 * Sets the order in which each reducer receives the values of its
+	 * key (see {@link SortingShuffleCollector}). The shuffle
+	 * is then kept in memory, even if a spill budget is set. By default,
+	 * the values are not sorted.
+	 * @param c The order of the values, or null not to sort them
+	 */
+	public void setValueComparator(Comparator<? super V> c)
+	{
+		m_comparator = c;
+	}
+	
+	/**
+	 * Sets the maximum number of tuples the shuffle keeps in memory.
+	 * Past this budget, the output of the mappers is spilled to
+	 * temporary files, and read back from them by the reducers (see
+	 * {@link SpillingShuffleCollector}). By default, the whole output
+	 * of the mappers is kept in memory.
+	 * @param budget The maximum number of tuples kept in memory, or 0
+	 * to keep everything in memory
+	 * @param s The {@link TupleSerializer} used to write the tuples to disk
+	 */
+	public void setSpill(int budget, TupleSerializer<K,V> s)
+	{
+		m_spillBudget = budget;
+		m_serializer = s;
+	}
+	
+	/**
+	 * Sets the directory where the shuffle is spilled
+	 * @param directory The directory, or null for the default temporary
+	 * directory
+	 */
+	public void setSpillDirectory(File directory)
+	{
+		m_spillDirectory = directory;
+	}
+	
+	/**
+	 * Sets the registry in which the workflow records its metrics. By
+	 * default, the global registry is used (see {@link Metrics}).
+	 * @param m The registry
+	 */
+	public void setMetrics(Metrics m)
+	{
+		m_metrics = m;
+	}
+	
+	/**
+	 * Sets the factory that creates the storage of the collectors of
+	 * the job (the groups of the shuffle and the output). By default,
+	 * the default factory of {@link Collector} is used.
+	 * @param f The factory
+	 */
+	public void setCollectorFactory(CollectorFactory f)
+	{
+		m_factory = f;
+	}
+	
 	public InCollector<K,V> run()
 	{
 		if (m_mapper == null || m_reducer == null || m_source == null)
@@ -92,24 +181,60 @@ public class SequentialWorkflow<K,V> implements Workflow<K,V>
 		assert m_mapper != null;
 		assert m_reducer != null;
 		assert m_source != null;
-		Collector<K,V> temp_coll = new Collector<K,V>();
+		m_maxTuples = 0;
+		m_totalTuples = 0;
+		ShuffleCollector<K,V> temp_coll = null;
+		if (m_comparator != null)
+			temp_coll = new SortingShuffleCollector<K,V>(m_combiner, m_comparator);
+		else if (m_spillBudget > 0 && m_serializer != null)
+			temp_coll = new SpillingShuffleCollector<K,V>(m_combiner, m_spillBudget, m_serializer, m_spillDirectory);
+		else
+			temp_coll = new ShuffleCollector<K,V>(m_combiner);
+		temp_coll.setCollectorFactory(m_factory);
+		Metrics.Timer map_timer = m_metrics.timer("map.time");
+		long start = map_timer.start();
+		long num_source = 0;
 		m_source.rewind();
 		while (m_source.hasNext())
 		{
 			Tuple<K,V> t = m_source.next();
 			m_mapper.map(temp_coll, t);
+			num_source++;
 		}
-		Map<K,Collector<K,V>> shuffle = temp_coll.subCollectors();
+		temp_coll.flush();
+		map_timer.stop(start);
+		m_metrics.counter("map.tuples.in").add(num_source);
+		Metrics.Timer shuffle_timer = m_metrics.timer("shuffle.time");
+		start = shuffle_timer.start();
+		Map<K,? extends InCollector<K,V>> shuffle = temp_coll.getReducerInputs();
+		shuffle_timer.stop(start);
+		Metrics.Timer reduce_timer = m_metrics.timer("reduce.time");
+		start = reduce_timer.start();
+		Metrics.Histogram reduce_input = m_metrics.histogram("reduce.input");
 		Set<K> keys = shuffle.keySet();
-		Collector<K,V> out = new Collector<K,V>();
+		Collector<K,V> out = m_output;
+		if (out == null)
+			out = new Collector<K,V>(m_factory);
+		else
+			out.clear();
+		long reduce_tuples = 0;
 		for (K key : keys)
 		{
-			Collector<K,V> s_source = shuffle.get(key);
+			InCollector<K,V> s_source = shuffle.get(key);
 			int num_tuples = s_source.count();
-			m_totalTuples += num_tuples;
+			reduce_tuples += num_tuples;
+			reduce_input.record(num_tuples);
 			m_maxTuples = Math.max(m_maxTuples, num_tuples);
 			m_reducer.reduce(out, key, s_source);
 		}
+		m_totalTuples += reduce_tuples;
+		reduce_timer.stop(start);
+		m_metrics.counter("reduce.tuples.in").add(reduce_tuples);
+		m_metrics.counter("reduce.keys").add(keys.size());
+		m_metrics.counter("reduce.tuples.out").add(out.count());
+		if (temp_coll instanceof SpillingShuffleCollector<?,?>)
+			m_metrics.counter("shuffle.spill.bytes").add(((SpillingShuffleCollector<K,V>) temp_coll).getSpilledBytes());
+		temp_coll.dispose();
 		return out;
 	}
 	
@@ -117,7 +242,7 @@ public class SequentialWorkflow<K,V> implements Workflow<K,V>
 	 * Returns the maximum number of tuples processed by a single
 	 * reducer in the process. This method returns 0 if the MapReduce
 	 * job hasn't executed yet (i.e. you should call it only after
-	 * a call to {@link run}).
+	 * a call to {@link #run}).
 	 * @return
 	 */
 	public long getMaxTuples()
@@ -129,7 +254,7 @@ public class SequentialWorkflow<K,V> implements Workflow<K,V>
 	 * Returns the total number of tuples processed by all reducers.
 	 * This method returns 0 if the MapReduce
 	 * job hasn't executed yet (i.e. you should call it only after
-	 * a call to {@link run}).
+	 * a call to {@link #run}).
 	 * @return
 	 */
 	public long getTotalTuples()
@@ -0,0 +1,362 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Output of the map phase that performs the shuffle as the tuples are
+ * collected. Each tuple is appended to the buffer of its key as soon
+ * as the mapper emits it, so that the map output is already grouped by
+ * key when the map phase ends, and no separate pass over all the
+ * tuples (such as {@link Collector#subCollectors}) is needed before the
+ * reduce phase.
+ * <p>
+ * The ShuffleCollector can be written to by many mappers at the same
+ * time without them waiting on each other: each thread that collects
+ * tuples groups them in its own table of per-key buffers. The tables of
+ * all the workers are merged into one Collector per key by
+ * {@link #subCollectors}, once the map phase is over. The tuples with the
+ * same key collected by the same worker keep their order.
+ * <p>
+ * A mapper calls {@link #flush} once it has processed its input: the
+ * table of the current thread is then published (see {@link #publish}),
+ * after running the {@link Combiner} on each of its keys if one is given.
+ */
+public class ShuffleCollector<K,V> implements OutCollector<K,V>
+{
+	/**
+	 * The tables of per-key buffers filled by the workers, and not yet
+	 * published
+	 */
+	private List<Table<K,V>> m_tables = new ArrayList<Table<K,V>>();
+	
+	/**
+	 * The tables of per-key buffers published so far
+	 */
+	private List<Map<K,List<Tuple<K,V>>>> m_published = new ArrayList<Map<K,List<Tuple<K,V>>>>();
+	
+	/**
+	 * The table of per-key buffers of the current thread
+	 */
+	private volatile ThreadLocal<Table<K,V>> m_localTable = newLocalTable();
+	
+	/**
+	 * The tuples collected by all the workers, grouped by key. This is
+	 * only computed by {@link #subCollectors}.
+	 */
+	private Map<K,Collector<K,V>> m_groups = null;
+	
+	/**
+	 * The combiner to run on the output of each mapper, if any
+	 */
+	private Combiner<K,V> m_combiner = null;
+	
+	/**
+	 * The number of tuples a thread can collect before its table is
+	 * flushed automatically
+	 */
+	private int m_flushThreshold = Integer.MAX_VALUE;
+	
+	/**
+	 * The factory that creates the storage of the collector of each
+	 * key, or null to use the default factory
+	 */
+	private CollectorFactory m_factory = null;
+	
+	/**
+	 * Create an instance of ShuffleCollector
+	 */
+	public ShuffleCollector()
+	{
+		super();
+	}
+	
+	/**
+	 * Create an instance of ShuffleCollector that combines the output
+	 * of each mapper
+	 * @param c The {@link Combiner} to use, or null for none
+	 */
+	public ShuffleCollector(Combiner<K,V> c)
+	{
+		this();
+		m_combiner = c;
+	}
+	
+	/**
+	 * Sets the factory that creates the storage of the collector of
+	 * each key. By default, the default factory of {@link Collector}
+	 * is used.
+	 * @param f The factory
+	 */
+	public void setCollectorFactory(CollectorFactory f)
+	{
+		m_factory = f;
+	}
+	
+	/**
+	 * Add a new tuple to the buffer of its key
+	 * @param t The {@link Tuple} to add
+	 */
+	@Override
+	public void collect(Tuple<K,V> t)
+	{
+		Table<K,V> table = m_localTable.get();
+		table.collect(t);
+		if (table.m_size >= m_flushThreshold)
+			flush();
+	}
+	
+	/**
+	 * Sets the number of tuples a thread can collect before its table is
+	 * flushed automatically, without waiting for the mapper to be over.
+	 * By default, tables are only flushed by the mappers.
+	 * @param threshold The number of tuples
+	 */
+	protected void setFlushThreshold(int threshold)
+	{
+		m_flushThreshold = threshold;
+	}
+	
+	/**
+	 * Signals that the mapper running in the current thread is over.
+	 * The tuples collected by the current thread since its last flush are
+	 * combined, key by key, if the collector has a combiner, and then
+	 * published. The next tuples collected by this thread go to a new
+	 * table.
+	 */
+	public void flush()
+	{
+		Table<K,V> table = m_localTable.get();
+		m_localTable.remove();
+		synchronized (m_tables)
+		{
+			m_tables.remove(table);
+		}
+		Map<K,List<Tuple<K,V>>> buffers = table.m_buffers;
+		if (m_combiner != null)
+		{
+			Table<K,V> combined = new Table<K,V>();
+			for (Map.Entry<K,List<Tuple<K,V>>> entry : buffers.entrySet())
+			{
+				m_combiner.combine(combined, entry.getKey(), new Collector<K,V>(entry.getValue()));
+			}
+			buffers = combined.m_buffers;
+		}
+		publish(buffers);
+	}
+	
+	/**
+	 * Publishes the tables of all the workers that have not been flushed,
+	 * without combining them. This must only be called once all the
+	 * mappers are over.
+	 */
+	protected void flushAll()
+	{
+		List<Table<K,V>> tables = null;
+		synchronized (m_tables)
+		{
+			tables = new ArrayList<Table<K,V>>(m_tables);
+			m_tables.clear();
+			m_localTable = newLocalTable();
+		}
+		for (Table<K,V> table : tables)
+		{
+			publish(table.m_buffers);
+			// The old thread locals stay in the workers' maps until
+			// they are expunged: do not let them hold the tuples
+			table.detach();
+		}
+	}
+	
+	/**
+	 * Makes a table of per-key buffers available to the reduce phase.
+	 * By default, the table is kept until {@link #subCollectors} is called.
+	 * @param buffers The table of per-key buffers. It is not modified
+	 * afterwards by the caller.
+	 */
+	protected void publish(Map<K,List<Tuple<K,V>>> buffers)
+	{
+		synchronized (m_published)
+		{
+			m_published.add(buffers);
+		}
+	}
+	
+	/**
+	 * Returns the tuples collected by all the workers, grouped by key.
+	 * This must only be called once all the mappers are over; tuples
+	 * collected afterwards are ignored.
+	 * @return A map from keys to Collectors
+	 */
+	public Map<K,Collector<K,V>> subCollectors()
+	{
+		synchronized (m_published)
+		{
+			if (m_groups == null)
+			{
+				flushAll();
+				m_groups = new HashMap<K,Collector<K,V>>();
+				CollectorFactory factory = m_factory;
+				if (factory == null)
+					factory = Collector.getDefaultFactory();
+				Map<K,List<List<Tuple<K,V>>>> runs = new HashMap<K,List<List<Tuple<K,V>>>>();
+				for (Map<K,List<Tuple<K,V>>> buffers : m_published)
+				{
+					for (Map.Entry<K,List<Tuple<K,V>>> entry : buffers.entrySet())
+					{
+						List<List<Tuple<K,V>>> key_runs = runs.get(entry.getKey());
+						if (key_runs == null)
+						{
+							key_runs = new ArrayList<List<Tuple<K,V>>>();
+							runs.put(entry.getKey(), key_runs);
+						}
+						key_runs.add(entry.getValue());
+					}
+				}
+				m_published.clear();
+				for (Map.Entry<K,List<List<Tuple<K,V>>>> entry : runs.entrySet())
+					m_groups.put(entry.getKey(), group(entry.getKey(), entry.getValue(), factory));
+			}
+			return m_groups;
+		}
+	}
+	
+	/**
+	 * Puts together the buffers published for a key. By default, the
+	 * buffers are appended one after the other, in the order in which
+	 * they were published.
+	 * @param key The key
+	 * @param runs The buffers published for the key
+	 * @param f The factory that creates the storage of the group
+	 * @return The Collector of the key
+	 */
+	protected Collector<K,V> group(K key, List<List<Tuple<K,V>>> runs, CollectorFactory f)
+	{
+		Collector<K,V> c = new Collector<K,V>(f);
+		for (List<Tuple<K,V>> run : runs)
+			c.addAll(run);
+		return c;
+	}
+	
+	/**
+	 * Returns the input of the reducer of each key. By default, this is
+	 * the Collector of each key returned by {@link #subCollectors}. This
+	 * must only be called once all the mappers are over.
+	 * @return A map from keys to the inputs of their reducers
+	 */
+	public Map<K,? extends InCollector<K,V>> getReducerInputs()
+	{
+		return subCollectors();
+	}
+	
+	/**
+	 * Releases the resources held by the collector. This is called once
+	 * the reducers are over; by default, it has no effect.
+	 */
+	public void dispose()
+	{
+		// Nothing to do
+	}
+	
+	/**
+	 * Count the number of tuples in the collector
+	 * @return The number of tuples
+	 */
+	public int count()
+	{
+		int total = 0;
+		for (Collector<K,V> c : subCollectors().values())
+			total += c.count();
+		return total;
+	}
+	
+	@Override
+	public void rewind()
+	{
+		// Nothing to do
+	}
+	
+	@Override
+	public String toString()
+	{
+		return subCollectors().toString();
+	}
+	
+	/**
+	 * Creates the thread local that gives each thread its own table
+	 * @return The thread local
+	 */
+	private ThreadLocal<Table<K,V>> newLocalTable()
+	{
+		return new ThreadLocal<Table<K,V>>()
+		{
+			@Override
+			protected Table<K,V> initialValue()
+			{
+				Table<K,V> table = new Table<K,V>();
+				synchronized (m_tables)
+				{
+					m_tables.add(table);
+				}
+				return table;
+			}
+		};
+	}
+	
+	/**
+	 * Table of per-key buffers, written to by a single thread
+	 */
+	private static class Table<K,V> implements OutCollector<K,V>
+	{
+		private Map<K,List<Tuple<K,V>>> m_buffers = new HashMap<K,List<Tuple<K,V>>>();
+		private int m_size = 0;
+		
+		@Override
+		public void collect(Tuple<K,V> t)
+		{
+			K key = t.getKey();
+			List<Tuple<K,V>> buffer = m_buffers.get(key);
+			if (buffer == null)
+			{
+				buffer = new ArrayList<Tuple<K,V>>();
+				m_buffers.put(key, buffer);
+			}
+			buffer.add(t);
+			m_size++;
+		}
+		
+		/**
+		 * Lets go of the buffers of the table, once they are published
+		 */
+		void detach()
+		{
+			m_buffers = new HashMap<K,List<Tuple<K,V>>>();
+			m_size = 0;
+		}
+		
+		@Override
+		public void rewind()
+		{
+			// Nothing to do
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Partitioner that only splits the input of the keys that are much
+ * larger than the others. Given <i>n</i> workers, the input of a key
+ * is split when it holds more than its share of the tuples (1/<i>n</i>
+ * of all the inputs), into as many parts of about that share as
+ * needed, and at most <i>n</i>. Small inputs are never split, since
+ * splitting has a cost of its own.
+ * <p>
+ * The input is split into contiguous ranges of tuples, which takes
+ * constant time when the input is a {@link Collector} (see
+ * {@link Collector#range}). A reducer that needs some tuples to be in
+ * the same part should be used with a partitioner that overrides
+ * {@link #split}.
+ */
+public class SkewPartitioner<K,V> implements Partitioner<K,V>
+{
+	/**
+	 * The default minimum number of tuples of an input that is split
+	 */
+	public static final int DEFAULT_MIN_SIZE = 4096;
+	
+	private int m_minSize;
+	
+	/**
+	 * Create an instance of SkewPartitioner
+	 */
+	public SkewPartitioner()
+	{
+		this(DEFAULT_MIN_SIZE);
+	}
+	
+	/**
+	 * Create an instance of SkewPartitioner
+	 * @param min_size The minimum number of tuples of an input that is
+	 * split
+	 */
+	public SkewPartitioner(int min_size)
+	{
+		super();
+		m_minSize = min_size;
+	}
+	
+	@Override
+	public int getPartitions(K key, int size, long total, int workers)
+	{
+		if (workers <= 1 || size < m_minSize)
+			return 1;
+		long share = Math.max(1, total / workers);
+		if (size <= share)
+			return 1;
+		return (int) Math.min(workers, (size + share - 1) / share);
+	}
+	
+	@Override
+	public List<InCollector<K,V>> split(K key, InCollector<K,V> in, int parts)
+	{
+		List<InCollector<K,V>> out = new ArrayList<InCollector<K,V>>(parts);
+		if (in instanceof Collector<?,?>)
+		{
+			Collector<K,V> c = (Collector<K,V>) in;
+			int size = c.count();
+			for (int i = 0; i < parts; i++)
+			{
+				int from = (int) ((long) size * i / parts);
+				int to = (int) ((long) size * (i + 1) / parts);
+				out.add(c.range(from, to));
+			}
+			return out;
+		}
+		// Deal the tuples among the parts
+		List<Collector<K,V>> collectors = new ArrayList<Collector<K,V>>(parts);
+		for (int i = 0; i < parts; i++)
+			collectors.add(new Collector<K,V>());
+		int i = 0;
+		in.rewind();
+		while (in.hasNext())
+		{
+			collectors.get(i).collect(in.next());
+			i = (i + 1) % parts;
+		}
+		out.addAll(collectors);
+		return out;
+	}
+}
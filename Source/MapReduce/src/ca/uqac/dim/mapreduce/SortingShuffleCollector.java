@@ -0,0 +1,152 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Shuffle that delivers the input of each reducer sorted by value
+ * ("secondary sort"). Each buffer published by a mapper is sorted by
+ * the mapper itself, before it is published; the sorted buffers
+ * ("runs") of a key are then merged, rather than sorted again, when the
+ * inputs of the reducers are put together. A reducer that processes its
+ * input in a single pass and relies on its order can hence be run on
+ * the output of parallel mappers.
+ * <p>
+ * Tuples whose values are equal for the comparator keep the order in
+ * which their mapper collected them, and the tuples of earlier runs
+ * come first.
+ */
+public class SortingShuffleCollector<K,V> extends ShuffleCollector<K,V>
+{
+	/**
+	 * The order of the tuples, by value
+	 */
+	private final Comparator<Tuple<K,V>> m_order;
+	
+	/**
+	 * Create an instance of SortingShuffleCollector
+	 * @param comparator The order of the values in the input of each
+	 * reducer
+	 */
+	public SortingShuffleCollector(Comparator<? super V> comparator)
+	{
+		this(null, comparator);
+	}
+	
+	/**
+	 * Create an instance of SortingShuffleCollector that combines the
+	 * output of each mapper
+	 * @param c The {@link Combiner} to use, or null for none
+	 * @param comparator The order of the values in the input of each
+	 * reducer
+	 */
+	public SortingShuffleCollector(Combiner<K,V> c, final Comparator<? super V> comparator)
+	{
+		super(c);
+		m_order = new Comparator<Tuple<K,V>>()
+		{
+			@Override
+			public int compare(Tuple<K,V> t1, Tuple<K,V> t2)
+			{
+				return comparator.compare(t1.getValue(), t2.getValue());
+			}
+		};
+	}
+	
+	/**
+	 * Sorts each buffer of the table before publishing it
+	 */
+	@Override
+	protected void publish(Map<K,List<Tuple<K,V>>> buffers)
+	{
+		for (List<Tuple<K,V>> buffer : buffers.values())
+			Collections.sort(buffer, m_order);
+		super.publish(buffers);
+	}
+	
+	/**
+	 * Merges the sorted runs of a key
+	 */
+	@Override
+	protected Collector<K,V> group(K key, List<List<Tuple<K,V>>> runs, CollectorFactory f)
+	{
+		if (runs.size() == 1)
+			return super.group(key, runs, f);
+		Collector<K,V> c = new Collector<K,V>(f);
+		PriorityQueue<Run> heads = new PriorityQueue<Run>(runs.size());
+		for (int i = 0; i < runs.size(); i++)
+		{
+			if (!runs.get(i).isEmpty())
+				heads.add(new Run(runs.get(i), i));
+		}
+		while (!heads.isEmpty())
+		{
+			Run r = heads.poll();
+			c.collect(r.m_head);
+			if (r.advance())
+				heads.add(r);
+		}
+		return c;
+	}
+	
+	/**
+	 * Position in a sorted run during the merge
+	 */
+	private class Run implements Comparable<Run>
+	{
+		private final List<Tuple<K,V>> m_tuples;
+		private final int m_index;
+		private int m_position = 0;
+		private Tuple<K,V> m_head;
+		
+		Run(List<Tuple<K,V>> tuples, int index)
+		{
+			super();
+			m_tuples = tuples;
+			m_index = index;
+			m_head = tuples.get(0);
+		}
+		
+		/**
+		 * Moves to the next tuple of the run
+		 * @return false if the run is over
+		 */
+		boolean advance()
+		{
+			m_position++;
+			if (m_position >= m_tuples.size())
+				return false;
+			m_head = m_tuples.get(m_position);
+			return true;
+		}
+		
+		@Override
+		public int compareTo(Run r)
+		{
+			int c = m_order.compare(m_head, r.m_head);
+			if (c != 0)
+				return c;
+			return m_index < r.m_index ? -1 : (m_index == r.m_index ? 0 : 1);
+		}
+	}
+}
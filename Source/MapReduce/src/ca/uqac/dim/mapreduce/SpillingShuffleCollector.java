@@ -0,0 +1,369 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Output of the map phase that keeps at most a given number of tuples
+ * in memory. The tables published by the mappers are kept in memory
+ * until the number of tuples they contain exceeds the budget; they are
+ * then written (spilled) to a temporary file, called a run, in which
+ * the tuples are grouped by key. The position of the group of each key
+ * in each run is kept in an index, so that the input of the reducer for
+ * a key can be read back from all the runs one after the other, without
+ * loading the whole output of the map phase in memory.
+ * <p>
+ * Tuples are written to the runs using a {@link TupleSerializer}. The
+ * runs are deleted by {@link #dispose}, which must be called once the
+ * reducers are over.
+ */
+public class SpillingShuffleCollector<K,V> extends ShuffleCollector<K,V>
+{
+	/**
+	 * The maximum number of tuples kept in memory
+	 */
+	private int m_budget;
+	
+	/**
+	 * The serializer used to write the tuples to the runs
+	 */
+	private TupleSerializer<K,V> m_serializer;
+	
+	/**
+	 * The directory where the runs are written
+	 */
+	private File m_directory;
+	
+	/**
+	 * The tuples kept in memory, grouped by key
+	 */
+	private Map<K,List<Tuple<K,V>>> m_buffers = new HashMap<K,List<Tuple<K,V>>>();
+	
+	/**
+	 * The number of tuples kept in memory
+	 */
+	private int m_buffered = 0;
+	
+	/**
+	 * The runs written so far
+	 */
+	private List<File> m_runs = new ArrayList<File>();
+	
+	/**
+	 * The number of bytes written to the runs
+	 */
+	private long m_spilledBytes = 0;
+	
+	/**
+	 * For each key, the location of its tuples in the runs
+	 */
+	private Map<K,List<Segment>> m_segments = new HashMap<K,List<Segment>>();
+	
+	/**
+	 * Create an instance of SpillingShuffleCollector
+	 * @param c The {@link Combiner} to use, or null for none
+	 * @param budget The maximum number of tuples kept in memory
+	 * @param s The {@link TupleSerializer} used to write the runs
+	 * @param directory The directory where the runs are written, or null
+	 * for the default temporary directory
+	 */
+	public SpillingShuffleCollector(Combiner<K,V> c, int budget, TupleSerializer<K,V> s, File directory)
+	{
+		super(c);
+		m_budget = Math.max(1, budget);
+		m_serializer = s;
+		m_directory = directory;
+		// Each worker publishes its table before it gets too large
+		setFlushThreshold(Math.max(1, m_budget / 4));
+	}
+	
+	@Override
+	protected void publish(Map<K,List<Tuple<K,V>>> buffers)
+	{
+		synchronized (m_buffers)
+		{
+			for (Map.Entry<K,List<Tuple<K,V>>> entry : buffers.entrySet())
+			{
+				List<Tuple<K,V>> buffer = m_buffers.get(entry.getKey());
+				if (buffer == null)
+				{
+					buffer = new ArrayList<Tuple<K,V>>();
+					m_buffers.put(entry.getKey(), buffer);
+				}
+				buffer.addAll(entry.getValue());
+				m_buffered += entry.getValue().size();
+			}
+			if (m_buffered > m_budget)
+				spill();
+		}
+	}
+	
+	/**
+	 * Returns the input of the reducer of each key. The tuples of a key
+	 * are read from the runs, in the order in which they were written,
+	 * followed by the tuples still in memory. This must only be called
+	 * once all the mappers are over.
+	 * @return A map from keys to the inputs of their reducers
+	 */
+	@Override
+	public Map<K,InCollector<K,V>> getReducerInputs()
+	{
+		flushAll();
+		Map<K,InCollector<K,V>> inputs = new HashMap<K,InCollector<K,V>>();
+		synchronized (m_buffers)
+		{
+			for (Map.Entry<K,List<Segment>> entry : m_segments.entrySet())
+			{
+				List<Tuple<K,V>> tail = m_buffers.get(entry.getKey());
+				inputs.put(entry.getKey(), new SpilledInput(entry.getValue(), tail));
+			}
+			for (Map.Entry<K,List<Tuple<K,V>>> entry : m_buffers.entrySet())
+			{
+				if (!inputs.containsKey(entry.getKey()))
+					inputs.put(entry.getKey(), new Collector<K,V>(entry.getValue()));
+			}
+		}
+		return inputs;
+	}
+	
+	/**
+	 * Returns the number of runs written so far
+	 * @return The number of runs
+	 */
+	public int getRunCount()
+	{
+		synchronized (m_buffers)
+		{
+			return m_runs.size();
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes written to disk so far
+	 * @return The number of bytes
+	 */
+	public long getSpilledBytes()
+	{
+		synchronized (m_buffers)
+		{
+			return m_spilledBytes;
+		}
+	}
+	
+	/**
+	 * Deletes the runs written to disk
+	 */
+	@Override
+	public void dispose()
+	{
+		synchronized (m_buffers)
+		{
+			for (File f : m_runs)
+				f.delete();
+			m_runs.clear();
+			m_segments.clear();
+			m_buffers.clear();
+			m_buffered = 0;
+		}
+	}
+	
+	/**
+	 * Writes the tuples kept in memory to a new run, and empties the
+	 * memory
+	 */
+	private void spill()
+	{
+		try
+		{
+			File f = File.createTempFile("shuffle", ".run", m_directory);
+			f.deleteOnExit();
+			m_runs.add(f);
+			FileOutputStream fos = new FileOutputStream(f);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			try
+			{
+				for (Map.Entry<K,List<Tuple<K,V>>> entry : m_buffers.entrySet())
+				{
+					out.flush();
+					long offset = fos.getChannel().position();
+					List<Tuple<K,V>> buffer = entry.getValue();
+					// Each segment is read on its own: it starts a new stream
+					TupleSerializer<K,V> serializer = m_serializer.newInstance();
+					for (Tuple<K,V> t : buffer)
+						serializer.write(out, t);
+					List<Segment> segments = m_segments.get(entry.getKey());
+					if (segments == null)
+					{
+						segments = new ArrayList<Segment>();
+						m_segments.put(entry.getKey(), segments);
+					}
+					segments.add(new Segment(f, offset, buffer.size()));
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			m_spilledBytes += f.length();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Cannot spill the shuffle to disk", e);
+		}
+		m_buffers.clear();
+		m_buffered = 0;
+	}
+	
+	/**
+	 * Location of the tuples of a key in a run
+	 */
+	private static class Segment
+	{
+		File m_file;
+		long m_offset;
+		int m_count;
+		
+		Segment(File f, long offset, int count)
+		{
+			m_file = f;
+			m_offset = offset;
+			m_count = count;
+		}
+	}
+	
+	/**
+	 * Input of a reducer, made of the segments of its key in the runs
+	 * and of the tuples of that key still in memory
+	 */
+	private class SpilledInput implements InCollector<K,V>
+	{
+		private List<Segment> m_keySegments;
+		private List<Tuple<K,V>> m_tail;
+		private int m_segmentIndex = 0;
+		private int m_left = 0;
+		private DataInputStream m_in = null;
+		private TupleSerializer<K,V> m_reader = null;
+		private int m_tailIndex = 0;
+		
+		SpilledInput(List<Segment> segments, List<Tuple<K,V>> tail)
+		{
+			m_keySegments = segments;
+			m_tail = tail;
+		}
+		
+		@Override
+		public int count()
+		{
+			int total = 0;
+			for (Segment s : m_keySegments)
+				total += s.m_count;
+			if (m_tail != null)
+				total += m_tail.size();
+			return total;
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while (m_left == 0 && m_segmentIndex < m_keySegments.size())
+				openSegment(m_keySegments.get(m_segmentIndex++));
+			if (m_left > 0)
+				return true;
+			closeSegment();
+			return m_tail != null && m_tailIndex < m_tail.size();
+		}
+		
+		@Override
+		public Tuple<K,V> next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			if (m_left == 0)
+				return m_tail.get(m_tailIndex++);
+			m_left--;
+			try
+			{
+				return m_reader.read(m_in);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Cannot read the shuffle from disk", e);
+			}
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public void rewind()
+		{
+			closeSegment();
+			m_segmentIndex = 0;
+			m_left = 0;
+			m_tailIndex = 0;
+		}
+		
+		private void openSegment(Segment s)
+		{
+			closeSegment();
+			try
+			{
+				FileInputStream fis = new FileInputStream(s.m_file);
+				fis.getChannel().position(s.m_offset);
+				m_in = new DataInputStream(new BufferedInputStream(fis));
+				m_reader = m_serializer.newInstance();
+				m_left = s.m_count;
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Cannot read the shuffle from disk", e);
+			}
+		}
+		
+		private void closeSegment()
+		{
+			if (m_in == null)
+				return;
+			try
+			{
+				m_in.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing else to do with a file we have finished reading
+			}
+			m_in = null;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+/**
+ * Reducer whose input, for some keys, can be split into parts reduced
+ * separately. Each part is reduced by {@link #reducePart}, possibly by
+ * different workers at the same time; the tuples output for all the
+ * parts of a key are then given to {@link #merge}, which produces the
+ * final output for the key. A workflow only splits the input of a key
+ * when it is large (see {@link Partitioner}); otherwise, it calls
+ * {@link #reduce} on the whole input, as with any reducer.
+ * <p>
+ * The output of merge must be the same as the output of reduce on the
+ * whole input, whatever the way the input is split by the
+ * {@link Partitioner} the reducer is used with.
+ */
+public interface SplittableReducer<K,V> extends Reducer<K,V>
+{
+	/**
+	 * Tells whether the input of a key can be split
+	 * @param key The key
+	 * @return true if the input of the key can be split
+	 */
+	public boolean isSplittable(K key);
+	
+	/**
+	 * Reduces a part of the input of a key
+	 * @param out A {@link OutCollector} for the partial results given
+	 * to {@link #merge}
+	 * @param key The key
+	 * @param in An {@link InCollector} containing a part of the tuples
+	 * generated in the map phase for the given key
+	 */
+	public void reducePart(OutCollector<K,V> out, K key, InCollector<K,V> in);
+	
+	/**
+	 * Merges the partial results of all the parts of the input of a key
+	 * @param out A {@link OutCollector} that will be used to write output tuples
+	 * @param key The key
+	 * @param parts An {@link InCollector} containing the tuples output
+	 * by {@link #reducePart} for all the parts of the input of the key
+	 */
+	public void merge(OutCollector<K,V> out, K key, InCollector<K,V> parts);
+}
@@ -0,0 +1,61 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Interface declaration of an object that writes tuples to a binary
+ * stream and reads them back. It is used when tuples have to leave the
+ * memory, for example when the shuffle spills them to disk (see
+ * {@link SpillingShuffleCollector}).
+ * <p>
+ * A serializer may keep some state from one tuple to the next in the
+ * same stream (for example, to write a number as its difference with
+ * the same number in the previous tuple). A serializer is hence used
+ * for a single stream, from its beginning, and by a single thread; a
+ * serializer for another stream is obtained with {@link #newInstance}.
+ */
+public interface TupleSerializer<K,V>
+{
+	/**
+	 * Writes a tuple to a stream
+	 * @param out The stream to write to
+	 * @param t The {@link Tuple} to write
+	 * @throws IOException If the tuple cannot be written
+	 */
+	public void write(DataOutput out, Tuple<K,V> t) throws IOException;
+	
+	/**
+	 * Reads a tuple from a stream
+	 * @param in The stream to read from
+	 * @return The {@link Tuple} read
+	 * @throws IOException If the tuple cannot be read
+	 */
+	public Tuple<K,V> read(DataInput in) throws IOException;
+	
+	/**
+	 * Returns a serializer with the same configuration as this one, to
+	 * be used on a new stream. A serializer that keeps no state from one
+	 * tuple to the next can return itself.
+	 * @return The serializer
+	 */
+	public TupleSerializer<K,V> newInstance();
+}
@@ -0,0 +1,98 @@
+/*
+    A basic map-reduce implementation
+    Copyright (C) 2011 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.dim.mapreduce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes integers to binary streams using a variable number of bytes,
+ * so that small numbers take less space. A number is written seven bits
+ * at a time, starting with the lowest ones; the highest bit of each byte
+ * tells whether more bytes follow. Numbers that can be negative are
+ * first mapped to non-negative ones ("zigzag" encoding: 0, -1, 1, -2,
+ * 2... become 0, 1, 2, 3, 4...), so that small negative numbers also
+ * take few bytes. This is useful to write the difference between two
+ * successive numbers of a stream.
+ */
+public class VarInts
+{
+	private VarInts()
+	{
+		super();
+	}
+	
+	/**
+	 * Writes a non-negative integer
+	 * @param out The stream to write to
+	 * @param value The integer, treated as unsigned
+	 * @throws IOException If the integer cannot be written
+	 */
+	public static void writeUnsigned(DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+	
+	/**
+	 * Reads a non-negative integer written by {@link #writeUnsigned}
+	 * @param in The stream to read from
+	 * @return The integer
+	 * @throws IOException If the integer cannot be read
+	 */
+	public static long readUnsigned(DataInput in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+	
+	/**
+	 * Writes an integer that can be negative
+	 * @param out The stream to write to
+	 * @param value The integer
+	 * @throws IOException If the integer cannot be written
+	 */
+	public static void writeSigned(DataOutput out, long value) throws IOException
+	{
+		writeUnsigned(out, (value << 1) ^ (value >> 63));
+	}
+	
+	/**
+	 * Reads an integer written by {@link #writeSigned}
+	 * @param in The stream to read from
+	 * @return The integer
+	 * @throws IOException If the integer cannot be read
+	 */
+	public static long readSigned(DataInput in) throws IOException
+	{
+		long value = readUnsigned(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+}